@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import com.squareup.okhttp.internal.NamedRunnable;
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.HttpEngine;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static com.squareup.okhttp.internal.Internal.logger;
+
+/**
+ * Many requests that have been prepared for execution together. Requests are grouped by their
+ * {@link Address} and each group is executed by a few threads that each run one request after
+ * another, so each thread keeps reusing its pooled connection.
+ *
+ * <p>The first request to each address runs alone. When it completes the group's connection has
+ * been established, and up to {@link Dispatcher#getMaxRequestsPerHost} threads execute the rest of
+ * the group. HTTP/2 and SPDY requests are multiplexed on that one connection; HTTP/1.1 requests use
+ * one connection per thread. HTTP/1.1 pipelining isn't used.
+ *
+ * <p>Threads come from the {@link Dispatcher#getExecutorService dispatcher's executor}. A batch
+ * uses at most {@link Dispatcher#getMaxRequests} threads; groups wait for a thread to finish its
+ * group if there are more of them. Batch requests aren't counted against the dispatcher's limits
+ * for its own calls. Each request is executed as a {@link Call}, so interceptors, the cache and
+ * event listeners apply as usual.
+ */
+public final class Batch {
+  private final OkHttpClient client;
+  private final List<Request> requests;
+
+  private final AtomicInteger remainingCount = new AtomicInteger();
+  private final AtomicInteger responseCount = new AtomicInteger();
+  private final AtomicInteger failureCount = new AtomicInteger();
+
+  // Guarded by this.
+  private boolean executed;
+  private final Set<Call> runningCalls = new LinkedHashSet<>();
+  private final Deque<Group> readyGroups = new ArrayDeque<>();
+  private int laneCount;
+  private int maxLaneCount;
+  private volatile boolean canceled;
+
+  private BatchCallback callback;
+
+  Batch(OkHttpClient client, List<Request> requests) {
+    if (requests.isEmpty()) throw new IllegalArgumentException("requests.isEmpty()");
+    for (int i = 0, size = requests.size(); i < size; i++) {
+      if (requests.get(i) == null) {
+        throw new NullPointerException("requests.get(" + i + ") == null");
+      }
+    }
+    this.client = client.copyWithDefaults();
+    this.requests = Util.immutableList(requests);
+  }
+
+  /**
+   * Schedules the requests to be executed, and calls back {@code callback} with the result of each
+   * and then once more when all are complete.
+   *
+   * @throws IllegalStateException when the batch has already been enqueued.
+   */
+  public void enqueue(BatchCallback callback) {
+    if (callback == null) throw new NullPointerException("callback == null");
+    synchronized (this) {
+      if (executed) throw new IllegalStateException("Already Executed");
+      executed = true;
+    }
+    this.callback = callback;
+    remainingCount.set(requests.size());
+
+    Map<Address, List<Integer>> groups = new LinkedHashMap<>();
+    for (int i = 0, size = requests.size(); i < size; i++) {
+      Address address = HttpEngine.createAddress(client, requests.get(i));
+      List<Integer> group = groups.get(address);
+      if (group == null) {
+        group = new ArrayList<>();
+        groups.put(address, group);
+      }
+      group.add(i);
+    }
+
+    synchronized (this) {
+      maxLaneCount = client.getDispatcher().getMaxRequests();
+      for (List<Integer> indices : groups.values()) {
+        readyGroups.add(new Group(indices));
+      }
+    }
+    startLanes(null, groups.size());
+  }
+
+  /**
+   * Starts up to {@code count} lanes, as permitted by the limit on lanes. Each new lane executes
+   * {@code group}, or the next ready group if {@code group} is null.
+   */
+  private void startLanes(Group group, int count) {
+    for (int i = 0; i < count; i++) {
+      Group laneGroup = group;
+      synchronized (this) {
+        if (laneCount >= maxLaneCount) return;
+        if (laneGroup == null) laneGroup = readyGroups.poll();
+        if (laneGroup == null) return;
+        laneCount++;
+      }
+      client.getDispatcher().getExecutorService().execute(new Lane(laneGroup, group == null));
+    }
+  }
+
+  /** Returns the next group to execute, or null if none remain and the calling lane should end. */
+  private synchronized Group nextGroup() {
+    Group result = readyGroups.poll();
+    if (result == null) laneCount--;
+    return result;
+  }
+
+  /**
+   * Cancels the requests that are running and fails those that haven't started. Requests that are
+   * already complete cannot be canceled.
+   */
+  public void cancel() {
+    canceled = true;
+    List<Call> calls;
+    synchronized (this) {
+      calls = new ArrayList<>(runningCalls);
+    }
+    for (Call call : calls) {
+      call.cancel();
+    }
+  }
+
+  public boolean isCanceled() {
+    return canceled;
+  }
+
+  /** Returns the number of requests in this batch. */
+  public int size() {
+    return requests.size();
+  }
+
+  /** Executes the request at {@code index} and reports its result. This doesn't throw. */
+  private void execute(int index) {
+    Request request = requests.get(index);
+    Call call = null;
+    try {
+      Response response;
+      try {
+        if (canceled) throw new IOException("Canceled");
+        call = client.newCall(request);
+        synchronized (this) {
+          runningCalls.add(call);
+        }
+        if (canceled) call.cancel();
+        response = call.execute();
+      } catch (IOException | RuntimeException e) {
+        failureCount.incrementAndGet();
+        IOException failure = e instanceof IOException
+            ? (IOException) e
+            : new IOException("Unexpected failure executing batch request " + index, e);
+        callback.onFailure(index, request, failure);
+        return;
+      }
+
+      responseCount.incrementAndGet();
+      try {
+        callback.onResponse(index, response);
+      } finally {
+        Util.closeQuietly(response.body());
+      }
+    } catch (IOException | RuntimeException e) {
+      logger.log(Level.INFO, "Callback failure for batch request " + index, e);
+    } finally {
+      if (call != null) {
+        synchronized (this) {
+          runningCalls.remove(call);
+        }
+      }
+      if (remainingCount.decrementAndGet() == 0) {
+        try {
+          callback.onComplete(responseCount.get(), failureCount.get());
+        } catch (RuntimeException e) {
+          logger.log(Level.INFO, "Callback failure for batch completion", e);
+        }
+      }
+    }
+  }
+
+  /** The indices of the requests to one address that haven't started. */
+  private static final class Group {
+    private final List<Integer> indices;
+    private int next;
+
+    Group(List<Integer> indices) {
+      this.indices = indices;
+    }
+
+    /** Returns the index of the next request to execute, or -1 if none remain. */
+    synchronized int take() {
+      return next < indices.size() ? indices.get(next++) : -1;
+    }
+
+    synchronized int remaining() {
+      return indices.size() - next;
+    }
+  }
+
+  private final class Lane extends NamedRunnable {
+    private Group group;
+    private boolean first;
+
+    Lane(Group group, boolean first) {
+      super("OkHttp Batch");
+      this.group = group;
+      this.first = first;
+    }
+
+    @Override protected void execute() {
+      while (group != null) {
+        for (int index; (index = group.take()) != -1; ) {
+          Batch.this.execute(index);
+          if (first) {
+            // The group's connection is established. Start its other lanes.
+            first = false;
+            startLanes(group, Math.min(group.remaining(),
+                client.getDispatcher().getMaxRequestsPerHost() - 1));
+          }
+        }
+        group = nextGroup();
+        first = true;
+      }
+    }
+  }
+}
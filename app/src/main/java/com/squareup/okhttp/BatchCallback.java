@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.io.IOException;
+
+/**
+ * Receives the results of a {@link Batch}. Methods are called on the batch's threads, and may be
+ * called concurrently for requests to different addresses.
+ */
+public interface BatchCallback {
+  /**
+   * Called when the request at {@code index} could not be executed due to cancellation, a
+   * connectivity problem or timeout.
+   */
+  void onFailure(int index, Request request, IOException e);
+
+  /**
+   * Called when the response to the request at {@code index} was successfully returned by the
+   * remote server. Unlike {@link Callback#onResponse}, the response body is closed when this method
+   * returns so that its connection can carry the batch's next request; read it before returning.
+   */
+  void onResponse(int index, Response response) throws IOException;
+
+  /**
+   * Called once after every request has either a response or a failure. If the batch was canceled,
+   * requests that hadn't started are counted as failures.
+   */
+  void onComplete(int responseCount, int failureCount);
+}
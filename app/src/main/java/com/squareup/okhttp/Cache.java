@@ -17,6 +17,7 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.DiskLruCache;
+import com.squareup.okhttp.internal.EvictionPolicy;
 import com.squareup.okhttp.internal.InternalCache;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.CacheRequest;
@@ -34,17 +35,27 @@ import java.security.cert.CertificateFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.ByteString;
+import okio.DeflaterSink;
 import okio.ForwardingSink;
 import okio.ForwardingSource;
+import okio.InflaterSource;
 import okio.Okio;
 import okio.Sink;
 import okio.Source;
+import okio.Timeout;
 
 /**
  * Caches HTTP and HTTPS responses to the filesystem so they may be reused, saving time and
@@ -66,11 +77,36 @@ import okio.Source;
  * the updated response if it has changed, or a short 'not modified' response if the client's copy
  * is still valid. Such responses increment both the network count and hit count.
  *
+ * <p>More detailed {@linkplain #getStats statistics} include conditional hit counts per host, byte
+ * counts, eviction reasons and latency histograms. A {@link CacheListener} receives the same events
+ * as they happen.
+ *
+ * <p>A cache may also be configured to {@linkplain #setCompressBodies compress} the response
+ * bodies it stores. This lets a cache of a given size hold more responses, at the cost of some CPU
+ * time that is also tracked.
+ *
  * <p>The best way to improve the cache hit rate is by configuring the web server to return
  * cacheable responses. Although this client honors all <a
  * href="http://tools.ietf.org/html/rfc7234">HTTP/1.1 (RFC 7234)</a> cache headers, it doesn't cache
  * partial responses.
  *
+ * <h3>Memory Cache</h3>
+ * A cache may be configured to also keep the most recently used small responses in memory. These
+ * responses are served without reading the filesystem. The memory cache is bounded by the total
+ * size of the response bodies and headers it holds.
+ *
+ * <h3>Variants</h3>
+ * Responses that vary on request headers, such as those with {@code Vary: Accept-Language}, are
+ * stored separately for each combination of the varying request headers. The number of variants
+ * stored for a single URL and their total body size are bounded; when either is exceeded, the least
+ * recently used variants of that URL are evicted.
+ *
+ * <h3>Eviction</h3>
+ * When the cache is full it evicts its least recently used responses. Other {@linkplain Eviction
+ * eviction policies} may keep more of the responses that are requested repeatedly; compare their
+ * {@linkplain #getEvictionHitCount hit} and {@linkplain #getEvictionMissCount miss} counts to
+ * choose one for a workload.
+ *
  * <h3>Force a Network Response</h3>
  * In some situations, such as after a user clicks a 'refresh' button, it may be necessary to skip
  * the cache, and fetch data directly from the server. To force a full refresh, add the {@code
@@ -129,7 +165,11 @@ import okio.Source;
  * {@link CacheControl#FORCE_CACHE} that address the use cases above.
  */
 public final class Cache {
-  private static final int VERSION = 201105;
+  private static final int VERSION = 201510;
+
+  /** The version of caches whose keys are MD5 hashes. Their entries are migrated on open. */
+  private static final int VERSION_MD5_KEYS = 201105;
+
   private static final int ENTRY_METADATA = 0;
   private static final int ENTRY_BODY = 1;
   private static final int ENTRY_COUNT = 2;
@@ -147,37 +187,195 @@ public final class Cache {
     @Override public void update(Response cached, Response network) throws IOException {
       Cache.this.update(cached, network);
     }
-    @Override public void trackConditionalCacheHit() {
-      Cache.this.trackConditionalCacheHit();
+    @Override public void trackConditionalCacheHit(Response cacheResponse) {
+      Cache.this.trackConditionalCacheHit(cacheResponse);
     }
     @Override public void trackResponse(CacheStrategy cacheStrategy) {
       Cache.this.trackResponse(cacheStrategy);
     }
   };
 
+  /** The largest response body that will be kept in the memory cache. */
+  private static final long MAX_MEMORY_BODY_SIZE = 64 * 1024;
+
+  /** The first metadata line of an entry that indexes the variants of a URL. */
+  private static final String VARIANTS_MARKER = "OkHttp-Variants";
+
+  /** Marks an entry whose body is stored compressed with raw deflate. */
+  private static final String CODEC_DEFLATE = "deflate";
+
+  /** The number of URLs whose variant indexes are kept in memory. */
+  private static final int MAX_CACHED_VARIANT_INDEXES = 256;
+
+  /** The number of locks that serialize changes to variant indexes, striped by URL key. */
+  private static final int VARIANT_LOCK_COUNT = 16;
+
+  /**
+   * Re-keys the entries of a cache whose keys are MD5 hashes. Variants and their indexes are
+   * dropped because their keys can't be recomputed from the variant index alone.
+   */
+  private static final DiskLruCache.Migration MIGRATE_MD5_KEYS = new DiskLruCache.Migration() {
+    @Override public String migrate(String key, DiskLruCache.Snapshot snapshot)
+        throws IOException {
+      if (key.indexOf('-') != -1) return null; // A variant.
+      BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
+      String url = metadata.readUtf8LineStrict();
+      if (url.equals(VARIANTS_MARKER)) return null;
+      return Util.hashHex(url);
+    }
+  };
+
   private final DiskLruCache cache;
 
-  /* read and write statistics, all guarded by 'this' */
-  private int writeSuccessCount;
-  private int writeAbortCount;
-  private int networkCount;
-  private int hitCount;
-  private int requestCount;
+  /** Recently-used small responses, or null if there is no memory cache. */
+  private final MemoryCache memoryCache;
+
+  /**
+   * Variant indexes of recently-used URLs, keyed by URL key. Guards the in-memory indexes only;
+   * it is never held while reading or writing the filesystem.
+   */
+  private final LinkedHashMap<String, Variants> variantIndexes =
+      new LinkedHashMap<String, Variants>(0, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Variants> eldest) {
+          return size() > MAX_CACHED_VARIANT_INDEXES;
+        }
+      };
+
+  /** Serializes the changes to each URL's variant index, including writing it to the cache. */
+  private final Object[] variantLocks = new Object[VARIANT_LOCK_COUNT];
+
+  private volatile int maxVariantCount = 8;
+  private volatile long maxVariantSize = Long.MAX_VALUE;
+  private volatile boolean compressBodies;
+
+  /** The current eviction policy. Guarded by 'cache'. */
+  private Eviction eviction = Eviction.LRU;
+
+  private final CacheStats stats = new CacheStats();
+  private volatile CacheListener listener;
+
+  /** Feeds the disk cache's commits, evictions and journal rebuilds into the statistics. */
+  private final DiskLruCache.Listener diskListener = new DiskLruCache.Listener() {
+    @Override public void editCompleted(String key, boolean success, long nanos) {
+      if (success) stats.writeLatency().record(nanos);
+    }
+
+    @Override public void evicted(String key, long size) {
+      if (memoryCache != null) memoryCache.remove(key);
+      trackEviction(CacheStats.EvictionReason.SIZE);
+    }
+
+    @Override public void journalRebuilt(long nanos) {
+      stats.journalRebuildLatency().record(nanos);
+      CacheListener listener = Cache.this.listener;
+      if (listener != null) listener.journalRebuilt(nanos);
+    }
+  };
+
+  /* compression statistics, all guarded by 'this' */
+  private long uncompressedBodySize;
+  private long compressedBodySize;
+  private long compressionNanos;
+  private long decompressionNanos;
 
   public Cache(File directory, long maxSize) {
-    this(directory, maxSize, FileSystem.SYSTEM);
+    this(directory, maxSize, 0L, FileSystem.SYSTEM);
+  }
+
+  /**
+   * Create a cache that also keeps up to {@code maxMemorySize} bytes of recently-used responses in
+   * memory. Pass 0 to disable the memory cache.
+   */
+  public Cache(File directory, long maxSize, long maxMemorySize) {
+    this(directory, maxSize, maxMemorySize, FileSystem.SYSTEM);
   }
 
   Cache(File directory, long maxSize, FileSystem fileSystem) {
+    this(directory, maxSize, 0L, fileSystem);
+  }
+
+  Cache(File directory, long maxSize, long maxMemorySize, FileSystem fileSystem) {
+    if (maxMemorySize < 0) {
+      throw new IllegalArgumentException("maxMemorySize < 0: " + maxMemorySize);
+    }
     this.cache = DiskLruCache.create(fileSystem, directory, VERSION, ENTRY_COUNT, maxSize);
+    this.cache.setMigration(VERSION_MD5_KEYS, MIGRATE_MD5_KEYS);
+    this.cache.setListener(diskListener);
+    this.memoryCache = maxMemorySize > 0 ? new MemoryCache(maxMemorySize) : null;
+    for (int i = 0; i < VARIANT_LOCK_COUNT; i++) {
+      variantLocks[i] = new Object();
+    }
   }
 
   private static String urlToKey(Request request) {
-    return Util.md5Hex(request.urlString());
+    return Util.hashHex(request.urlString());
+  }
+
+  /**
+   * Returns the key of the entry that stores the variant of a response that {@code requestHeaders}
+   * select. This hashes the values of the headers named by {@code varyFields}.
+   */
+  private static String variantKey(String urlKey, Set<String> varyFields, Headers requestHeaders) {
+    StringBuilder variant = new StringBuilder();
+    for (String field : varyFields) {
+      variant.append(field.toLowerCase(Locale.US)).append('\n');
+      for (String value : requestHeaders.values(field)) {
+        variant.append(value).append('\n');
+      }
+      variant.append('\n');
+    }
+    return urlKey + "-" + Util.hashHex(variant.toString()).substring(0, 16);
   }
 
   Response get(Request request) {
+    long startNanos = System.nanoTime();
     String key = urlToKey(request);
+
+    Variants variants;
+    synchronized (variantIndexes) {
+      variants = variantIndexes.get(key);
+    }
+    Response response;
+    if (variants != null) {
+      recordDiskAccess(key); // The variant index was read from memory.
+      response = getVariant(request, key, variants);
+    } else {
+      response = get(request, key, true);
+    }
+
+    long nanos = System.nanoTime() - startNanos;
+    stats.readLatency().record(nanos);
+    CacheListener listener = this.listener;
+    if (listener != null) listener.lookup(request, response != null, nanos);
+    return response;
+  }
+
+  private Response getVariant(Request request, String urlKey, Variants variants) {
+    String variantKey = variantKey(urlKey, variants.varyFields, request.headers());
+    Response response = get(request, variantKey, false);
+    if (response != null) {
+      synchronized (variantIndexes) {
+        variants.sizes.get(variantKey); // Mark this variant as recently used.
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Returns the response stored under {@code key}. If {@code key} holds the variant index of a URL
+   * and {@code lookUpVariants} is true, this returns the variant selected by {@code request}.
+   */
+  private Response get(Request request, String key, boolean lookUpVariants) {
+    long memoryGeneration = 0L;
+    if (memoryCache != null) {
+      MemoryEntry memoryEntry = memoryCache.get(key);
+      if (memoryEntry != null) {
+        recordDiskAccess(key);
+        return memoryResponse(request, memoryEntry);
+      }
+      memoryGeneration = memoryCache.generation();
+    }
+
     DiskLruCache.Snapshot snapshot;
     Entry entry;
     try {
@@ -190,14 +388,52 @@ public final class Cache {
       return null;
     }
 
+    BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
     try {
-      entry = new Entry(snapshot.getSource(ENTRY_METADATA));
+      String firstLine = metadata.readUtf8LineStrict();
+      if (firstLine.equals(VARIANTS_MARKER)) {
+        Variants variants = new Variants(metadata);
+        Util.closeQuietly(snapshot);
+        if (!lookUpVariants) return null;
+        synchronized (variantIndexes) {
+          Variants current = variantIndexes.get(key);
+          if (current != null) {
+            variants = current; // Another thread has since indexed a newer variant.
+          } else {
+            variantIndexes.put(key, variants);
+          }
+        }
+        return getVariant(request, key, variants);
+      }
+      entry = new Entry(firstLine, metadata);
     } catch (IOException e) {
       Util.closeQuietly(snapshot);
       return null;
+    } finally {
+      Util.closeQuietly(metadata);
     }
 
-    Response response = entry.response(request, snapshot);
+    // Promote small responses to the memory cache so the next hit doesn't read the filesystem.
+    long bodySize = entry.bodyCodec == null
+        ? snapshot.getLength(ENTRY_BODY)
+        : OkHeaders.contentLength(entry.responseHeaders);
+    if (memoryCache != null && bodySize != -1 && bodySize <= MAX_MEMORY_BODY_SIZE) {
+      MemoryEntry memoryEntry;
+      try {
+        memoryEntry = new MemoryEntry(key, entry,
+            Okio.buffer(bodySource(snapshot, entry)).readByteString());
+      } catch (IOException e) {
+        return null;
+      } finally {
+        Util.closeQuietly(snapshot);
+      }
+      memoryCache.putIfCurrent(memoryEntry, memoryGeneration);
+      return memoryResponse(request, memoryEntry);
+    }
+
+    Response response = entry.response(new CacheResponseBody(snapshot,
+        bodySource(snapshot, entry), entry.bodyCodec,
+        entry.responseHeaders.get("Content-Type"), entry.responseHeaders.get("Content-Length")));
 
     if (!entry.matches(request, response)) {
       Util.closeQuietly(response.body());
@@ -229,15 +465,23 @@ public final class Cache {
       return null;
     }
 
-    Entry entry = new Entry(response);
+    String urlKey = urlToKey(response.request());
+    String bodyCodec = compressBodies && isCompressible(response) ? CODEC_DEFLATE : null;
+    Entry entry = new Entry(response, bodyCodec);
+    Set<String> varyFields = OkHeaders.varyFields(response.headers());
+    String key = varyFields.isEmpty()
+        ? urlKey
+        : variantKey(urlKey, varyFields, entry.varyHeaders);
+    if (memoryCache != null) memoryCache.remove(key);
+
     DiskLruCache.Editor editor = null;
     try {
-      editor = cache.edit(urlToKey(response.request()));
+      editor = cache.edit(key);
       if (editor == null) {
         return null;
       }
       entry.writeTo(editor);
-      return new CacheRequestImpl(editor);
+      return new CacheRequestImpl(response.request(), urlKey, key, varyFields, entry, editor);
     } catch (IOException e) {
       abortQuietly(editor);
       return null;
@@ -245,12 +489,157 @@ public final class Cache {
   }
 
   private void remove(Request request) throws IOException {
-    cache.remove(urlToKey(request));
+    String key = urlToKey(request);
+    synchronized (variantLock(key)) {
+      Variants variants;
+      synchronized (variantIndexes) {
+        variants = variantIndexes.remove(key);
+      }
+      if (variants == null) variants = readVariants(key);
+      if (variants != null) {
+        for (String variantKey : variants.sizes.keySet()) {
+          if (memoryCache != null) memoryCache.remove(variantKey);
+          if (cache.remove(variantKey)) trackEviction(CacheStats.EvictionReason.INVALIDATED);
+        }
+      }
+      if (memoryCache != null) memoryCache.remove(key);
+      if (cache.remove(key) && variants == null) {
+        trackEviction(CacheStats.EvictionReason.INVALIDATED);
+      }
+    }
+  }
+
+  private Object variantLock(String urlKey) {
+    return variantLocks[(urlKey.hashCode() & 0x7fffffff) % VARIANT_LOCK_COUNT];
+  }
+
+  /** Returns the variant index stored under {@code urlKey}, or null if there isn't one. */
+  private Variants readVariants(String urlKey) {
+    DiskLruCache.Snapshot snapshot = null;
+    try {
+      snapshot = cache.get(urlKey);
+      if (snapshot == null) return null;
+      BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
+      return metadata.readUtf8LineStrict().equals(VARIANTS_MARKER)
+          ? new Variants(metadata)
+          : null;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      Util.closeQuietly(snapshot);
+    }
+  }
+
+  /**
+   * Adds a newly-written variant to the index of its URL, and evicts the least recently used
+   * variants that exceed the URL's limits. The updated index is written to the cache before it is
+   * published in memory; if it can't be written the new variant is removed instead so that no
+   * entry is left that no index refers to.
+   */
+  private void addVariant(String urlKey, Set<String> varyFields, String variantKey,
+      long variantSize) {
+    List<String> evicted = new ArrayList<>();
+    synchronized (variantLock(urlKey)) {
+      Variants current;
+      synchronized (variantIndexes) {
+        current = variantIndexes.get(urlKey);
+      }
+      if (current == null) current = readVariants(urlKey);
+
+      Variants variants;
+      synchronized (variantIndexes) {
+        if (current == null || !current.varyFields.equals(varyFields)) {
+          // The response varies on different headers now. Drop the variants selected by the old
+          // ones.
+          if (current != null) evicted.addAll(current.sizes.keySet());
+          variants = new Variants(varyFields);
+        } else {
+          variants = new Variants(current); // Readers reorder the current index as they use it.
+        }
+      }
+
+      variants.put(variantKey, variantSize);
+      evicted.remove(variantKey);
+      for (Iterator<Map.Entry<String, Long>> i = variants.sizes.entrySet().iterator();
+          variants.sizes.size() > 1 && (variants.sizes.size() > maxVariantCount
+              || variants.size > maxVariantSize); ) {
+        Map.Entry<String, Long> eldest = i.next();
+        variants.size -= eldest.getValue();
+        evicted.add(eldest.getKey());
+        i.remove();
+      }
+
+      DiskLruCache.Editor editor = null;
+      boolean written = false;
+      try {
+        // Null if a response that doesn't vary is being written to this URL. That response will
+        // replace the index when it completes.
+        editor = cache.edit(urlKey);
+        if (editor != null) {
+          variants.writeTo(editor);
+          editor.commit();
+          written = true;
+        }
+      } catch (IOException e) {
+        abortQuietly(editor);
+      }
+
+      if (written) {
+        synchronized (variantIndexes) {
+          variantIndexes.put(urlKey, variants);
+        }
+      } else {
+        evicted.clear();
+        evicted.add(variantKey);
+      }
+    }
+
+    for (int i = 0, size = evicted.size(); i < size; i++) {
+      String key = evicted.get(i);
+      if (memoryCache != null) memoryCache.remove(key);
+      try {
+        if (cache.remove(key)) trackEviction(CacheStats.EvictionReason.VARIANT);
+      } catch (IOException ignored) {
+        // The cache cannot be written.
+      }
+    }
+  }
+
+  /**
+   * Forgets the variants of {@code urlKey} because a response that doesn't vary is replacing them.
+   * Call this before that response is committed, while the index can still be read from the cache.
+   */
+  private void removeVariants(String urlKey) {
+    synchronized (variantLock(urlKey)) {
+      Variants variants;
+      synchronized (variantIndexes) {
+        variants = variantIndexes.remove(urlKey);
+      }
+      if (variants == null) variants = readVariants(urlKey);
+      if (variants == null) return;
+      for (String variantKey : variants.sizes.keySet()) {
+        if (memoryCache != null) memoryCache.remove(variantKey);
+        try {
+          if (cache.remove(variantKey)) trackEviction(CacheStats.EvictionReason.VARIANT);
+        } catch (IOException ignored) {
+          // The cache cannot be written.
+        }
+      }
+    }
   }
 
   private void update(Response cached, Response network) {
-    Entry entry = new Entry(network);
-    DiskLruCache.Snapshot snapshot = ((CacheResponseBody) cached.body()).snapshot;
+    if (cached.body() instanceof MemoryResponseBody) {
+      String bodyCodec = compressBodies && isCompressible(network) ? CODEC_DEFLATE : null;
+      update(((MemoryResponseBody) cached.body()).memoryEntry, new Entry(network, bodyCodec));
+      return;
+    }
+
+    // Only the metadata is rewritten, so the body keeps its codec.
+    CacheResponseBody cachedBody = (CacheResponseBody) cached.body();
+    Entry entry = new Entry(network, cachedBody.bodyCodec);
+    DiskLruCache.Snapshot snapshot = cachedBody.snapshot;
+    if (memoryCache != null) memoryCache.remove(snapshot.key());
     DiskLruCache.Editor editor = null;
     try {
       editor = snapshot.edit(); // Returns null if snapshot is not current.
@@ -263,6 +652,93 @@ public final class Cache {
     }
   }
 
+  /**
+   * Replaces the metadata of a response served from memory. The body is rewritten too, in case
+   * the filesystem has since evicted it.
+   */
+  private void update(MemoryEntry memoryEntry, Entry entry) {
+    DiskLruCache.Editor editor = null;
+    try {
+      editor = cache.edit(memoryEntry.key);
+      if (editor == null) return;
+
+      // While we hold the editor nobody else can change this entry. Confirm it's still current.
+      if (memoryCache.get(memoryEntry.key) != memoryEntry) {
+        editor.abort();
+        return;
+      }
+
+      entry.writeTo(editor);
+      BufferedSink body = Okio.buffer(newBodySink(editor, entry));
+      body.write(memoryEntry.body);
+      body.close();
+      editor.commit();
+      memoryCache.put(new MemoryEntry(memoryEntry.key, entry, memoryEntry.body));
+    } catch (IOException e) {
+      abortQuietly(editor);
+      memoryCache.remove(memoryEntry.key);
+    }
+  }
+
+  /** Counts a read served from memory as a read of the file system copy, so it isn't evicted. */
+  private void recordDiskAccess(String key) {
+    try {
+      cache.recordAccess(key);
+    } catch (IOException ignored) {
+      // The journal can't be written. The response is still served from memory.
+    }
+  }
+
+  private Response memoryResponse(Request request, MemoryEntry memoryEntry) {
+    Entry entry = memoryEntry.entry;
+    Response response = entry.response(new MemoryResponseBody(memoryEntry,
+        entry.responseHeaders.get("Content-Type"), entry.responseHeaders.get("Content-Length")));
+    return entry.matches(request, response) ? response : null;
+  }
+
+  /** Returns true if the body of {@code response} isn't already compressed. */
+  private static boolean isCompressible(Response response) {
+    String contentEncoding = response.header("Content-Encoding");
+    if (contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding)) return false;
+
+    String contentType = response.header("Content-Type");
+    MediaType mediaType = contentType != null ? MediaType.parse(contentType) : null;
+    if (mediaType == null) return true;
+    String subtype = mediaType.subtype().toLowerCase(Locale.US);
+    switch (mediaType.type().toLowerCase(Locale.US)) {
+      case "image":
+        return subtype.equals("svg+xml") || subtype.equals("bmp");
+      case "audio":
+      case "video":
+        return false;
+      case "font":
+        return !subtype.equals("woff") && !subtype.equals("woff2");
+      case "application":
+        return !subtype.equals("zip")
+            && !subtype.equals("gzip")
+            && !subtype.equals("x-gzip")
+            && !subtype.equals("x-bzip2")
+            && !subtype.equals("x-xz")
+            && !subtype.equals("x-7z-compressed")
+            && !subtype.equals("x-rar-compressed")
+            && !subtype.equals("font-woff");
+      default:
+        return true;
+    }
+  }
+
+  /** Returns a sink that writes {@code entry}'s body, compressing it if the entry says to. */
+  private Sink newBodySink(DiskLruCache.Editor editor, Entry entry) throws IOException {
+    Sink sink = editor.newSink(ENTRY_BODY);
+    return entry.bodyCodec != null ? new DeflatingSink(sink) : sink;
+  }
+
+  /** Returns a source that reads {@code entry}'s body, decompressing it if necessary. */
+  private Source bodySource(DiskLruCache.Snapshot snapshot, Entry entry) {
+    Source source = snapshot.getSource(ENTRY_BODY);
+    return entry.bodyCodec != null ? new InflatingSource(source) : source;
+  }
+
   private void abortQuietly(DiskLruCache.Editor editor) {
     // Give up because the cache cannot be written.
     try {
@@ -296,6 +772,8 @@ public final class Cache {
    * the cache.
    */
   public void delete() throws IOException {
+    clearVariantIndexes();
+    if (memoryCache != null) memoryCache.evictAll();
     cache.delete();
   }
 
@@ -304,6 +782,8 @@ public final class Cache {
    * complete normally, but the corresponding responses will not be stored.
    */
   public void evictAll() throws IOException {
+    clearVariantIndexes();
+    if (memoryCache != null) memoryCache.evictAll();
     cache.evictAll();
   }
 
@@ -321,6 +801,8 @@ public final class Cache {
       final Iterator<DiskLruCache.Snapshot> delegate = cache.snapshots();
 
       String nextUrl;
+      String nextKey;
+      String removeKey;
       boolean canRemove;
 
       @Override public boolean hasNext() {
@@ -331,7 +813,10 @@ public final class Cache {
           DiskLruCache.Snapshot snapshot = delegate.next();
           try {
             BufferedSource metadata = Okio.buffer(snapshot.getSource(ENTRY_METADATA));
-            nextUrl = metadata.readUtf8LineStrict();
+            String url = metadata.readUtf8LineStrict();
+            if (url.equals(VARIANTS_MARKER)) continue; // Skip variant indexes.
+            nextUrl = url;
+            nextKey = snapshot.key();
             return true;
           } catch (IOException ignored) {
             // We couldn't read the metadata for this snapshot; possibly because the host filesystem
@@ -348,23 +833,39 @@ public final class Cache {
         if (!hasNext()) throw new NoSuchElementException();
         String result = nextUrl;
         nextUrl = null;
+        removeKey = nextKey;
         canRemove = true;
         return result;
       }
 
       @Override public void remove() {
         if (!canRemove) throw new IllegalStateException("remove() before next()");
+        if (memoryCache != null) memoryCache.remove(removeKey);
         delegate.remove();
       }
     };
   }
 
-  public synchronized int getWriteAbortCount() {
-    return writeAbortCount;
+  public int getWriteAbortCount() {
+    return (int) stats.writeAbortCount();
+  }
+
+  public int getWriteSuccessCount() {
+    return (int) stats.writeSuccessCount();
+  }
+
+  /** Returns detailed statistics of this cache. */
+  public CacheStats getStats() {
+    return stats;
+  }
+
+  /** Sets the listener to notify of this cache's events, or null for none. */
+  public void setListener(CacheListener listener) {
+    this.listener = listener;
   }
 
-  public synchronized int getWriteSuccessCount() {
-    return writeSuccessCount;
+  public CacheListener getListener() {
+    return listener;
   }
 
   public long getSize() throws IOException {
@@ -375,11 +876,142 @@ public final class Cache {
     return cache.getMaxSize();
   }
 
+  /** Returns the number of bytes held by the memory cache. */
+  public long getMemorySize() {
+    return memoryCache != null ? memoryCache.size() : 0L;
+  }
+
+  /** Returns the maximum number of bytes held by the memory cache, or 0 if it is disabled. */
+  public long getMaxMemorySize() {
+    return memoryCache != null ? memoryCache.maxSize : 0L;
+  }
+
+  /**
+   * Sets the maximum number of variants of a single URL's response to store. When a URL has more
+   * variants than this, its least recently used variants are evicted. The default is 8.
+   */
+  public void setMaxVariantCount(int maxVariantCount) {
+    if (maxVariantCount < 1) {
+      throw new IllegalArgumentException("maxVariantCount < 1: " + maxVariantCount);
+    }
+    this.maxVariantCount = maxVariantCount;
+  }
+
+  public int getMaxVariantCount() {
+    return maxVariantCount;
+  }
+
+  /**
+   * Sets the maximum total size of the response bodies stored for a single URL's variants. When
+   * this is exceeded the URL's least recently used variants are evicted, though its most recent
+   * variant is always kept. By default only the cache's own maximum size applies.
+   */
+  public void setMaxVariantSize(long maxVariantSize) {
+    if (maxVariantSize <= 0) {
+      throw new IllegalArgumentException("maxVariantSize <= 0: " + maxVariantSize);
+    }
+    this.maxVariantSize = maxVariantSize;
+  }
+
+  public long getMaxVariantSize() {
+    return maxVariantSize;
+  }
+
+  /**
+   * Configure this cache to compress the bodies of the responses it stores. Bodies that are already
+   * compressed, such as those with a {@code Content-Encoding} or an image, audio or video content
+   * type, are stored as received. Each entry records whether its body is compressed, so this may
+   * be changed at any time. Disabled by default.
+   */
+  public void setCompressBodies(boolean compressBodies) {
+    this.compressBodies = compressBodies;
+  }
+
+  public boolean getCompressBodies() {
+    return compressBodies;
+  }
+
+  /** Returns the total size of the response bodies that were compressed, before compression. */
+  public synchronized long getUncompressedBodySize() {
+    return uncompressedBodySize;
+  }
+
+  /**
+   * Returns the total size of the response bodies that were compressed, after compression. Divide
+   * this by {@link #getUncompressedBodySize} for the compression ratio.
+   */
+  public synchronized long getCompressedBodySize() {
+    return compressedBodySize;
+  }
+
+  /** Returns the total time spent compressing response bodies, in nanoseconds. */
+  public synchronized long getCompressionNanos() {
+    return compressionNanos;
+  }
+
+  /**
+   * Returns the total time spent decompressing response bodies, in nanoseconds. This includes the
+   * time spent reading the compressed bodies from the filesystem.
+   */
+  public synchronized long getDecompressionNanos() {
+    return decompressionNanos;
+  }
+
+  /**
+   * Sets the policy that chooses which responses to evict when the cache is full. Changing the
+   * policy resets the statistics returned by {@link #getEvictionHitCount}, {@link
+   * #getEvictionMissCount} and {@link #getEvictionCount}. The default is {@link Eviction#LRU}.
+   */
+  public void setEviction(Eviction eviction) throws IOException {
+    if (eviction == null) throw new NullPointerException("eviction == null");
+    synchronized (cache) {
+      if (eviction == this.eviction) return;
+      cache.setEvictionPolicy(eviction.newPolicy());
+      this.eviction = eviction;
+    }
+  }
+
+  public Eviction getEviction() {
+    synchronized (cache) {
+      return eviction;
+    }
+  }
+
+  /**
+   * Returns the number of times the filesystem was searched for a response and found one since the
+   * current eviction policy was set. This doesn't count responses served by the memory cache.
+   * Compare this to {@link #getEvictionMissCount} to evaluate an eviction policy.
+   */
+  public long getEvictionHitCount() {
+    return cache.getEvictionPolicy().hitCount();
+  }
+
+  /**
+   * Returns the number of times the filesystem was searched for a response and didn't find one
+   * since the current eviction policy was set.
+   */
+  public long getEvictionMissCount() {
+    return cache.getEvictionPolicy().missCount();
+  }
+
+  /** Returns the number of responses evicted since the current eviction policy was set. */
+  public long getEvictionCount() {
+    return cache.getEvictionPolicy().evictionCount();
+  }
+
   public void flush() throws IOException {
     cache.flush();
   }
 
+  private void clearVariantIndexes() {
+    synchronized (variantIndexes) {
+      variantIndexes.clear();
+    }
+  }
+
   public void close() throws IOException {
+    clearVariantIndexes();
+    if (memoryCache != null) memoryCache.evictAll();
     cache.close();
   }
 
@@ -391,72 +1023,154 @@ public final class Cache {
     return cache.isClosed();
   }
 
-  private synchronized void trackResponse(CacheStrategy cacheStrategy) {
-    requestCount++;
+  private void trackResponse(CacheStrategy cacheStrategy) {
+    stats.requestCount.incrementAndGet();
+    CacheListener listener = this.listener;
 
-    if (cacheStrategy.networkRequest != null) {
+    Request networkRequest = cacheStrategy.networkRequest;
+    Response cacheResponse = cacheStrategy.cacheResponse;
+    if (networkRequest != null) {
       // If this is a conditional request, we'll increment hitCount if/when it hits.
-      networkCount++;
+      stats.networkCount.incrementAndGet();
+      boolean conditional = cacheResponse != null;
+      if (conditional) stats.trackConditionalRequest(networkRequest.httpUrl().host());
+      if (listener != null) listener.networkRequest(networkRequest, conditional);
 
-    } else if (cacheStrategy.cacheResponse != null) {
+    } else if (cacheResponse != null) {
       // This response uses the cache and not the network. That's a cache hit.
-      hitCount++;
+      stats.hitCount.incrementAndGet();
+      long bodyByteCount = bodyByteCount(cacheResponse);
+      if (bodyByteCount != -1) stats.hitByteCount.addAndGet(bodyByteCount);
+      if (listener != null) listener.cacheHit(cacheResponse.request(), bodyByteCount);
     }
   }
 
-  private synchronized void trackConditionalCacheHit() {
-    hitCount++;
+  private void trackConditionalCacheHit(Response cacheResponse) {
+    stats.hitCount.incrementAndGet();
+    stats.trackConditionalHit(cacheResponse.request().httpUrl().host());
+    long bodyByteCount = bodyByteCount(cacheResponse);
+    if (bodyByteCount != -1) stats.hitByteCount.addAndGet(bodyByteCount);
+    CacheListener listener = this.listener;
+    if (listener != null) listener.conditionalHit(cacheResponse.request(), bodyByteCount);
+  }
+
+  private void trackWrite(Request request, boolean success, long bodyByteCount) {
+    if (success) {
+      stats.writeSuccessCount.incrementAndGet();
+      stats.writeByteCount.addAndGet(bodyByteCount);
+    } else {
+      stats.writeAbortCount.incrementAndGet();
+    }
+    CacheListener listener = this.listener;
+    if (listener != null) listener.write(request, success, bodyByteCount);
   }
 
-  public synchronized int getNetworkCount() {
-    return networkCount;
+  private void trackEviction(CacheStats.EvictionReason reason) {
+    stats.trackEviction(reason);
+    CacheListener listener = this.listener;
+    if (listener != null) listener.eviction(reason);
   }
 
-  public synchronized int getHitCount() {
-    return hitCount;
+  /** Returns the length of {@code response}'s body, or -1 if it is unknown. */
+  private static long bodyByteCount(Response response) {
+    try {
+      return response.body() != null ? response.body().contentLength() : -1L;
+    } catch (IOException e) {
+      return -1L;
+    }
   }
 
-  public synchronized int getRequestCount() {
-    return requestCount;
+  private synchronized void trackCompression(long uncompressedSize, long compressedSize,
+      long nanos) {
+    uncompressedBodySize += uncompressedSize;
+    compressedBodySize += compressedSize;
+    compressionNanos += nanos;
+  }
+
+  private synchronized void trackDecompression(long nanos) {
+    decompressionNanos += nanos;
+  }
+
+  public int getNetworkCount() {
+    return (int) stats.networkCount();
+  }
+
+  public int getHitCount() {
+    return (int) stats.hitCount();
+  }
+
+  public int getRequestCount() {
+    return (int) stats.requestCount();
   }
 
   private final class CacheRequestImpl implements CacheRequest {
     private final DiskLruCache.Editor editor;
     private Sink cacheOut;
+    private final Request request;
     private boolean done;
     private Sink body;
 
-    public CacheRequestImpl(final DiskLruCache.Editor editor) throws IOException {
+    /** The number of body bytes written. */
+    private long bodySize;
+
+    /** A copy of the body for the memory cache, or null if it won't be kept in memory. */
+    private Buffer memoryBody;
+
+    public CacheRequestImpl(final Request request, final String urlKey, final String key,
+        final Set<String> varyFields, final Entry entry, final DiskLruCache.Editor editor)
+        throws IOException {
+      this.request = request;
       this.editor = editor;
-      this.cacheOut = editor.newSink(ENTRY_BODY);
+      this.cacheOut = newBodySink(editor, entry);
+      this.memoryBody = memoryCache != null ? new Buffer() : null;
       this.body = new ForwardingSink(cacheOut) {
+        @Override public void write(Buffer source, long byteCount) throws IOException {
+          bodySize += byteCount;
+          if (memoryBody != null) {
+            if (memoryBody.size() + byteCount <= MAX_MEMORY_BODY_SIZE) {
+              source.copyTo(memoryBody, 0, byteCount);
+            } else {
+              memoryBody = null;
+            }
+          }
+          super.write(source, byteCount);
+        }
+
         @Override public void close() throws IOException {
-          synchronized (Cache.this) {
+          synchronized (CacheRequestImpl.this) {
             if (done) {
               return;
             }
             done = true;
-            writeSuccessCount++;
           }
           super.close();
+          // This response replaces the URL's variant index, if it has one. Read the index first.
+          if (key.equals(urlKey)) removeVariants(urlKey);
           editor.commit();
+          trackWrite(request, true, bodySize);
+          if (memoryBody != null) {
+            memoryCache.put(new MemoryEntry(key, entry, memoryBody.readByteString()));
+          } else if (memoryCache != null) {
+            memoryCache.remove(key); // Drop anything promoted from the previous entry meanwhile.
+          }
+          if (!key.equals(urlKey)) addVariant(urlKey, varyFields, key, bodySize);
         }
       };
     }
 
     @Override public void abort() {
-      synchronized (Cache.this) {
+      synchronized (this) {
         if (done) {
           return;
         }
         done = true;
-        writeAbortCount++;
       }
       Util.closeQuietly(cacheOut);
       try {
         editor.abort();
       } catch (IOException ignored) {
       }
+      trackWrite(request, false, bodySize);
     }
 
     @Override public Sink body() {
@@ -474,8 +1188,12 @@ public final class Cache {
     private final Headers responseHeaders;
     private final Handshake handshake;
 
+    /** How the body is stored: null if it is stored as received, or {@code "deflate"}. */
+    private final String bodyCodec;
+
     /**
-     * Reads an entry from an input stream. A typical entry looks like this:
+     * Reads an entry whose first line, the URL, has already been read from {@code source}. A
+     * typical entry looks like this:
      * <pre>{@code
      *   http://google.com/foo
      *   GET
@@ -522,48 +1240,51 @@ public final class Cache {
      * contains the length of the local certificate chain. These
      * certificates are also base64-encoded and appear each on their own
      * line. A length of -1 is used to encode a null array.
+     *
+     * <p>If the body is stored compressed, the last line names the codec
+     * that compressed it. Otherwise the body is stored as it was received.
      */
-    public Entry(Source in) throws IOException {
-      try {
-        BufferedSource source = Okio.buffer(in);
-        url = source.readUtf8LineStrict();
-        requestMethod = source.readUtf8LineStrict();
-        Headers.Builder varyHeadersBuilder = new Headers.Builder();
-        int varyRequestHeaderLineCount = readInt(source);
-        for (int i = 0; i < varyRequestHeaderLineCount; i++) {
-          varyHeadersBuilder.addLenient(source.readUtf8LineStrict());
-        }
-        varyHeaders = varyHeadersBuilder.build();
-
-        StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
-        protocol = statusLine.protocol;
-        code = statusLine.code;
-        message = statusLine.message;
-        Headers.Builder responseHeadersBuilder = new Headers.Builder();
-        int responseHeaderLineCount = readInt(source);
-        for (int i = 0; i < responseHeaderLineCount; i++) {
-          responseHeadersBuilder.addLenient(source.readUtf8LineStrict());
-        }
-        responseHeaders = responseHeadersBuilder.build();
+    public Entry(String url, BufferedSource source) throws IOException {
+      this.url = url;
+      requestMethod = source.readUtf8LineStrict();
+      Headers.Builder varyHeadersBuilder = new Headers.Builder();
+      int varyRequestHeaderLineCount = readInt(source);
+      for (int i = 0; i < varyRequestHeaderLineCount; i++) {
+        varyHeadersBuilder.addLenient(source.readUtf8LineStrict());
+      }
+      varyHeaders = varyHeadersBuilder.build();
+
+      StatusLine statusLine = StatusLine.parse(source.readUtf8LineStrict());
+      protocol = statusLine.protocol;
+      code = statusLine.code;
+      message = statusLine.message;
+      Headers.Builder responseHeadersBuilder = new Headers.Builder();
+      int responseHeaderLineCount = readInt(source);
+      for (int i = 0; i < responseHeaderLineCount; i++) {
+        responseHeadersBuilder.addLenient(source.readUtf8LineStrict());
+      }
+      responseHeaders = responseHeadersBuilder.build();
 
-        if (isHttps()) {
-          String blank = source.readUtf8LineStrict();
-          if (blank.length() > 0) {
-            throw new IOException("expected \"\" but was \"" + blank + "\"");
-          }
-          String cipherSuite = source.readUtf8LineStrict();
-          List<Certificate> peerCertificates = readCertificateList(source);
-          List<Certificate> localCertificates = readCertificateList(source);
-          handshake = Handshake.get(cipherSuite, peerCertificates, localCertificates);
-        } else {
-          handshake = null;
+      if (isHttps()) {
+        String blank = source.readUtf8LineStrict();
+        if (blank.length() > 0) {
+          throw new IOException("expected \"\" but was \"" + blank + "\"");
         }
-      } finally {
-        in.close();
+        String cipherSuite = source.readUtf8LineStrict();
+        List<Certificate> peerCertificates = readCertificateList(source);
+        List<Certificate> localCertificates = readCertificateList(source);
+        handshake = Handshake.get(cipherSuite, peerCertificates, localCertificates);
+      } else {
+        handshake = null;
+      }
+
+      bodyCodec = source.exhausted() ? null : source.readUtf8LineStrict();
+      if (bodyCodec != null && !bodyCodec.equals(CODEC_DEFLATE)) {
+        throw new IOException("unexpected body codec: " + bodyCodec);
       }
     }
 
-    public Entry(Response response) {
+    public Entry(Response response, String bodyCodec) {
       this.url = response.request().urlString();
       this.varyHeaders = OkHeaders.varyHeaders(response);
       this.requestMethod = response.request().method();
@@ -572,6 +1293,7 @@ public final class Cache {
       this.message = response.message();
       this.responseHeaders = response.headers();
       this.handshake = response.handshake();
+      this.bodyCodec = bodyCodec;
     }
 
     public void writeTo(DiskLruCache.Editor editor) throws IOException {
@@ -608,6 +1330,11 @@ public final class Cache {
         writeCertList(sink, handshake.peerCertificates());
         writeCertList(sink, handshake.localCertificates());
       }
+
+      if (bodyCodec != null) {
+        sink.writeUtf8(bodyCodec);
+        sink.writeByte('\n');
+      }
       sink.close();
     }
 
@@ -656,9 +1383,19 @@ public final class Cache {
           && OkHeaders.varyMatches(response, varyHeaders, request);
     }
 
-    public Response response(Request request, DiskLruCache.Snapshot snapshot) {
-      String contentType = responseHeaders.get("Content-Type");
-      String contentLength = responseHeaders.get("Content-Length");
+    /** Returns an estimate of the bytes retained by this entry. Certificates aren't counted. */
+    public long retainedSize() {
+      long result = url.length() + requestMethod.length() + message.length();
+      for (int i = 0, size = varyHeaders.size(); i < size; i++) {
+        result += varyHeaders.name(i).length() + varyHeaders.value(i).length();
+      }
+      for (int i = 0, size = responseHeaders.size(); i < size; i++) {
+        result += responseHeaders.name(i).length() + responseHeaders.value(i).length();
+      }
+      return result * 2; // Java strings use 2 bytes per char.
+    }
+
+    public Response response(ResponseBody body) {
       Request cacheRequest = new Request.Builder()
           .url(url)
           .method(requestMethod, null)
@@ -670,7 +1407,7 @@ public final class Cache {
           .code(code)
           .message(message)
           .headers(responseHeaders)
-          .body(new CacheResponseBody(snapshot, contentType, contentLength))
+          .body(body)
           .handshake(handshake)
           .build();
     }
@@ -692,16 +1429,17 @@ public final class Cache {
   private static class CacheResponseBody extends ResponseBody {
     private final DiskLruCache.Snapshot snapshot;
     private final BufferedSource bodySource;
+    private final String bodyCodec;
     private final String contentType;
     private final String contentLength;
 
-    public CacheResponseBody(final DiskLruCache.Snapshot snapshot,
-        String contentType, String contentLength) {
+    public CacheResponseBody(final DiskLruCache.Snapshot snapshot, Source source,
+        String bodyCodec, String contentType, String contentLength) {
       this.snapshot = snapshot;
+      this.bodyCodec = bodyCodec;
       this.contentType = contentType;
       this.contentLength = contentLength;
 
-      Source source = snapshot.getSource(ENTRY_BODY);
       bodySource = Okio.buffer(new ForwardingSource(source) {
         @Override public void close() throws IOException {
           snapshot.close();
@@ -726,4 +1464,307 @@ public final class Cache {
       return bodySource;
     }
   }
+
+  /**
+   * The variants stored for a URL whose responses vary on request headers. This is stored as an
+   * entry under the URL's own key, with an empty body: <pre>{@code
+   *   OkHttp-Variants
+   *   Accept-Encoding, Accept-Language
+   *   2
+   *   8f14e45fceea167a5a36dedd4bea2543-1c383cd30b7c298a 3042
+   *   8f14e45fceea167a5a36dedd4bea2543-c4ca4238a0b92382 2917
+   * }</pre>
+   * After the marker line are the names of the request headers that select a variant, the number
+   * of variants, and the key and body size of each variant, least recently used first.
+   */
+  private static final class Variants {
+    private final Set<String> varyFields;
+
+    /** Body sizes keyed by variant key, in access order. */
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(0, 0.75f, true);
+    private long size;
+
+    Variants(Set<String> varyFields) {
+      this.varyFields = varyFields;
+    }
+
+    /** Copies {@code variants}, keeping its access order. */
+    Variants(Variants variants) {
+      this.varyFields = variants.varyFields;
+      this.sizes.putAll(variants.sizes);
+      this.size = variants.size;
+    }
+
+    /** Reads an index whose marker line has already been read from {@code source}. */
+    Variants(BufferedSource source) throws IOException {
+      Set<String> varyFields = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+      for (String varyField : source.readUtf8LineStrict().split(",")) {
+        varyFields.add(varyField.trim());
+      }
+      this.varyFields = varyFields;
+
+      int variantCount = readInt(source);
+      for (int i = 0; i < variantCount; i++) {
+        String line = source.readUtf8LineStrict();
+        int space = line.indexOf(' ');
+        if (space == -1) throw new IOException("unexpected variant: " + line);
+        try {
+          put(line.substring(0, space), Long.parseLong(line.substring(space + 1)));
+        } catch (NumberFormatException e) {
+          throw new IOException("unexpected variant: " + line);
+        }
+      }
+    }
+
+    void put(String variantKey, long variantSize) {
+      Long previous = sizes.remove(variantKey);
+      if (previous != null) size -= previous;
+      sizes.put(variantKey, variantSize);
+      size += variantSize;
+    }
+
+    void writeTo(DiskLruCache.Editor editor) throws IOException {
+      BufferedSink sink = Okio.buffer(editor.newSink(ENTRY_METADATA));
+      sink.writeUtf8(VARIANTS_MARKER);
+      sink.writeByte('\n');
+      boolean first = true;
+      for (String varyField : varyFields) {
+        if (!first) sink.writeUtf8(", ");
+        sink.writeUtf8(varyField);
+        first = false;
+      }
+      sink.writeByte('\n');
+      sink.writeDecimalLong(sizes.size());
+      sink.writeByte('\n');
+      for (Map.Entry<String, Long> variant : sizes.entrySet()) {
+        sink.writeUtf8(variant.getKey());
+        sink.writeByte(' ');
+        sink.writeDecimalLong(variant.getValue());
+        sink.writeByte('\n');
+      }
+      sink.close();
+      editor.newSink(ENTRY_BODY).close();
+    }
+  }
+
+  /** Compresses a body with raw deflate as it is written to the cache. */
+  private final class DeflatingSink implements Sink {
+    private final Sink sink;
+    private final Buffer deflated = new Buffer();
+    private final DeflaterSink deflaterSink =
+        new DeflaterSink(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private long uncompressedSize;
+    private long compressedSize;
+    private long nanos;
+    private boolean closed;
+
+    DeflatingSink(Sink sink) {
+      this.sink = sink;
+    }
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      long start = System.nanoTime();
+      deflaterSink.write(source, byteCount);
+      nanos += System.nanoTime() - start;
+      uncompressedSize += byteCount;
+      emitDeflated();
+    }
+
+    private void emitDeflated() throws IOException {
+      long byteCount = deflated.size();
+      if (byteCount == 0) return;
+      compressedSize += byteCount;
+      sink.write(deflated, byteCount);
+    }
+
+    @Override public void flush() throws IOException {
+      sink.flush(); // Don't flush the deflater; that would hurt compression.
+    }
+
+    @Override public Timeout timeout() {
+      return sink.timeout();
+    }
+
+    @Override public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      try {
+        long start = System.nanoTime();
+        deflaterSink.close(); // Finishes the deflate stream.
+        nanos += System.nanoTime() - start;
+        emitDeflated();
+      } finally {
+        sink.close();
+        trackCompression(uncompressedSize, compressedSize, nanos);
+      }
+    }
+  }
+
+  /** Decompresses a body that was stored with raw deflate. */
+  private final class InflatingSource implements Source {
+    private final InflaterSource inflaterSource;
+    private long nanos;
+    private boolean closed;
+
+    InflatingSource(Source source) {
+      this.inflaterSource = new InflaterSource(source, new Inflater(true));
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      long start = System.nanoTime();
+      try {
+        return inflaterSource.read(sink, byteCount);
+      } finally {
+        nanos += System.nanoTime() - start;
+      }
+    }
+
+    @Override public Timeout timeout() {
+      return inflaterSource.timeout();
+    }
+
+    @Override public void close() throws IOException {
+      if (closed) return;
+      closed = true;
+      trackDecompression(nanos);
+      inflaterSource.close();
+    }
+  }
+
+  /** A parsed entry with its body, held in memory. */
+  private static final class MemoryEntry {
+    private final String key;
+    private final Entry entry;
+    private final ByteString body;
+    private final long size;
+
+    MemoryEntry(String key, Entry entry, ByteString body) {
+      this.key = key;
+      this.entry = entry;
+      this.body = body;
+      this.size = body.size() + entry.retainedSize();
+    }
+  }
+
+  /**
+   * A least-recently-used set of memory entries, bounded by their total size. Each change
+   * increments a generation so that entries read from the filesystem aren't promoted after a
+   * concurrent write has made them stale.
+   */
+  private static final class MemoryCache {
+    private final long maxSize;
+    private final LinkedHashMap<String, MemoryEntry> entries =
+        new LinkedHashMap<>(0, 0.75f, true);
+    private long size;
+    private long generation;
+
+    MemoryCache(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized MemoryEntry get(String key) {
+      return entries.get(key);
+    }
+
+    synchronized long generation() {
+      return generation;
+    }
+
+    synchronized long size() {
+      return size;
+    }
+
+    synchronized void put(MemoryEntry memoryEntry) {
+      remove(memoryEntry.key);
+      if (memoryEntry.size > maxSize) return;
+      entries.put(memoryEntry.key, memoryEntry);
+      size += memoryEntry.size;
+      trimToSize();
+    }
+
+    /** Puts {@code memoryEntry} unless the cache has changed since {@code generation}. */
+    synchronized void putIfCurrent(MemoryEntry memoryEntry, long generation) {
+      if (this.generation == generation) put(memoryEntry);
+    }
+
+    synchronized void remove(String key) {
+      generation++;
+      MemoryEntry removed = entries.remove(key);
+      if (removed != null) size -= removed.size;
+    }
+
+    synchronized void evictAll() {
+      generation++;
+      entries.clear();
+      size = 0L;
+    }
+
+    private void trimToSize() {
+      for (Iterator<MemoryEntry> i = entries.values().iterator(); size > maxSize; ) {
+        size -= i.next().size;
+        i.remove();
+      }
+    }
+  }
+
+  private static class MemoryResponseBody extends ResponseBody {
+    private final MemoryEntry memoryEntry;
+    private final BufferedSource bodySource;
+    private final String contentType;
+    private final String contentLength;
+
+    public MemoryResponseBody(MemoryEntry memoryEntry, String contentType, String contentLength) {
+      this.memoryEntry = memoryEntry;
+      this.contentType = contentType;
+      this.contentLength = contentLength;
+      this.bodySource = new Buffer().write(memoryEntry.body);
+    }
+
+    @Override public MediaType contentType() {
+      return contentType != null ? MediaType.parse(contentType) : null;
+    }
+
+    @Override public long contentLength() {
+      try {
+        return contentLength != null ? Long.parseLong(contentLength) : -1;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+
+    @Override public BufferedSource source() {
+      return bodySource;
+    }
+  }
+
+  /** Policies that choose which responses to evict when the cache is full. */
+  public enum Eviction {
+    /** Evict the least recently used response. */
+    LRU,
+
+    /**
+     * Evict responses that have been used once before responses that have been used again. This
+     * keeps popular responses when many responses are fetched once, such as during a scan.
+     */
+    SEGMENTED_LRU,
+
+    /**
+     * Store a new response only if it is likely to be used more often, per byte, than the response
+     * it displaces. Use frequencies are estimated from recent requests, and responses that are
+     * stored are evicted as with {@link #SEGMENTED_LRU}. This favors small popular responses over
+     * large responses that are fetched once.
+     */
+    TINY_LFU;
+
+    EvictionPolicy newPolicy() {
+      switch (this) {
+        case SEGMENTED_LRU:
+          return EvictionPolicy.segmentedLru(0.8f);
+        case TINY_LFU:
+          return EvictionPolicy.tinyLfu();
+        default:
+          return EvictionPolicy.lru();
+      }
+    }
+  }
 }
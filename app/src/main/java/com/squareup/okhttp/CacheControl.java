@@ -1,6 +1,8 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.http.HeaderParser;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,6 +32,17 @@ public final class CacheControl {
       .maxStale(Integer.MAX_VALUE, TimeUnit.SECONDS)
       .build();
 
+  /** The number of distinct Cache-Control values to retain. Most applications see only a few. */
+  private static final int INTERN_CACHE_SIZE = 64;
+
+  /** Recently parsed directives by their Cache-Control header value. Guarded by itself. */
+  private static final Map<String, CacheControl> INTERNED =
+      new LinkedHashMap<String, CacheControl>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, CacheControl> eldest) {
+          return size() > INTERN_CACHE_SIZE;
+        }
+      };
+
   private final boolean noCache;
   private final boolean noStore;
   private final int maxAgeSeconds;
@@ -41,12 +54,15 @@ public final class CacheControl {
   private final int minFreshSeconds;
   private final boolean onlyIfCached;
   private final boolean noTransform;
+  private final int staleWhileRevalidateSeconds;
+  private final int staleIfErrorSeconds;
 
   String headerValue; // Lazily computed, if absent.
 
   private CacheControl(boolean noCache, boolean noStore, int maxAgeSeconds, int sMaxAgeSeconds,
       boolean isPrivate, boolean isPublic, boolean mustRevalidate, int maxStaleSeconds,
-      int minFreshSeconds, boolean onlyIfCached, boolean noTransform, String headerValue) {
+      int minFreshSeconds, boolean onlyIfCached, boolean noTransform,
+      int staleWhileRevalidateSeconds, int staleIfErrorSeconds, String headerValue) {
     this.noCache = noCache;
     this.noStore = noStore;
     this.maxAgeSeconds = maxAgeSeconds;
@@ -58,6 +74,8 @@ public final class CacheControl {
     this.minFreshSeconds = minFreshSeconds;
     this.onlyIfCached = onlyIfCached;
     this.noTransform = noTransform;
+    this.staleWhileRevalidateSeconds = staleWhileRevalidateSeconds;
+    this.staleIfErrorSeconds = staleIfErrorSeconds;
     this.headerValue = headerValue;
   }
 
@@ -73,6 +91,8 @@ public final class CacheControl {
     this.minFreshSeconds = builder.minFreshSeconds;
     this.onlyIfCached = builder.onlyIfCached;
     this.noTransform = builder.noTransform;
+    this.staleWhileRevalidateSeconds = -1;
+    this.staleIfErrorSeconds = -1;
   }
 
   /**
@@ -144,11 +164,58 @@ public final class CacheControl {
     return noTransform;
   }
 
+  /**
+   * The duration past a response's freshness lifetime that it may be served
+   * while it is revalidated in the background, or -1 if it may not. See <a
+   * href="http://tools.ietf.org/html/rfc5861">RFC 5861</a>.
+   */
+  public int staleWhileRevalidateSeconds() {
+    return staleWhileRevalidateSeconds;
+  }
+
+  /**
+   * The duration past a response's freshness lifetime that it may be served
+   * when revalidating it fails with an I/O error or a server error, or -1 if it
+   * may not.
+   */
+  public int staleIfErrorSeconds() {
+    return staleIfErrorSeconds;
+  }
+
   /**
    * Returns the cache directives of {@code headers}. This honors both
    * Cache-Control and Pragma headers if they are present.
+   *
+   * <p>Headers with a single Cache-Control header and no Pragma header share instances with other
+   * headers that have the same value.
    */
   public static CacheControl parse(Headers headers) {
+    String headerValue = null;
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      String name = headers.name(i);
+      if (name.equalsIgnoreCase("Cache-Control")) {
+        if (headerValue != null) return parseUncached(headers);
+        headerValue = headers.value(i);
+      } else if (name.equalsIgnoreCase("Pragma")) {
+        return parseUncached(headers);
+      }
+    }
+    if (headerValue == null) return parseUncached(headers);
+
+    CacheControl result;
+    synchronized (INTERNED) {
+      result = INTERNED.get(headerValue);
+    }
+    if (result != null) return result;
+
+    result = parseUncached(headers);
+    synchronized (INTERNED) {
+      INTERNED.put(headerValue, result);
+    }
+    return result;
+  }
+
+  private static CacheControl parseUncached(Headers headers) {
     boolean noCache = false;
     boolean noStore = false;
     int maxAgeSeconds = -1;
@@ -160,6 +227,8 @@ public final class CacheControl {
     int minFreshSeconds = -1;
     boolean onlyIfCached = false;
     boolean noTransform = false;
+    int staleWhileRevalidateSeconds = -1;
+    int staleIfErrorSeconds = -1;
 
     boolean canUseHeaderValue = true;
     String headerValue = null;
@@ -234,6 +303,10 @@ public final class CacheControl {
           onlyIfCached = true;
         } else if ("no-transform".equalsIgnoreCase(directive)) {
           noTransform = true;
+        } else if ("stale-while-revalidate".equalsIgnoreCase(directive)) {
+          staleWhileRevalidateSeconds = HeaderParser.parseSeconds(parameter, -1);
+        } else if ("stale-if-error".equalsIgnoreCase(directive)) {
+          staleIfErrorSeconds = HeaderParser.parseSeconds(parameter, -1);
         }
       }
     }
@@ -242,7 +315,8 @@ public final class CacheControl {
       headerValue = null;
     }
     return new CacheControl(noCache, noStore, maxAgeSeconds, sMaxAgeSeconds, isPrivate, isPublic,
-        mustRevalidate, maxStaleSeconds, minFreshSeconds, onlyIfCached, noTransform, headerValue);
+        mustRevalidate, maxStaleSeconds, minFreshSeconds, onlyIfCached, noTransform,
+        staleWhileRevalidateSeconds, staleIfErrorSeconds, headerValue);
   }
 
   @Override public String toString() {
@@ -263,6 +337,12 @@ public final class CacheControl {
     if (minFreshSeconds != -1) result.append("min-fresh=").append(minFreshSeconds).append(", ");
     if (onlyIfCached) result.append("only-if-cached, ");
     if (noTransform) result.append("no-transform, ");
+    if (staleWhileRevalidateSeconds != -1) {
+      result.append("stale-while-revalidate=").append(staleWhileRevalidateSeconds).append(", ");
+    }
+    if (staleIfErrorSeconds != -1) {
+      result.append("stale-if-error=").append(staleIfErrorSeconds).append(", ");
+    }
     if (result.length() == 0) return "";
     result.delete(result.length() - 2, result.length());
     return result.toString();
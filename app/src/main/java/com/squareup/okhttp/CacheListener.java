@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+/**
+ * Receives events from a {@link Cache} as they happen, such as to export them to a metrics system.
+ * Every method does nothing by default; override those of interest.
+ *
+ * <p>Methods are called on the thread that caused the event, which may be a call's thread or one
+ * of the cache's background threads, and sometimes while the cache holds a lock. Implementations
+ * must be thread safe and should return quickly.
+ */
+public abstract class CacheListener {
+  /**
+   * Called when the cache is searched for a response to {@code request}. {@code hit} is true if a
+   * response was found, though it may be stale.
+   */
+  public void lookup(Request request, boolean hit, long nanos) {
+  }
+
+  /** Called when a response to {@code request} is served by the cache without using the network. */
+  public void cacheHit(Request request, long bodyByteCount) {
+  }
+
+  /**
+   * Called when {@code request} requires the network. {@code conditional} is true if it validates
+   * a stale cached response.
+   */
+  public void networkRequest(Request request, boolean conditional) {
+  }
+
+  /** Called when a conditional request's cached response is valid and is served. */
+  public void conditionalHit(Request request, long bodyByteCount) {
+  }
+
+  /** Called when a response to {@code request} has been written to the cache, or failed to be. */
+  public void write(Request request, boolean success, long bodyByteCount) {
+  }
+
+  /** Called when a response is removed from the cache. */
+  public void eviction(CacheStats.EvictionReason reason) {
+  }
+
+  /** Called when the cache's journal has been compacted. */
+  public void journalRebuilt(long nanos) {
+  }
+}
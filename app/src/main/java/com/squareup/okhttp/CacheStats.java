@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of a {@link Cache}, suitable for export to a metrics system. Counters are updated
+ * without locks and may be read at any time; values read together are not a consistent snapshot.
+ */
+public final class CacheStats {
+  /** Hosts beyond this many are counted in the totals only. */
+  private static final int MAX_HOSTS = 256;
+
+  /** Why a response was removed from the cache. */
+  public enum EvictionReason {
+    /** The cache was over its maximum size. */
+    SIZE,
+
+    /** Its URL had too many variants, or its URL's response stopped varying on its headers. */
+    VARIANT,
+
+    /** A request such as a {@code POST} invalidated its URL. */
+    INVALIDATED
+  }
+
+  final AtomicLong requestCount = new AtomicLong();
+  final AtomicLong networkCount = new AtomicLong();
+  final AtomicLong hitCount = new AtomicLong();
+  final AtomicLong conditionalRequestCount = new AtomicLong();
+  final AtomicLong conditionalHitCount = new AtomicLong();
+  final AtomicLong hitByteCount = new AtomicLong();
+  final AtomicLong writeSuccessCount = new AtomicLong();
+  final AtomicLong writeAbortCount = new AtomicLong();
+  final AtomicLong writeByteCount = new AtomicLong();
+  private final AtomicLongArray evictionCounts = new AtomicLongArray(
+      EvictionReason.values().length);
+  private final ConcurrentMap<String, HostStats> hosts = new ConcurrentHashMap<>();
+
+  private final Histogram readLatency = new Histogram();
+  private final Histogram writeLatency = new Histogram();
+  private final Histogram journalRebuildLatency = new Histogram();
+
+  CacheStats() {
+  }
+
+  /** Returns the number of HTTP requests issued since the cache was created. */
+  public long requestCount() {
+    return requestCount.get();
+  }
+
+  /** Returns the number of requests that required network use, including conditional requests. */
+  public long networkCount() {
+    return networkCount.get();
+  }
+
+  /** Returns the number of requests whose responses were served by the cache. */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of conditional requests made to validate a stale cached response. */
+  public long conditionalRequestCount() {
+    return conditionalRequestCount.get();
+  }
+
+  /** Returns the number of conditional requests whose cached response was still valid. */
+  public long conditionalHitCount() {
+    return conditionalHitCount.get();
+  }
+
+  /**
+   * Returns the number of cached response body bytes served, including for conditional hits. Bytes
+   * of bodies whose length isn't known aren't counted. Compare this with {@link #writeByteCount}
+   * for the byte hit rate.
+   */
+  public long hitByteCount() {
+    return hitByteCount.get();
+  }
+
+  /** Returns the number of responses written to the cache. */
+  public long writeSuccessCount() {
+    return writeSuccessCount.get();
+  }
+
+  /** Returns the number of responses that started to be written to the cache but weren't. */
+  public long writeAbortCount() {
+    return writeAbortCount.get();
+  }
+
+  /** Returns the number of response body bytes received from the network and cached. */
+  public long writeByteCount() {
+    return writeByteCount.get();
+  }
+
+  /** Returns the number of responses removed from the cache for {@code reason}. */
+  public long evictionCount(EvictionReason reason) {
+    return evictionCounts.get(reason.ordinal());
+  }
+
+  /** Returns the hosts whose conditional requests are counted separately. */
+  public Set<String> hosts() {
+    return Collections.unmodifiableSet(hosts.keySet());
+  }
+
+  /** Returns the number of conditional requests made to {@code host}. */
+  public long conditionalRequestCount(String host) {
+    HostStats hostStats = hosts.get(host);
+    return hostStats != null ? hostStats.conditionalRequestCount.get() : 0L;
+  }
+
+  /** Returns the number of conditional requests to {@code host} whose cached response was valid. */
+  public long conditionalHitCount(String host) {
+    HostStats hostStats = hosts.get(host);
+    return hostStats != null ? hostStats.conditionalHitCount.get() : 0L;
+  }
+
+  /** Returns the latencies of looking up responses in the cache. */
+  public Histogram readLatency() {
+    return readLatency;
+  }
+
+  /** Returns the latencies of committing responses to the filesystem. */
+  public Histogram writeLatency() {
+    return writeLatency;
+  }
+
+  /** Returns the latencies of compacting the cache's journal. */
+  public Histogram journalRebuildLatency() {
+    return journalRebuildLatency;
+  }
+
+  void trackConditionalRequest(String host) {
+    conditionalRequestCount.incrementAndGet();
+    HostStats hostStats = hostStats(host);
+    if (hostStats != null) hostStats.conditionalRequestCount.incrementAndGet();
+  }
+
+  void trackConditionalHit(String host) {
+    conditionalHitCount.incrementAndGet();
+    HostStats hostStats = hostStats(host);
+    if (hostStats != null) hostStats.conditionalHitCount.incrementAndGet();
+  }
+
+  void trackEviction(EvictionReason reason) {
+    evictionCounts.incrementAndGet(reason.ordinal());
+  }
+
+  /** Returns the stats of {@code host}, or null if too many hosts are already tracked. */
+  private HostStats hostStats(String host) {
+    HostStats result = hosts.get(host);
+    if (result != null || hosts.size() >= MAX_HOSTS) return result;
+    HostStats created = new HostStats();
+    result = hosts.putIfAbsent(host, created);
+    return result != null ? result : created;
+  }
+
+  private static final class HostStats {
+    final AtomicLong conditionalRequestCount = new AtomicLong();
+    final AtomicLong conditionalHitCount = new AtomicLong();
+  }
+
+  /**
+   * A histogram of durations. Bucket {@code i} counts durations of at least {@code 2^(i-1)} and
+   * less than {@code 2^i} nanoseconds; bucket 0 counts durations of 0 nanoseconds.
+   */
+  public static final class Histogram {
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    Histogram() {
+    }
+
+    void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+    }
+
+    /** Returns the number of durations recorded. */
+    public long count() {
+      return count.get();
+    }
+
+    /** Returns the sum of the durations recorded, in nanoseconds. */
+    public long totalNanos() {
+      return totalNanos.get();
+    }
+
+    public int bucketCount() {
+      return BUCKET_COUNT;
+    }
+
+    /** Returns the number of durations recorded in {@code bucket}. */
+    public long count(int bucket) {
+      return buckets.get(bucket);
+    }
+
+    /** Returns the exclusive upper bound of the durations in {@code bucket}, in nanoseconds. */
+    public long upperBoundNanos(int bucket) {
+      return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Returns an upper bound of the {@code percentile}th duration, in nanoseconds, or 0 if no
+     * durations were recorded. This is within a factor of 2 of the exact value.
+     */
+    public long percentileNanos(double percentile) {
+      if (percentile < 0.0 || percentile > 100.0) {
+        throw new IllegalArgumentException("percentile < 0 || percentile > 100: " + percentile);
+      }
+      long[] counts = new long[BUCKET_COUNT];
+      long total = 0L;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      if (total == 0L) return 0L;
+
+      long rank = (long) Math.ceil(total * percentile / 100.0);
+      long seen = 0L;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += counts[i];
+        if (seen >= rank && seen > 0L) return upperBoundNanos(i);
+      }
+      return upperBoundNanos(BUCKET_COUNT - 1);
+    }
+  }
+}
@@ -43,6 +43,9 @@ public class Call {
   Request originalRequest;
   HttpEngine engine;
 
+  /** When this call was enqueued, if it has an event listener. */
+  private long enqueuedAtNanos;
+
   protected Call(OkHttpClient client, Request originalRequest) {
     // Copy the client. Otherwise changes (socket factory, redirect policy,
     // etc.) may incorrectly be reflected in the request when it is executed.
@@ -75,11 +78,26 @@ public class Call {
       if (executed) throw new IllegalStateException("Already Executed");
       executed = true;
     }
+    EventListener eventListener = client.getEventListener();
+    long startNanos = 0L;
+    if (eventListener != EventListener.NONE) {
+      startNanos = System.nanoTime();
+      eventListener.callStart(this);
+      eventListener.callDispatched(this, 0L);
+    }
     try {
       client.getDispatcher().executed(this);
       Response result = getResponseWithInterceptorChain(false);
       if (result == null) throw new IOException("Canceled");
+      if (eventListener != EventListener.NONE) {
+        eventListener.callEnd(this, System.nanoTime() - startNanos);
+      }
       return result;
+    } catch (IOException e) {
+      if (eventListener != EventListener.NONE) {
+        eventListener.callFailed(this, e, System.nanoTime() - startNanos);
+      }
+      throw e;
     } finally {
       client.getDispatcher().finished(this);
     }
@@ -111,6 +129,11 @@ public class Call {
       if (executed) throw new IllegalStateException("Already Executed");
       executed = true;
     }
+    EventListener eventListener = client.getEventListener();
+    if (eventListener != EventListener.NONE) {
+      enqueuedAtNanos = System.nanoTime();
+      eventListener.callStart(this);
+    }
     client.getDispatcher().enqueue(new AsyncCall(responseCallback, forWebSocket));
   }
 
@@ -167,16 +190,32 @@ public class Call {
 
     @Override protected void execute() {
       boolean signalledCallback = false;
+      EventListener eventListener = client.getEventListener();
+      long startNanos = 0L;
+      if (eventListener != EventListener.NONE) {
+        startNanos = System.nanoTime();
+        eventListener.callDispatched(Call.this, startNanos - enqueuedAtNanos);
+      }
       try {
         Response response = getResponseWithInterceptorChain(forWebSocket);
         if (canceled) {
+          IOException canceledException = new IOException("Canceled");
+          if (eventListener != EventListener.NONE) {
+            eventListener.callFailed(Call.this, canceledException, System.nanoTime() - startNanos);
+          }
           signalledCallback = true;
-          responseCallback.onFailure(originalRequest, new IOException("Canceled"));
+          responseCallback.onFailure(originalRequest, canceledException);
         } else {
+          if (eventListener != EventListener.NONE) {
+            eventListener.callEnd(Call.this, System.nanoTime() - startNanos);
+          }
           signalledCallback = true;
           responseCallback.onResponse(response);
         }
       } catch (IOException e) {
+        if (!signalledCallback && eventListener != EventListener.NONE) {
+          eventListener.callFailed(Call.this, e, System.nanoTime() - startNanos);
+        }
         if (signalledCallback) {
           // Do not signal the callback twice!
           logger.log(Level.INFO, "Callback failure for " + toLoggableString(), e);
@@ -273,6 +312,7 @@ public class Call {
 
     // Create the initial HTTP engine. Retries and redirects need new engine for each attempt.
     engine = new HttpEngine(client, request, false, false, forWebSocket, null, null, null);
+    engine.streamAllocation.setEventListener(this, client.getEventListener());
 
     int followUpCount = 0;
     while (true) {
@@ -297,7 +337,9 @@ public class Call {
           engine = retryEngine;
           continue;
         }
-        // Give up; recovery is not possible.
+        // Give up; recovery is not possible. Serve a stale response if that's permitted.
+        Response staleResponse = engine.staleIfErrorResponse();
+        if (staleResponse != null) return staleResponse;
         throw e.getLastConnectException();
       } catch (IOException e) {
         // An attempt to communicate with a server failed. The request may have been sent.
@@ -308,7 +350,9 @@ public class Call {
           continue;
         }
 
-        // Give up; recovery is not possible.
+        // Give up; recovery is not possible. Serve a stale response if that's permitted.
+        Response staleResponse = engine.staleIfErrorResponse();
+        if (staleResponse != null) return staleResponse;
         throw e;
       } finally {
         // We're throwing an unchecked exception. Release any resources.
@@ -343,6 +387,7 @@ public class Call {
       request = followUp;
       engine = new HttpEngine(client, request, false, false, forWebSocket, streamAllocation, null,
           response);
+      engine.streamAllocation.setEventListener(this, client.getEventListener());
     }
   }
 }
@@ -19,6 +19,7 @@ package com.squareup.okhttp;
 import com.squareup.okhttp.internal.Internal;
 import com.squareup.okhttp.internal.RouteDatabase;
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.framed.FramedConnection;
 import com.squareup.okhttp.internal.http.StreamAllocation;
 import com.squareup.okhttp.internal.io.RealConnection;
 import java.lang.ref.Reference;
@@ -88,6 +89,12 @@ public final class ConnectionPool {
   /** The maximum number of idle connections for each address. */
   private final int maxIdleConnections;
   private final long keepAliveDurationNs;
+
+  /**
+   * The fraction of a multiplexed connection's concurrent stream limit that may be used before new
+   * streams are sent on another connection to the same address.
+   */
+  private final float maxStreamUtilization;
   private Runnable cleanupRunnable = new Runnable() {
     @Override public void run() {
       while (true) {
@@ -115,13 +122,32 @@ public final class ConnectionPool {
   }
 
   public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+    this(maxIdleConnections, keepAliveDuration, timeUnit, 1f);
+  }
+
+  /**
+   * Create a pool that spreads streams over multiple HTTP/2 and SPDY connections to the same
+   * address. Once a multiplexed connection carries {@code maxStreamUtilization} of the streams
+   * its peer permits, new streams go to the least-loaded connection below that threshold, or to a
+   * new connection if there isn't one. Extra connections are closed as soon as they become idle.
+   *
+   * @param maxStreamUtilization a fraction in (0, 1]. Use 1 to fill each connection up to the
+   *     peer's {@code MAX_CONCURRENT_STREAMS} setting.
+   */
+  public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+      float maxStreamUtilization) {
     this.maxIdleConnections = maxIdleConnections;
     this.keepAliveDurationNs = timeUnit.toNanos(keepAliveDuration);
+    this.maxStreamUtilization = maxStreamUtilization;
 
     // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
     if (keepAliveDuration <= 0) {
       throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDuration);
     }
+    if (!(maxStreamUtilization > 0f && maxStreamUtilization <= 1f)) {
+      throw new IllegalArgumentException(
+          "maxStreamUtilization <= 0 || maxStreamUtilization > 1: " + maxStreamUtilization);
+    }
   }
 
   public static ConnectionPool getDefault() {
@@ -167,20 +193,38 @@ public final class ConnectionPool {
     return connections.size() - getMultiplexedConnectionCount();
   }
 
-  /** Returns a recycled connection to {@code address}, or null if no such connection exists. */
+  /**
+   * Returns a recycled connection to {@code address}, or null if no such connection exists. If
+   * several multiplexed connections have capacity, this returns the one carrying the fewest
+   * streams.
+   */
   RealConnection get(Address address, StreamAllocation streamAllocation) {
     assert (Thread.holdsLock(this));
+    RealConnection result = null;
     for (RealConnection connection : connections) {
       // TODO(jwilson): this is awkward. We're already holding a lock on 'this', and
       //     connection.allocationLimit() may also lock the FramedConnection.
-      if (connection.allocations.size() < connection.allocationLimit()
+      int allocationCount = connection.allocations.size();
+      if (allocationCount < streamLimit(connection)
           && address.equals(connection.getRoute().address)
-          && !connection.noNewStreams) {
-        streamAllocation.acquire(connection);
-        return connection;
+          && !refusesNewStreams(connection)
+          && (result == null || allocationCount < result.allocations.size())) {
+        result = connection;
+        if (allocationCount == 0) break; // Can't do better than an idle connection.
       }
     }
-    return null;
+    if (result != null) streamAllocation.acquire(result);
+    return result;
+  }
+
+  /**
+   * Returns the number of streams {@code connection} should carry before new streams are sent to
+   * another connection.
+   */
+  private int streamLimit(RealConnection connection) {
+    int allocationLimit = connection.allocationLimit();
+    if (!connection.isMultiplexed() || maxStreamUtilization == 1f) return allocationLimit;
+    return Math.max(1, (int) Math.ceil(allocationLimit * (double) maxStreamUtilization));
   }
 
   void put(RealConnection connection) {
@@ -197,7 +241,7 @@ public final class ConnectionPool {
    */
   boolean connectionBecameIdle(RealConnection connection) {
     assert (Thread.holdsLock(this));
-    if (connection.noNewStreams || maxIdleConnections == 0) {
+    if (refusesNewStreams(connection) || maxIdleConnections == 0 || isExtra(connection)) {
       connections.remove(connection);
       return true;
     } else {
@@ -251,8 +295,11 @@ public final class ConnectionPool {
 
         idleConnectionCount++;
 
-        // If the connection is ready to be evicted, we're done.
-        long idleDurationNs = now - connection.idleAtNanos;
+        // If the connection is ready to be evicted, we're done. A connection that can't carry new
+        // streams, or that was opened to absorb a burst of streams, is evicted immediately.
+        long idleDurationNs = refusesNewStreams(connection) || isExtra(connection)
+            ? Long.MAX_VALUE
+            : now - connection.idleAtNanos;
         if (idleDurationNs > longestIdleDurationNs) {
           longestIdleDurationNs = idleDurationNs;
           longestIdleConnection = connection;
@@ -321,6 +368,40 @@ public final class ConnectionPool {
     return references.size();
   }
 
+  /**
+   * Returns true if {@code connection} may not carry new streams. Multiplexed connections stop
+   * accepting new streams once they've received a {@code GOAWAY} or failed a keepalive ping; their
+   * in-flight streams drain while new streams go to another connection.
+   */
+  private boolean refusesNewStreams(RealConnection connection) {
+    assert (Thread.holdsLock(this));
+    FramedConnection framedConnection = connection.framedConnection;
+    if (framedConnection != null && !framedConnection.isHealthy()) {
+      connection.noNewStreams = true;
+    }
+    return connection.noNewStreams;
+  }
+
+  /**
+   * Returns true if {@code connection} is multiplexed and another multiplexed connection to the
+   * same address can carry its streams. Such connections are opened when a connection's streams
+   * exceed the utilization threshold, and are drained once the burst has passed.
+   */
+  private boolean isExtra(RealConnection connection) {
+    assert (Thread.holdsLock(this));
+    if (!connection.isMultiplexed()) return false;
+    Address address = connection.getRoute().address;
+    for (RealConnection other : connections) {
+      if (other != connection
+          && other.isMultiplexed()
+          && !other.noNewStreams
+          && address.equals(other.getRoute().address)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   void setCleanupRunnableForTest(Runnable cleanupRunnable) {
     this.cleanupRunnable = cleanupRunnable;
   }
@@ -18,13 +18,18 @@ package com.squareup.okhttp;
 import com.squareup.okhttp.Call.AsyncCall;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.HttpEngine;
+import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
 
 /**
  * Policy on when async requests are executed.
@@ -34,6 +39,11 @@ import java.util.concurrent.TimeUnit;
  * configured maximum} number of calls concurrently.
  */
 public final class Dispatcher {
+  /** Forces a conditional request that updates the cached response. */
+  private static final CacheControl REVALIDATE = new CacheControl.Builder()
+      .maxAge(0, TimeUnit.SECONDS)
+      .build();
+
   private int maxRequests = 64;
   private int maxRequestsPerHost = 5;
 
@@ -49,6 +59,9 @@ public final class Dispatcher {
   /** In-flight synchronous calls. Includes canceled calls that haven't finished yet. */
   private final Deque<Call> executedCalls = new ArrayDeque<>();
 
+  /** URLs whose cached responses are being revalidated in the background. */
+  private final Set<String> revalidatingUrls = new HashSet<>();
+
   public Dispatcher(ExecutorService executorService) {
     this.executorService = executorService;
   }
@@ -113,6 +126,49 @@ public final class Dispatcher {
     }
   }
 
+  /**
+   * Revalidates the stale cached response to {@code request} with an async conditional request
+   * that updates the cache. Does nothing if that URL is already being revalidated.
+   */
+  void revalidate(OkHttpClient client, Request request) {
+    final String url = request.urlString();
+    synchronized (this) {
+      if (!revalidatingUrls.add(url)) return;
+    }
+
+    Request revalidation = request.newBuilder()
+        .cacheControl(REVALIDATE)
+        .build();
+    try {
+      client.newCall(revalidation).enqueue(new Callback() {
+        @Override public void onFailure(Request request, IOException e) {
+          finishedRevalidation(url);
+        }
+
+        @Override public void onResponse(Response response) throws IOException {
+          try {
+            // Consume the body so that a changed response is completely written to the cache.
+            BufferedSource source = response.body().source();
+            Buffer buffer = new Buffer();
+            while (source.read(buffer, 8192) != -1) {
+              buffer.clear();
+            }
+          } finally {
+            Util.closeQuietly(response.body());
+            finishedRevalidation(url);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      finishedRevalidation(url);
+      throw e;
+    }
+  }
+
+  private synchronized void finishedRevalidation(String url) {
+    revalidatingUrls.remove(url);
+  }
+
   /** Cancel all calls with the tag {@code tag}. */
   public synchronized void cancel(Object tag) {
     for (AsyncCall call : readyCalls) {
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+/**
+ * Receives the phases of each {@link Call} made by an {@link OkHttpClient} as they happen, such as
+ * to attribute latency in production. Every method does nothing by default; override those of
+ * interest. Methods that end a phase receive its duration in nanoseconds.
+ *
+ * <p>A call's phases are, in order:
+ * <ol>
+ *   <li>{@linkplain #callStart Start} and {@linkplain #callDispatched dispatch}, after waiting in
+ *       the {@linkplain Dispatcher dispatcher}'s queue if the call was enqueued.
+ *   <li>For each attempt, a connection: either one from the pool, or a new one that requires
+ *       {@linkplain #dnsStart DNS}, {@linkplain #connectStart connecting} and possibly a
+ *       {@linkplain #secureConnectStart TLS handshake}.
+ *   <li>Writing the {@linkplain #requestHeadersStart request headers} and {@linkplain
+ *       #requestBodyStart body}, and reading the {@linkplain #responseHeadersStart response
+ *       headers}. The response headers' duration is the time to first byte.
+ *   <li>{@linkplain #callEnd End}, once the response headers are available, or {@linkplain
+ *       #callFailed failure}. The {@linkplain #responseBodyEnd response body} is read afterwards.
+ * </ol>
+ * Redirects, retries and authentication challenges repeat the connection and exchange phases.
+ * Responses served by the cache have no connection or exchange phases.
+ *
+ * <p>One listener receives the events of all calls, possibly on many threads at once. OkHttp holds
+ * no locks while calling it, but the calling thread is the call's own: implementations should
+ * return quickly and be thread safe, such as by updating atomic counters. When no listener is set,
+ * OkHttp doesn't measure phases at all.
+ *
+ * <p>Events are not reported for requests made through {@link java.net.HttpURLConnection}.
+ */
+public abstract class EventListener {
+  /** A listener that ignores all events. This is the default. */
+  public static final EventListener NONE = new EventListener() {
+  };
+
+  /** Invoked when {@code call} is executed or enqueued. */
+  public void callStart(Call call) {
+  }
+
+  /**
+   * Invoked when {@code call} starts running on its thread. {@code queuedNanos} is the time the
+   * call waited for the dispatcher, or 0 if it was executed synchronously.
+   */
+  public void callDispatched(Call call, long queuedNanos) {
+  }
+
+  /** Invoked before {@code domainName} is resolved for a new connection. */
+  public void dnsStart(Call call, String domainName) {
+  }
+
+  /** Invoked when {@code domainName} has been resolved to {@code addresses}. */
+  public void dnsEnd(Call call, String domainName, List<InetAddress> addresses, long nanos) {
+  }
+
+  /** Invoked before a new connection to {@code route} is attempted. */
+  public void connectStart(Call call, Route route) {
+  }
+
+  /** Invoked before the TLS handshake of a new connection to {@code route}. */
+  public void secureConnectStart(Call call, Route route) {
+  }
+
+  /** Invoked when the TLS handshake, including certificate checks, has succeeded. */
+  public void secureConnectEnd(Call call, Route route, Handshake handshake, long nanos) {
+  }
+
+  /** Invoked when a new connection to {@code route} is ready to carry requests. */
+  public void connectEnd(Call call, Route route, Protocol protocol, long nanos) {
+  }
+
+  /**
+   * Invoked when an attempt to connect to {@code route} fails. Another attempt may follow with a
+   * different route or TLS configuration.
+   */
+  public void connectFailed(Call call, Route route, IOException e, long nanos) {
+  }
+
+  /**
+   * Invoked when {@code call} acquires {@code connection}. {@code pooled} is true if the connection
+   * was reused from the connection pool rather than newly established.
+   */
+  public void connectionAcquired(Call call, Connection connection, boolean pooled) {
+  }
+
+  /** Invoked when {@code call} no longer holds {@code connection}. */
+  public void connectionReleased(Call call, Connection connection) {
+  }
+
+  public void requestHeadersStart(Call call) {
+  }
+
+  /** Invoked when the request headers have been written, or buffered to be written. */
+  public void requestHeadersEnd(Call call, Request request, long nanos) {
+  }
+
+  public void requestBodyStart(Call call) {
+  }
+
+  /** Invoked when a request body of {@code byteCount} bytes has been written. */
+  public void requestBodyEnd(Call call, long byteCount, long nanos) {
+  }
+
+  /** Invoked when the request has been sent and the client starts waiting for the response. */
+  public void responseHeadersStart(Call call) {
+  }
+
+  /** Invoked when the response headers have been read. {@code nanos} is the time to first byte. */
+  public void responseHeadersEnd(Call call, Response response, long nanos) {
+  }
+
+  /**
+   * Invoked when a response body of {@code byteCount} bytes has been read to its end or closed.
+   * {@code nanos} starts when the response headers have been read.
+   */
+  public void responseBodyEnd(Call call, long byteCount, long nanos) {
+  }
+
+  /** Invoked when {@code call}'s response is available. */
+  public void callEnd(Call call, long nanos) {
+  }
+
+  /** Invoked when {@code call} fails or is canceled. */
+  public void callFailed(Call call, IOException e, long nanos) {
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * An interceptor that compresses request bodies with gzip as they are written, and sets their
+ * {@code Content-Encoding} header. Compressed bodies have no known length, so they are sent with
+ * chunked transfer encoding on HTTP/1.1 and as a sequence of DATA frames on HTTP/2. Bodies are
+ * never buffered to be compressed.
+ *
+ * <p>Only bodies whose content type matches one of this interceptor's {@linkplain
+ * #setContentTypes content types} are compressed, and only if they are at least its {@linkplain
+ * #setMinimumSize minimum size}. Bodies whose requests already have a {@code Content-Encoding} are
+ * sent unchanged.
+ *
+ * <p>Servers must support compressed request bodies. Install this as an {@linkplain
+ * OkHttpClient#interceptors() application interceptor} for calls to servers that do.
+ */
+public final class GzipRequestInterceptor implements Interceptor {
+  /** Deflaters retained for reuse. More than this are released when they are returned. */
+  private static final int MAX_POOLED_DEFLATERS = 8;
+
+  private static final Deque<Deflater> deflaterPool = new ArrayDeque<>();
+
+  private volatile List<String> contentTypes = Collections.unmodifiableList(
+      Arrays.asList("text/*", "application/json", "application/xml"));
+  private volatile long minimumSize = 1024L;
+
+  /**
+   * Compress only bodies whose content type matches one of {@code contentTypes}, like {@code
+   * application/json}. A subtype of {@code *} matches all subtypes. Content type parameters are
+   * ignored. By default, {@code text/*}, {@code application/json} and {@code application/xml}
+   * bodies are compressed.
+   */
+  public GzipRequestInterceptor setContentTypes(String... contentTypes) {
+    String[] lowercase = new String[contentTypes.length];
+    for (int i = 0; i < contentTypes.length; i++) {
+      if (contentTypes[i] == null) throw new IllegalArgumentException("contentType == null");
+      lowercase[i] = contentTypes[i].toLowerCase(Locale.US);
+    }
+    this.contentTypes = Collections.unmodifiableList(Arrays.asList(lowercase));
+    return this;
+  }
+
+  public List<String> getContentTypes() {
+    return contentTypes;
+  }
+
+  /**
+   * Compress only bodies of at least {@code byteCount} bytes. Bodies of unknown length are always
+   * compressed. This is 1024 by default; smaller bodies rarely benefit.
+   */
+  public GzipRequestInterceptor setMinimumSize(long byteCount) {
+    if (byteCount < 0L) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    this.minimumSize = byteCount;
+    return this;
+  }
+
+  public long getMinimumSize() {
+    return minimumSize;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    RequestBody body = request.body();
+    if (body == null
+        || request.header("Content-Encoding") != null
+        || !matches(body.contentType())) {
+      return chain.proceed(request);
+    }
+
+    long contentLength = body.contentLength();
+    if (contentLength != -1L && contentLength < minimumSize) {
+      return chain.proceed(request);
+    }
+
+    Request compressedRequest = request.newBuilder()
+        .header("Content-Encoding", "gzip")
+        .header("Transfer-Encoding", "chunked")
+        .removeHeader("Content-Length")
+        .method(request.method(), new GzipRequestBody(body))
+        .build();
+    return chain.proceed(compressedRequest);
+  }
+
+  private boolean matches(MediaType contentType) {
+    if (contentType == null) return false;
+    List<String> contentTypes = this.contentTypes;
+    for (int i = 0, size = contentTypes.size(); i < size; i++) {
+      String pattern = contentTypes.get(i);
+      int slash = pattern.indexOf('/');
+      if (slash == -1 || !pattern.regionMatches(0, contentType.type(), 0, slash)
+          || contentType.type().length() != slash) {
+        continue;
+      }
+      String subtype = pattern.substring(slash + 1);
+      if (subtype.equals("*") || subtype.equals(contentType.subtype())) return true;
+    }
+    return false;
+  }
+
+  private static Deflater takeDeflater() {
+    synchronized (deflaterPool) {
+      Deflater result = deflaterPool.pollFirst();
+      if (result != null) return result;
+    }
+    return new Deflater(Deflater.DEFAULT_COMPRESSION, true /* No wrap */);
+  }
+
+  private static void returnDeflater(Deflater deflater) {
+    deflater.reset();
+    synchronized (deflaterPool) {
+      if (deflaterPool.size() < MAX_POOLED_DEFLATERS) {
+        deflaterPool.addFirst(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  private static final class GzipRequestBody extends RequestBody {
+    private final RequestBody delegate;
+
+    GzipRequestBody(RequestBody delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() {
+      return -1L; // Unknown until the body has been compressed.
+    }
+
+    @Override public void writeTo(final BufferedSink sink) throws IOException {
+      Deflater deflater = takeDeflater();
+      try {
+        // Closing the gzip sink writes its trailer. Don't let that close the caller's sink.
+        ForwardingSink uncloseableSink = new ForwardingSink(sink) {
+          @Override public void close() throws IOException {
+            sink.emit();
+          }
+        };
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(uncloseableSink, deflater));
+        delegate.writeTo(gzipSink);
+        gzipSink.close();
+      } finally {
+        returnDeflater(deflater);
+      }
+    }
+  }
+}
@@ -46,8 +46,43 @@ import java.util.TreeSet;
  * instances.
  */
 public final class Headers {
+  /** Lookups in headers with more fields than this use a hash index rather than a linear scan. */
+  private static final int INDEX_THRESHOLD = 8;
+
+  /** An index that is never used, for headers whose names can't be indexed. */
+  private static final int[] NO_INDEX = new int[0];
+
+  /**
+   * Canonical instances of common header names, in the case they're usually sent. Header names
+   * parsed from the network or cache are replaced with these to save memory and speed up
+   * comparisons. This is an open addressing hash table keyed by {@link String#hashCode}.
+   */
+  private static final String[] STANDARD_NAMES = standardNames(
+      "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+      "Access-Control-Allow-Origin", "Age", "Allow", "Alternate-Protocol", "Authorization",
+      "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding",
+      "Content-Language", "Content-Length", "Content-Location", "Content-MD5", "Content-Range",
+      "Content-Type", "Cookie", "Date", "ETag", "Expect", "Expires", "From", "Host", "If-Match",
+      "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since", "Keep-Alive",
+      "Last-Modified", "Link", "Location", "Max-Forwards", "P3P", "Pragma", "Proxy-Authenticate",
+      "Proxy-Authorization", "Proxy-Connection", "Range", "Referer", "Refresh", "Retry-After",
+      "Server", "Set-Cookie", "Strict-Transport-Security", "TE", "Trailer", "Transfer-Encoding",
+      "Upgrade", "User-Agent", "Vary", "Via", "WWW-Authenticate", "Warning", "X-Cache",
+      "X-Content-Type-Options", "X-Frame-Options", "X-Powered-By", "X-XSS-Protection",
+      "accept-ranges", "access-control-allow-origin", "age", "cache-control", "content-encoding",
+      "content-length", "content-type", "date", "etag", "expires", "last-modified", "location",
+      "server", "set-cookie", "vary", "via");
+
   private final String[] namesAndValues;
 
+  /**
+   * A lazily-built open addressing hash table of fields by name, or null if it hasn't been built.
+   * Each field uses two adjacent slots: the ASCII case-folded hash of its name and its index plus
+   * one. Fields are inserted last to first so that probing finds the last field first.
+   */
+  private volatile int[] index;
+  private volatile Set<String> names;
+
   private Headers(Builder builder) {
     this.namesAndValues = builder.namesAndValues.toArray(new String[builder.namesAndValues.size()]);
   }
@@ -58,7 +93,19 @@ public final class Headers {
 
   /** Returns the last value corresponding to the specified field, or null. */
   public String get(String name) {
-    return get(namesAndValues, name);
+    int[] index = index();
+    if (index == null) return get(namesAndValues, name);
+
+    int hash = foldedHash(name);
+    if (hash == -1) return get(namesAndValues, name);
+    int mask = index.length - 1;
+    for (int slot = (hash << 1) & mask; index[slot + 1] != 0; slot = (slot + 2) & mask) {
+      if (index[slot] == hash) {
+        int nameIndex = (index[slot + 1] - 1) * 2;
+        if (name.equalsIgnoreCase(namesAndValues[nameIndex])) return namesAndValues[nameIndex + 1];
+      }
+    }
+    return null;
   }
 
   /**
@@ -96,25 +143,135 @@ public final class Headers {
 
   /** Returns an immutable case-insensitive set of header names. */
   public Set<String> names() {
-    TreeSet<String> result = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    Set<String> result = names;
+    if (result != null) return result;
+
+    TreeSet<String> sorted = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
     for (int i = 0, size = size(); i < size; i++) {
-      result.add(name(i));
+      sorted.add(name(i));
     }
-    return Collections.unmodifiableSet(result);
+    return names = Collections.unmodifiableSet(sorted);
   }
 
   /** Returns an immutable list of the header values for {@code name}. */
   public List<String> values(String name) {
+    int[] index = index();
+    int hash = index != null ? foldedHash(name) : -1;
+    if (hash == -1) {
+      List<String> result = null;
+      for (int i = 0, size = size(); i < size; i++) {
+        if (name.equalsIgnoreCase(name(i))) {
+          if (result == null) result = new ArrayList<>(2);
+          result.add(value(i));
+        }
+      }
+      return result != null
+          ? Collections.unmodifiableList(result)
+          : Collections.<String>emptyList();
+    }
+
+    // Probing finds fields last to first.
     List<String> result = null;
-    for (int i = 0, size = size(); i < size; i++) {
-      if (name.equalsIgnoreCase(name(i))) {
-        if (result == null) result = new ArrayList<>(2);
-        result.add(value(i));
+    int mask = index.length - 1;
+    for (int slot = (hash << 1) & mask; index[slot + 1] != 0; slot = (slot + 2) & mask) {
+      if (index[slot] == hash) {
+        int nameIndex = (index[slot + 1] - 1) * 2;
+        if (name.equalsIgnoreCase(namesAndValues[nameIndex])) {
+          if (result == null) result = new ArrayList<>(2);
+          result.add(namesAndValues[nameIndex + 1]);
+        }
+      }
+    }
+    if (result == null) return Collections.emptyList();
+    Collections.reverse(result);
+    return Collections.unmodifiableList(result);
+  }
+
+  /**
+   * Returns the hash index of these headers, building it if necessary, or null if these headers are
+   * few enough to scan or their names can't be indexed.
+   */
+  private int[] index() {
+    if (namesAndValues.length <= INDEX_THRESHOLD * 2) return null;
+    int[] result = index;
+    if (result == null) {
+      result = buildIndex(namesAndValues);
+      index = result; // Racy but benign: all threads build the same index.
+    }
+    return result != NO_INDEX ? result : null;
+  }
+
+  private static int[] buildIndex(String[] namesAndValues) {
+    int fieldCount = namesAndValues.length / 2;
+    int slots = Integer.highestOneBit(fieldCount * 2 - 1) << 1; // Load factor of at most 1/2.
+    int[] result = new int[slots * 2];
+    int mask = result.length - 1;
+    for (int i = fieldCount - 1; i >= 0; i--) {
+      int hash = foldedHash(namesAndValues[i * 2]);
+      if (hash == -1) return NO_INDEX;
+      int slot = (hash << 1) & mask;
+      while (result[slot + 1] != 0) {
+        slot = (slot + 2) & mask;
+      }
+      result[slot] = hash;
+      result[slot + 1] = i + 1;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a non-negative hash of {@code name} that is the same for names that differ only in the
+   * case of ASCII letters, or -1 if {@code name} isn't ASCII. Non-ASCII names aren't indexed
+   * because {@link String#equalsIgnoreCase} folds some of them onto ASCII names.
+   */
+  private static int foldedHash(String name) {
+    int result = 0;
+    for (int i = 0, length = name.length(); i < length; i++) {
+      int c = name.charAt(i);
+      if (c >= 0x80) return -1;
+      if (c >= 'A' && c <= 'Z') c += ('a' - 'A');
+      result = 31 * result + c;
+    }
+    return result & 0x7fffffff;
+  }
+
+  /** Returns a hash of {@code s[pos..limit)} that is consistent with {@link String#hashCode}. */
+  private static int exactHash(String s, int pos, int limit) {
+    int result = 0;
+    for (int i = pos; i < limit; i++) {
+      result = 31 * result + s.charAt(i);
+    }
+    return result;
+  }
+
+  private static String[] standardNames(String... names) {
+    String[] result = new String[Integer.highestOneBit(names.length) * 8];
+    int mask = result.length - 1;
+    for (String name : names) {
+      int slot = name.hashCode() & mask;
+      while (result[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      result[slot] = name;
+    }
+    return result;
+  }
+
+  /**
+   * Returns {@code s[pos..limit)}, using the canonical instance of that name if it is a standard
+   * header name.
+   */
+  private static String headerName(String s, int pos, int limit) {
+    int length = limit - pos;
+    int mask = STANDARD_NAMES.length - 1;
+    for (int slot = exactHash(s, pos, limit) & mask; STANDARD_NAMES[slot] != null;
+        slot = (slot + 1) & mask) {
+      String candidate = STANDARD_NAMES[slot];
+      if (candidate.length() == length && s.regionMatches(pos, candidate, 0, length)) {
+        return candidate;
       }
     }
-    return result != null
-        ? Collections.unmodifiableList(result)
-        : Collections.<String>emptyList();
+    return s.substring(pos, limit);
   }
 
   public Builder newBuilder() {
@@ -221,7 +378,7 @@ public final class Headers {
     Builder addLenient(String line) {
       int index = line.indexOf(":", 1);
       if (index != -1) {
-        return addLenient(line.substring(0, index), line.substring(index + 1));
+        return addLenient(headerName(line, 0, index), line.substring(index + 1));
       } else if (line.startsWith(":")) {
         // Work around empty header names and header names that start with a
         // colon (created by old broken SPDY versions of the response cache).
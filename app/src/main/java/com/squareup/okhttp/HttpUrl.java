@@ -306,6 +306,10 @@ public final class HttpUrl {
   private final String url;
 
   private HttpUrl(Builder builder) {
+    this(builder, builder.toString());
+  }
+
+  private HttpUrl(Builder builder, String url) {
     this.scheme = builder.scheme;
     this.username = percentDecode(builder.encodedUsername, false);
     this.password = percentDecode(builder.encodedPassword, false);
@@ -318,7 +322,7 @@ public final class HttpUrl {
     this.fragment = builder.encodedFragment != null
         ? percentDecode(builder.encodedFragment, false)
         : null;
-    this.url = builder.toString();
+    this.url = url;
   }
 
   /** Returns this URL as a {@link URL java.net.URL}. */
@@ -606,11 +610,130 @@ public final class HttpUrl {
    * URL, or null if it isn't.
    */
   public static HttpUrl parse(String url) {
+    HttpUrl canonical = parseCanonical(url);
+    if (canonical != null) return canonical;
+
     Builder builder = new Builder();
     Builder.ParseResult result = builder.parse(null, url);
     return result == Builder.ParseResult.SUCCESS ? builder.build() : null;
   }
 
+  /**
+   * Returns the URL for {@code input} if it is already in the canonical form that this class
+   * formats URLs in, or null if it isn't. Most URLs are canonical, and parsing them this way skips
+   * re-encoding their components, IDN conversion of their host, and formatting the result.
+   *
+   * <p>This accepts a subset of canonical URLs: those without a username, password or IPv6 host,
+   * whose host is lowercase letters, digits and hyphens, and whose path has no dot segments.
+   */
+  private static HttpUrl parseCanonical(String input) {
+    int limit = input.length();
+    Builder builder = new Builder();
+    int pos;
+    if (input.startsWith("http://")) {
+      builder.scheme = "http";
+      pos = "http://".length();
+    } else if (input.startsWith("https://")) {
+      builder.scheme = "https";
+      pos = "https://".length();
+    } else {
+      return null;
+    }
+
+    // Host. IDN conversion leaves labels of 1 to 63 of these characters unchanged.
+    int hostStart = pos;
+    int labelStart = pos;
+    for (; pos < limit; pos++) {
+      char c = input.charAt(pos);
+      if (c == '.') {
+        if (pos == labelStart || pos - labelStart > 63) return null;
+        labelStart = pos + 1;
+      } else if ((c < 'a' || c > 'z') && (c < '0' || c > '9') && c != '-') {
+        break;
+      }
+    }
+    if (pos == labelStart || pos - labelStart > 63) return null;
+    builder.host = input.substring(hostStart, pos);
+
+    // Port. Canonical ports have no leading zeros and are omitted if they're the default.
+    if (pos < limit && input.charAt(pos) == ':') {
+      int portStart = ++pos;
+      int port = 0;
+      for (; pos < limit && pos - portStart < 5; pos++) {
+        char c = input.charAt(pos);
+        if (c < '0' || c > '9') break;
+        port = port * 10 + (c - '0');
+      }
+      if (pos == portStart || input.charAt(portStart) == '0' || port > 65535
+          || port == defaultPort(builder.scheme)) {
+        return null;
+      }
+      builder.port = port;
+    }
+
+    // Path.
+    if (pos == limit || input.charAt(pos) != '/') return null;
+    builder.encodedPathSegments.clear();
+    while (true) {
+      int segmentStart = ++pos;
+      while (pos < limit && isCanonicalPathChar(input.charAt(pos))) {
+        pos++;
+      }
+      if (isDotSegment(input, segmentStart, pos)) return null;
+      builder.encodedPathSegments.add(input.substring(segmentStart, pos));
+      if (pos == limit || input.charAt(pos) != '/') break;
+    }
+
+    // Query.
+    if (pos < limit && input.charAt(pos) == '?') {
+      int queryStart = ++pos;
+      while (pos < limit && isCanonicalQueryChar(input.charAt(pos))) {
+        pos++;
+      }
+      builder.encodedQueryNamesAndValues =
+          queryStringToNamesAndValues(input.substring(queryStart, pos));
+    }
+
+    // Fragment.
+    if (pos < limit && input.charAt(pos) == '#') {
+      int fragmentStart = ++pos;
+      while (pos < limit && isCanonicalFragmentChar(input.charAt(pos))) {
+        pos++;
+      }
+      builder.encodedFragment = input.substring(fragmentStart, pos);
+    }
+
+    if (pos != limit) return null; // A character that needs encoding.
+    return new HttpUrl(builder, input);
+  }
+
+  private static boolean isCanonicalPathChar(char c) {
+    return c > ' ' && c < 0x7f && "\"<>^`{}|/\\?#".indexOf(c) == -1;
+  }
+
+  private static boolean isCanonicalQueryChar(char c) {
+    return c > ' ' && c < 0x7f && "\"<>#".indexOf(c) == -1;
+  }
+
+  private static boolean isCanonicalFragmentChar(char c) {
+    return c > ' ' && c < 0x7f;
+  }
+
+  /** Returns true if {@code input[pos..limit)} is "." or "..", either of which may be encoded. */
+  private static boolean isDotSegment(String input, int pos, int limit) {
+    int dots = 0;
+    for (int i = pos; i < limit; dots++) {
+      if (input.charAt(i) == '.') {
+        i++;
+      } else if (input.regionMatches(true, i, "%2e", 0, 3)) {
+        i += 3;
+      } else {
+        return false;
+      }
+    }
+    return dots == 1 || dots == 2;
+  }
+
   /**
    * Returns an {@link HttpUrl} for {@code url} if its protocol is {@code http} or {@code https}, or
    * null if it has any other protocol.
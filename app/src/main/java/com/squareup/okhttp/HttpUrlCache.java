@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of parsed URLs. Applications that make many requests to the same URLs can install
+ * one with {@link #setDefault} to skip parsing each time {@link Request.Builder#url(String)} is
+ * called. Because {@link HttpUrl} is immutable, cached instances are safely shared.
+ *
+ * <p>The cache is split into stripes that are locked independently, each of which evicts its least
+ * recently used URLs when full.
+ */
+public final class HttpUrlCache {
+  private static final int STRIPE_COUNT = 16;
+
+  private static volatile HttpUrlCache defaultCache;
+
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+  private final int maxSize;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /** Create a cache that holds about {@code maxSize} URLs. */
+  public HttpUrlCache(int maxSize) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0: " + maxSize);
+    this.maxSize = maxSize;
+    int stripeSize = Math.max(1, maxSize / STRIPE_COUNT);
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      stripes[i] = new Stripe(stripeSize);
+    }
+  }
+
+  /**
+   * Sets the cache used by {@link Request.Builder#url(String)}, or null to parse every URL. There
+   * is no default cache.
+   */
+  public static void setDefault(HttpUrlCache cache) {
+    defaultCache = cache;
+  }
+
+  public static HttpUrlCache getDefault() {
+    return defaultCache;
+  }
+
+  /**
+   * Returns the URL for {@code url}, parsing it if it isn't cached. Returns null if {@code url} is
+   * not a well-formed HTTP or HTTPS URL; such strings are not cached.
+   */
+  public HttpUrl parse(String url) {
+    Stripe stripe = stripes[(url.hashCode() & 0x7fffffff) % STRIPE_COUNT];
+    HttpUrl result;
+    synchronized (stripe) {
+      result = stripe.map.get(url);
+    }
+    if (result != null) {
+      hitCount.incrementAndGet();
+      return result;
+    }
+
+    missCount.incrementAndGet();
+    result = HttpUrl.parse(url);
+    if (result != null) {
+      synchronized (stripe) {
+        stripe.map.put(url, result);
+      }
+    }
+    return result;
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /** Returns the number of URLs currently cached. */
+  public int size() {
+    int result = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        result += stripe.map.size();
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of calls to {@link #parse} that returned a cached URL. */
+  public long hitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of calls to {@link #parse} that parsed their input. */
+  public long missCount() {
+    return missCount.get();
+  }
+
+  /** Removes all URLs from this cache. */
+  public void evictAll() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.map.clear();
+      }
+    }
+  }
+
+  /** An independently-locked LRU cache. Guarded by this. */
+  private static final class Stripe {
+    final Map<String, HttpUrl> map;
+
+    Stripe(final int maxSize) {
+      this.map = new LinkedHashMap<String, HttpUrl>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, HttpUrl> eldest) {
+          return size() > maxSize;
+        }
+      };
+    }
+  }
+}
@@ -16,20 +16,28 @@
 package com.squareup.okhttp;
 
 import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 /**
  * An <a href="http://tools.ietf.org/html/rfc2045">RFC 2045</a> Media Type,
  * appropriate to describe the content type of an HTTP request or response body.
  */
 public final class MediaType {
-  private static final String TOKEN = "([a-zA-Z0-9-!#$%&'*+.^_`{|}~]+)";
-  private static final String QUOTED = "\"([^\"]*)\"";
-  private static final Pattern TYPE_SUBTYPE = Pattern.compile(TOKEN + "/" + TOKEN);
-  private static final Pattern PARAMETER = Pattern.compile(
-      ";\\s*(?:" + TOKEN + "=(?:" + TOKEN + "|" + QUOTED + "))?");
+  /** Characters other than letters and digits that may appear in a token. */
+  private static final String TOKEN_SYMBOLS = "-!#$%&'*+.^_`{|}~";
+
+  /** The number of distinct media types to retain. Most applications see only a few. */
+  private static final int INTERN_CACHE_SIZE = 64;
+
+  /** Recently parsed media types by their string. Guarded by itself. */
+  private static final Map<String, MediaType> INTERNED =
+      new LinkedHashMap<String, MediaType>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, MediaType> eldest) {
+          return size() > INTERN_CACHE_SIZE;
+        }
+      };
 
   private final String mediaType;
   private final String type;
@@ -48,31 +56,85 @@ public final class MediaType {
    * well-formed media type.
    */
   public static MediaType parse(String string) {
-    Matcher typeSubtype = TYPE_SUBTYPE.matcher(string);
-    if (!typeSubtype.lookingAt()) return null;
-    String type = typeSubtype.group(1).toLowerCase(Locale.US);
-    String subtype = typeSubtype.group(2).toLowerCase(Locale.US);
+    MediaType result;
+    synchronized (INTERNED) {
+      result = INTERNED.get(string);
+    }
+    if (result != null) return result;
 
+    result = parseUncached(string);
+    if (result != null) {
+      synchronized (INTERNED) {
+        INTERNED.put(string, result);
+      }
+    }
+    return result;
+  }
+
+  private static MediaType parseUncached(String string) {
+    int limit = string.length();
+    int typeEnd = skipToken(string, 0, limit);
+    if (typeEnd == 0 || typeEnd == limit || string.charAt(typeEnd) != '/') return null;
+    int subtypeEnd = skipToken(string, typeEnd + 1, limit);
+    if (subtypeEnd == typeEnd + 1) return null;
+    String type = string.substring(0, typeEnd).toLowerCase(Locale.US);
+    String subtype = string.substring(typeEnd + 1, subtypeEnd).toLowerCase(Locale.US);
+
+    // Each parameter is a ';', optional whitespace, and an optional name=value pair whose value is
+    // a token or a quoted string.
     String charset = null;
-    Matcher parameter = PARAMETER.matcher(string);
-    for (int s = typeSubtype.end(); s < string.length(); s = parameter.end()) {
-      parameter.region(s, string.length());
-      if (!parameter.lookingAt()) return null; // This is not a well-formed media type.
-
-      String name = parameter.group(1);
-      if (name == null || !name.equalsIgnoreCase("charset")) continue;
-      String charsetParameter = parameter.group(2) != null
-          ? parameter.group(2)  // Value is a token.
-          : parameter.group(3); // Value is a quoted string.
-      if (charset != null && !charsetParameter.equalsIgnoreCase(charset)) {
+    for (int pos = subtypeEnd; pos < limit; ) {
+      if (string.charAt(pos) != ';') return null; // This is not a well-formed media type.
+      pos++;
+      while (pos < limit && isWhitespace(string.charAt(pos))) {
+        pos++;
+      }
+
+      int nameEnd = skipToken(string, pos, limit);
+      if (nameEnd == pos || nameEnd == limit || string.charAt(nameEnd) != '=') continue;
+      int valueStart = nameEnd + 1;
+      int valueEnd = skipToken(string, valueStart, limit);
+      String value;
+      if (valueEnd != valueStart) {
+        value = string.substring(valueStart, valueEnd); // Value is a token.
+      } else if (valueStart < limit && string.charAt(valueStart) == '"') {
+        int closeQuote = string.indexOf('"', valueStart + 1);
+        if (closeQuote == -1) continue;
+        value = string.substring(valueStart + 1, closeQuote); // Value is a quoted string.
+        valueEnd = closeQuote + 1;
+      } else {
+        continue;
+      }
+
+      String name = string.substring(pos, nameEnd);
+      pos = valueEnd;
+      if (!name.equalsIgnoreCase("charset")) continue;
+      if (charset != null && !value.equalsIgnoreCase(charset)) {
         throw new IllegalArgumentException("Multiple different charsets: " + string);
       }
-      charset = charsetParameter;
+      charset = value;
     }
 
     return new MediaType(string, type, subtype, charset);
   }
 
+  /** Returns the index of the first character at or after {@code pos} that isn't in a token. */
+  private static int skipToken(String string, int pos, int limit) {
+    for (; pos < limit; pos++) {
+      char c = string.charAt(pos);
+      if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9')
+          && TOKEN_SYMBOLS.indexOf(c) == -1) {
+        break;
+      }
+    }
+    return pos;
+  }
+
+  /** Returns true if {@code c} is whitespace as matched by the regular expression {@code \s}. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == 0x0b || c == '\f' || c == '\r';
+  }
+
   /**
    * Returns the high-level media type, such as "text", "image", "audio",
    * "video", or "application".
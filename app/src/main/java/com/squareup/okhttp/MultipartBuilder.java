@@ -16,6 +16,7 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.TransferableRequestBody;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -193,11 +194,24 @@ public final class MultipartBuilder {
     return new MultipartRequestBody(type, boundary, partHeaders, partBodies);
   }
 
-  private static final class MultipartRequestBody extends RequestBody {
+  /**
+   * Encodes each part's boundary and headers once and reuses them to both measure and write the
+   * body. Part bodies are never encoded to be measured; if every part knows its length the content
+   * length is the sum of the part lengths and the encoded headers.
+   */
+  private static final class MultipartRequestBody extends TransferableRequestBody {
     private final ByteString boundary;
     private final MediaType contentType;
     private final List<Headers> partHeaders;
     private final List<RequestBody> partBodies;
+
+    /**
+     * The encoded boundary and headers of every part, concatenated. Part {@code p}'s preamble
+     * starts at {@code preambleOffsets[p]} and ends at {@code preambleOffsets[p + 1]}. Null until
+     * computed.
+     */
+    private volatile byte[] preambles;
+    private int[] preambleOffsets;
     private long contentLength = -1L;
 
     public MultipartRequestBody(MediaType type, ByteString boundary, List<Headers> partHeaders,
@@ -215,36 +229,33 @@ public final class MultipartBuilder {
     }
 
     @Override public long contentLength() throws IOException {
-      long result = contentLength;
-      if (result != -1L) return result;
-      return contentLength = writeOrCountBytes(null, true);
+      preambles();
+      return contentLength;
     }
 
     /**
-     * Either writes this request to {@code sink} or measures its content length. We have one method
-     * do double-duty to make sure the counting and content are consistent, particularly when it
-     * comes to awkward operations like measuring the encoded length of header strings, or the
-     * length-in-digits of an encoded integer.
+     * Returns the encoded boundary and headers of every part, computing them, their offsets and the
+     * content length if necessary. The content length is -1 if any part's length is unknown.
      */
-    private long writeOrCountBytes(BufferedSink sink, boolean countBytes) throws IOException {
-      long byteCount = 0L;
-
-      Buffer byteCountBuffer = null;
-      if (countBytes) {
-        sink = byteCountBuffer = new Buffer();
-      }
+    private byte[] preambles() throws IOException {
+      byte[] result = preambles;
+      if (result != null) return result;
 
-      for (int p = 0, partCount = partHeaders.size(); p < partCount; p++) {
+      int partCount = partHeaders.size();
+      int[] offsets = new int[partCount + 1];
+      long byteCount = 0L;
+      Buffer buffer = new Buffer();
+      for (int p = 0; p < partCount; p++) {
         Headers headers = partHeaders.get(p);
         RequestBody body = partBodies.get(p);
 
-        sink.write(DASHDASH);
-        sink.write(boundary);
-        sink.write(CRLF);
+        buffer.write(DASHDASH);
+        buffer.write(boundary);
+        buffer.write(CRLF);
 
         if (headers != null) {
           for (int h = 0, headerCount = headers.size(); h < headerCount; h++) {
-            sink.writeUtf8(headers.name(h))
+            buffer.writeUtf8(headers.name(h))
                 .write(COLONSPACE)
                 .writeUtf8(headers.value(h))
                 .write(CRLF);
@@ -253,30 +264,53 @@ public final class MultipartBuilder {
 
         MediaType contentType = body.contentType();
         if (contentType != null) {
-          sink.writeUtf8("Content-Type: ")
+          buffer.writeUtf8("Content-Type: ")
               .writeUtf8(contentType.toString())
               .write(CRLF);
         }
 
         long contentLength = body.contentLength();
         if (contentLength != -1) {
-          sink.writeUtf8("Content-Length: ")
+          buffer.writeUtf8("Content-Length: ")
               .writeDecimalLong(contentLength)
               .write(CRLF);
-        } else if (countBytes) {
-          // We can't measure the body's size without the sizes of its components.
-          byteCountBuffer.clear();
-          return -1L;
         }
 
-        sink.write(CRLF);
+        buffer.write(CRLF);
 
-        if (countBytes) {
-          byteCount += contentLength;
-        } else {
-          partBodies.get(p).writeTo(sink);
+        offsets[p + 1] = (int) buffer.size();
+        if (byteCount != -1L) {
+          byteCount = contentLength != -1L ? byteCount + contentLength + CRLF.length : -1L;
         }
+      }
 
+      if (byteCount != -1L) {
+        byteCount += buffer.size() + DASHDASH.length + boundary.size() + DASHDASH.length
+            + CRLF.length;
+      }
+      result = buffer.readByteArray();
+      contentLength = byteCount;
+      preambleOffsets = offsets;
+      preambles = result;
+      return result;
+    }
+
+    @Override public void writeTo(BufferedSink sink) throws IOException {
+      writeTo(sink, null);
+    }
+
+    @Override public void writeTo(BufferedSink sink, FileTransfer transfer) throws IOException {
+      byte[] preambles = preambles();
+      int[] offsets = preambleOffsets;
+      for (int p = 0, partCount = partBodies.size(); p < partCount; p++) {
+        RequestBody body = partBodies.get(p);
+
+        sink.write(preambles, offsets[p], offsets[p + 1] - offsets[p]);
+        if (transfer != null && body instanceof TransferableRequestBody) {
+          ((TransferableRequestBody) body).writeTo(sink, transfer);
+        } else {
+          body.writeTo(sink);
+        }
         sink.write(CRLF);
       }
 
@@ -284,17 +318,6 @@ public final class MultipartBuilder {
       sink.write(boundary);
       sink.write(DASHDASH);
       sink.write(CRLF);
-
-      if (countBytes) {
-        byteCount += byteCountBuffer.size();
-        byteCountBuffer.clear();
-      }
-
-      return byteCount;
-    }
-
-    @Override public void writeTo(BufferedSink sink) throws IOException {
-      writeOrCountBytes(sink, false);
     }
   }
 }
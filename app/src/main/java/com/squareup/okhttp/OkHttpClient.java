@@ -20,6 +20,7 @@ import com.squareup.okhttp.internal.InternalCache;
 import com.squareup.okhttp.internal.RouteDatabase;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.http.AuthenticatorAdapter;
+import com.squareup.okhttp.internal.http.RequestCoalescer;
 import com.squareup.okhttp.internal.http.StreamAllocation;
 import com.squareup.okhttp.internal.io.RealConnection;
 import com.squareup.okhttp.internal.tls.OkHostnameVerifier;
@@ -75,6 +76,10 @@ public class OkHttpClient implements Cloneable {
         return client.internalCache();
       }
 
+      @Override public RequestCoalescer requestCoalescer(OkHttpClient client) {
+        return client.requestCoalescer;
+      }
+
       @Override public boolean connectionBecameIdle(
           ConnectionPool pool, RealConnection connection) {
         return pool.connectionBecameIdle(connection);
@@ -98,6 +103,10 @@ public class OkHttpClient implements Cloneable {
         call.enqueue(responseCallback, forWebSocket);
       }
 
+      @Override public void revalidate(OkHttpClient client, Request request) {
+        client.getDispatcher().revalidate(client, request);
+      }
+
       @Override public StreamAllocation callEngineGetStreamAllocation(Call call) {
         return call.engine.streamAllocation;
       }
@@ -131,6 +140,10 @@ public class OkHttpClient implements Cloneable {
   private InternalCache internalCache;
   private Cache cache;
 
+  /** Non-null if this client coalesces identical requests that miss the cache. */
+  private RequestCoalescer requestCoalescer;
+  private int coalescingTimeout = 1_000;
+
   private SocketFactory socketFactory;
   private SSLSocketFactory sslSocketFactory;
   private HostnameVerifier hostnameVerifier;
@@ -138,12 +151,14 @@ public class OkHttpClient implements Cloneable {
   private Authenticator authenticator;
   private ConnectionPool connectionPool;
   private Dns dns;
+  private EventListener eventListener = EventListener.NONE;
   private boolean followSslRedirects = true;
   private boolean followRedirects = true;
   private boolean retryOnConnectionFailure = true;
   private int connectTimeout = 10_000;
   private int readTimeout = 10_000;
   private int writeTimeout = 10_000;
+  private int pingInterval;
 
   public OkHttpClient() {
     routeDatabase = new RouteDatabase();
@@ -162,6 +177,8 @@ public class OkHttpClient implements Cloneable {
     this.cookieHandler = okHttpClient.cookieHandler;
     this.cache = okHttpClient.cache;
     this.internalCache = cache != null ? cache.internalCache : okHttpClient.internalCache;
+    this.requestCoalescer = okHttpClient.requestCoalescer;
+    this.coalescingTimeout = okHttpClient.coalescingTimeout;
     this.socketFactory = okHttpClient.socketFactory;
     this.sslSocketFactory = okHttpClient.sslSocketFactory;
     this.hostnameVerifier = okHttpClient.hostnameVerifier;
@@ -169,12 +186,14 @@ public class OkHttpClient implements Cloneable {
     this.authenticator = okHttpClient.authenticator;
     this.connectionPool = okHttpClient.connectionPool;
     this.dns = okHttpClient.dns;
+    this.eventListener = okHttpClient.eventListener;
     this.followSslRedirects = okHttpClient.followSslRedirects;
     this.followRedirects = okHttpClient.followRedirects;
     this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
     this.connectTimeout = okHttpClient.connectTimeout;
     this.readTimeout = okHttpClient.readTimeout;
     this.writeTimeout = okHttpClient.writeTimeout;
+    this.pingInterval = okHttpClient.pingInterval;
   }
 
   /**
@@ -235,6 +254,29 @@ public class OkHttpClient implements Cloneable {
     return writeTimeout;
   }
 
+  /**
+   * Sets the interval between keepalive pings on HTTP/2 and SPDY connections. A connection that
+   * reads nothing from its peer for an interval is pinged; if the ping isn't acknowledged within
+   * another interval the connection is considered dead and closed, failing its streams. This
+   * detects connections lost to NAT timeouts and network changes before new calls stall on them.
+   *
+   * <p>A value of 0 disables keepalive pings, which is the default. Otherwise values must be
+   * between 1 and {@link Integer#MAX_VALUE} when converted to milliseconds.
+   */
+  public void setPingInterval(long interval, TimeUnit unit) {
+    if (interval < 0) throw new IllegalArgumentException("interval < 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    long millis = unit.toMillis(interval);
+    if (millis > Integer.MAX_VALUE) throw new IllegalArgumentException("Interval too large.");
+    if (millis == 0 && interval > 0) throw new IllegalArgumentException("Interval too small.");
+    pingInterval = (int) millis;
+  }
+
+  /** Keepalive ping interval (in milliseconds), or 0 if keepalive pings are disabled. */
+  public int getPingInterval() {
+    return pingInterval;
+  }
+
   /**
    * Sets the HTTP proxy that will be used by connections created by this
    * client. This takes precedence over {@link #setProxySelector}, which is
@@ -304,6 +346,51 @@ public class OkHttpClient implements Cloneable {
     return cache;
   }
 
+  /**
+   * Configure this client to coalesce concurrent {@code GET} requests that miss the cache and have
+   * the same URL and headers. Once the cache holds a response for a URL, only the headers that the
+   * response varies on must be the same. Only the first such request is sent to the network; the
+   * others wait for it and are then served by the response it cached. A waiting request that the
+   * cached response doesn't satisfy, or that waits longer than the {@linkplain
+   * #setCoalescingTimeout coalescing timeout} for it, makes its own network request.
+   *
+   * <p>This has no effect unless the client has a cache. It is disabled by default.
+   */
+  public OkHttpClient setCoalesceRequests(boolean coalesceRequests) {
+    if (!coalesceRequests) {
+      this.requestCoalescer = null;
+    } else if (requestCoalescer == null) {
+      this.requestCoalescer = new RequestCoalescer();
+    }
+    return this;
+  }
+
+  public boolean getCoalesceRequests() {
+    return requestCoalescer != null;
+  }
+
+  /**
+   * Sets how long a coalesced request waits for the identical request that is leading it before
+   * making its own network request. Set this above the time the origin server takes to serve the
+   * response, or slow responses will reach the server once per waiting request. Values must be
+   * between 1 and {@link Integer#MAX_VALUE} when converted to milliseconds. The default is one
+   * second.
+   */
+  public OkHttpClient setCoalescingTimeout(long timeout, TimeUnit unit) {
+    if (timeout <= 0) throw new IllegalArgumentException("timeout <= 0");
+    if (unit == null) throw new IllegalArgumentException("unit == null");
+    long millis = unit.toMillis(timeout);
+    if (millis > Integer.MAX_VALUE) throw new IllegalArgumentException("Timeout too large.");
+    if (millis == 0) throw new IllegalArgumentException("Timeout too small.");
+    coalescingTimeout = (int) millis;
+    return this;
+  }
+
+  /** Coalescing timeout (in milliseconds). */
+  public int getCoalescingTimeout() {
+    return coalescingTimeout;
+  }
+
   /**
    * Sets the DNS service used to lookup IP addresses for hostnames.
    *
@@ -318,6 +405,20 @@ public class OkHttpClient implements Cloneable {
     return dns;
   }
 
+  /**
+   * Sets the listener that receives the phases and timings of this client's calls, or {@link
+   * EventListener#NONE} to receive none. This is {@code NONE} by default.
+   */
+  public OkHttpClient setEventListener(EventListener eventListener) {
+    if (eventListener == null) throw new NullPointerException("eventListener == null");
+    this.eventListener = eventListener;
+    return this;
+  }
+
+  public EventListener getEventListener() {
+    return eventListener;
+  }
+
   /**
    * Sets the socket factory used to create connections. OkHttp only uses
    * the parameterless {@link SocketFactory#createSocket() createSocket()}
@@ -326,6 +427,17 @@ public class OkHttpClient implements Cloneable {
    *
    * <p>If unset, the {@link SocketFactory#getDefault() system-wide default}
    * socket factory will be used.
+   *
+   * <p>File request bodies are sent with {@link
+   * java.nio.channels.FileChannel#transferTo FileChannel.transferTo} rather
+   * than copied through memory only if the socket has a channel, such as
+   * sockets created by {@code SocketChannel.open().socket()}. See {@link
+   * RequestBody#create(MediaType, java.io.File)}. Such sockets don't behave
+   * exactly like the default ones: on some platforms a read blocked on their
+   * input stream also blocks writes to their output stream, which stalls
+   * HTTP/2 and web socket connections, and read timeouts are implemented by
+   * the channel rather than the socket. Only use them for plain HTTP/1.1
+   * uploads on platforms where they've been tested.
    */
   public OkHttpClient setSocketFactory(SocketFactory socketFactory) {
     this.socketFactory = socketFactory;
@@ -563,6 +675,14 @@ public class OkHttpClient implements Cloneable {
     return new Call(this, request);
   }
 
+  /**
+   * Prepares {@code requests} to be executed together at some point in the future, sharing
+   * connections to each address.
+   */
+  public Batch newBatch(List<Request> requests) {
+    return new Batch(this, requests);
+  }
+
   /**
    * Cancels all scheduled or in-flight calls tagged with {@code tag}. Requests
    * that are already complete cannot be canceled.
@@ -159,7 +159,8 @@ public final class Request {
         url = "https:" + url.substring(4);
       }
 
-      HttpUrl parsed = HttpUrl.parse(url);
+      HttpUrlCache cache = HttpUrlCache.getDefault();
+      HttpUrl parsed = cache != null ? cache.parse(url) : HttpUrl.parse(url);
       if (parsed == null) throw new IllegalArgumentException("unexpected url: " + url);
       return url(parsed);
     }
@@ -16,13 +16,13 @@
 package com.squareup.okhttp;
 
 import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.http.FileRequestBody;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import okio.BufferedSink;
 import okio.ByteString;
-import okio.Okio;
-import okio.Source;
 
 public abstract class RequestBody {
   /** Returns the Content-Type header for this body. */
@@ -98,28 +98,43 @@ public abstract class RequestBody {
     };
   }
 
-  /** Returns a new request body that transmits the content of {@code file}. */
-  public static RequestBody create(final MediaType contentType, final File file) {
+  /**
+   * Returns a new request body that transmits the content of {@code file}.
+   *
+   * <p>File bodies are usually copied into memory in segments on their way to the socket. On a
+   * plain HTTP/1.1 connection they can instead be sent with {@link FileChannel#transferTo}, which
+   * lets the kernel copy the file to the socket directly. That requires a socket with a {@link
+   * java.nio.channels.SocketChannel channel}, and sockets from the default socket factory have
+   * none. To enable it, {@linkplain OkHttpClient#setSocketFactory configure a socket factory}
+   * whose {@code createSocket()} returns {@code SocketChannel.open().socket()}; that method
+   * describes how such sockets differ, including in how they time out. Bodies sent over TLS or
+   * HTTP/2, and bodies wrapped by interceptors, are always copied.
+   */
+  public static RequestBody create(MediaType contentType, File file) {
     if (file == null) throw new NullPointerException("content == null");
+    return new FileRequestBody(contentType, file, 0L, -1L);
+  }
 
-    return new RequestBody() {
-      @Override public MediaType contentType() {
-        return contentType;
-      }
-
-      @Override public long contentLength() {
-        return file.length();
-      }
+  /**
+   * Returns a new request body that transmits {@code byteCount} bytes of {@code file} starting at
+   * {@code offset}. The bytes before {@code offset} are not read, so this may be used to resume an
+   * interrupted upload. Like {@link #create(MediaType, File)}, this may be sent without copying.
+   */
+  public static RequestBody create(MediaType contentType, File file, long offset,
+      long byteCount) {
+    if (file == null) throw new NullPointerException("content == null");
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    return new FileRequestBody(contentType, file, offset, byteCount);
+  }
 
-      @Override public void writeTo(BufferedSink sink) throws IOException {
-        Source source = null;
-        try {
-          source = Okio.source(file);
-          sink.writeAll(source);
-        } finally {
-          Util.closeQuietly(source);
-        }
-      }
-    };
+  /**
+   * Returns a new request body that transmits {@code byteCount} bytes of {@code channel} starting
+   * at {@code offset}. The channel's position is not changed. The caller must keep the channel
+   * open until the call completes, and then close it. Like {@link #create(MediaType, File)}, this
+   * may be sent without copying.
+   */
+  public static RequestBody create(MediaType contentType, FileChannel channel, long offset,
+      long byteCount) {
+    return new FileRequestBody(contentType, channel, offset, byteCount);
   }
 }
@@ -22,17 +22,26 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
@@ -84,6 +93,10 @@ import okio.Timeout;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>This class is safe for concurrent use. Lookups don't lock the cache index, and operations on
+ * different entries don't wait for each other's filesystem I/O. Journal records are written by a
+ * background thread; edits that start concurrently share a single journal flush.
  */
 public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
@@ -91,12 +104,24 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
+  static final int BINARY_MAGIC = 0x4f6b4443; // "OkDC"
+  static final int VERSION_2 = 2;
   static final long ANY_SEQUENCE_NUMBER = -1;
-  static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,120}");
+  static final int MAX_KEY_LENGTH = 120;
   private static final String CLEAN = "CLEAN";
   private static final String DIRTY = "DIRTY";
   private static final String REMOVE = "REMOVE";
   private static final String READ = "READ";
+  private static final byte OP_CLEAN = 1;
+  private static final byte OP_DIRTY = 2;
+  private static final byte OP_REMOVE = 3;
+  private static final byte OP_READ = 4;
+
+  /** The number of locks that entries are striped across. Must be a power of 2. */
+  private static final int ENTRY_LOCK_COUNT = 64;
+
+  /** The number of reads to buffer before their LRU and journal updates are applied. */
+  private static final int MAX_RECENT_READS = 64;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -136,6 +161,28 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The journal above is the original text format. Journals are now written in an
+     * equivalent binary format that is faster to replay. Text journals are still read,
+     * and are replaced with binary journals when the cache is opened.
+     *
+     * A binary journal's header is five big-endian ints: the magic number 0x4f6b4443,
+     * the journal format version 2, the application's version, the value count, and the
+     * number of records in the journal's checkpoint. Each record is an op byte (1 for
+     * CLEAN, 2 for DIRTY, 3 for REMOVE, 4 for READ), a key length byte, and the key's
+     * ASCII bytes. CLEAN records are followed by each value's length as a big-endian long.
+     *
+     * A compacted journal is a checkpoint: it holds exactly one record for each entry.
+     * Records appended after the checkpoint form the journal's tail. While the tail is
+     * replayed in the background, reads are served from the checkpoint.
+     */
+
+    /*
+     * Locking: each entry is guarded by one of a fixed set of entry locks, chosen by its key. That
+     * lock is held while the entry's files are opened, renamed or deleted. The cache's own monitor
+     * guards the LRU order, the size and the journal. It is never held while waiting for entry
+     * I/O, and an entry lock may be acquired before it but never after it. Entry state is only
+     * changed while holding both locks, so it may be read while holding either.
      */
 
   private final FileSystem fileSystem;
@@ -144,17 +191,84 @@ public final class DiskLruCache implements Closeable {
   private final File journalFileTmp;
   private final File journalFileBackup;
   private final int appVersion;
+
+  /** Renames the entries of a journal written with {@code migrateFromAppVersion}, or null. */
+  private Migration migration;
+  private int migrateFromAppVersion;
+
+  /** True if the journal being read was written with {@code migrateFromAppVersion}. */
+  private boolean migrating;
   private long maxSize;
   private final int valueCount;
   private long size = 0;
-  private BufferedSink journalWriter;
   private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<>(0, 0.75f, true);
   private int redundantOpCount;
+
+  /** Notified of commits, evictions and journal rebuilds, or null. */
+  private volatile Listener listener;
+
+  /** Chooses entries to evict. Must be written when synchronized on 'this'. */
+  private volatile EvictionPolicy evictionPolicy = EvictionPolicy.lru();
   private boolean hasJournalErrors;
 
-  // Must be read and written when synchronized on 'this'.
-  private boolean initialized;
-  private boolean closed;
+  /** The entries of {@link #lruEntries}, for lookups that don't take the cache's lock. */
+  private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<>();
+
+  private final Object[] entryLocks = new Object[ENTRY_LOCK_COUNT];
+
+  /**
+   * Entries that have been read but not yet moved to the head of the LRU queue. This lets reads
+   * proceed without taking the cache's lock.
+   */
+  private final ConcurrentLinkedQueue<Entry> recentReads = new ConcurrentLinkedQueue<>();
+
+  /** Keys that were looked up and not found, to be reported to the eviction policy. */
+  private final ConcurrentLinkedQueue<String> recentMisses = new ConcurrentLinkedQueue<>();
+
+  /** The number of recent reads and misses. */
+  private final AtomicInteger recentReadCount = new AtomicInteger();
+
+  /**
+   * Writes the journal. This is only accessed by the thread writing the journal while {@code
+   * journalWriterRunning} is true, and by holders of the cache's lock otherwise.
+   */
+  private BufferedSink journalWriter;
+
+  /** Journal records that haven't been written yet. */
+  private Buffer journalBuffer = new Buffer();
+
+  /** The contents of a compacted journal to replace the current journal, or null. */
+  private Buffer journalRebuild;
+
+  /** The number of journal records appended, and the number written and flushed. */
+  private long journalPosition;
+  private long journalFlushedPosition;
+
+  /** True while the journal thread or a thread awaiting the journal is writing it. */
+  private boolean journalWriterRunning;
+
+  // Must be written when synchronized on 'this'.
+  private volatile boolean initialized;
+  private volatile boolean closed;
+
+  /**
+   * The readable entries of the journal's checkpoint and their lengths. This is non-null while
+   * the journal's tail is being replayed.
+   */
+  private volatile Map<String, long[]> checkpoint;
+
+  /** Released once the checkpoint has been loaded or initialization is complete. */
+  private final CountDownLatch checkpointLoaded = new CountDownLatch(1);
+  private final AtomicBoolean initializationStarted = new AtomicBoolean();
+  private final Runnable initializeRunnable = new Runnable() {
+    public void run() {
+      try {
+        initialize();
+      } catch (IOException ignored) {
+        // The next caller to initialize the cache will see this failure.
+      }
+    }
+  };
 
   /**
    * To differentiate between old and current snapshots, each entry is given
@@ -171,21 +285,39 @@ public final class DiskLruCache implements Closeable {
         if (!initialized | closed) {
           return; // Nothing to do
         }
-        try {
-          trimToSize();
+      }
+      try {
+        trimToSize();
+        synchronized (DiskLruCache.this) {
           if (journalRebuildRequired()) {
-            rebuildJournal();
-            redundantOpCount = 0;
+            rebuildJournalLater();
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  /** Used to run 'journalRunnable', which writes journal records in batches. */
+  private final Executor journalExecutor;
+  private final Runnable journalRunnable = new Runnable() {
+    public void run() {
+      while (true) {
+        synchronized (DiskLruCache.this) {
+          if (journalFlushedPosition == journalPosition && journalRebuild == null) {
+            journalWriterRunning = false;
+            DiskLruCache.this.notifyAll();
+            return;
           }
-        } catch (IOException e) {
-          throw new RuntimeException(e);
         }
+        writeJournalBatch();
       }
     }
   };
 
   DiskLruCache(FileSystem fileSystem, File directory, int appVersion, int valueCount, long maxSize,
-      Executor executor) {
+      Executor executor, Executor journalExecutor) {
     this.fileSystem = fileSystem;
     this.directory = directory;
     this.appVersion = appVersion;
@@ -195,15 +327,36 @@ public final class DiskLruCache implements Closeable {
     this.valueCount = valueCount;
     this.maxSize = maxSize;
     this.executor = executor;
+    this.journalExecutor = journalExecutor;
+    for (int i = 0; i < ENTRY_LOCK_COUNT; i++) {
+      entryLocks[i] = new Object();
+    }
   }
 
-  public synchronized void initialize() throws IOException {
-    assert Thread.holdsLock(this);
-
+  public void initialize() throws IOException {
     if (initialized) {
       return; // Already initialized.
     }
 
+    synchronized (this) {
+      if (!initialized) {
+        initializeLocked();
+      }
+    }
+  }
+
+  private void initializeLocked() throws IOException {
+    assert Thread.holdsLock(this);
+    try {
+      openJournal();
+    } finally {
+      checkpoint = null;
+      checkpointLoaded.countDown();
+    }
+  }
+
+  private void openJournal() throws IOException {
+
     // If a bkp file exists, use it instead.
     if (fileSystem.exists(journalFileBackup)) {
       // If journal file also exists just delete backup file.
@@ -219,12 +372,18 @@ public final class DiskLruCache implements Closeable {
       try {
         readJournal();
         processJournal();
+        if (migrating) migrateEntries();
+        replayEntries(evictionPolicy);
         initialized = true;
         return;
       } catch (IOException journalIsCorrupt) {
+        checkpoint = null;
         Platform.get().logW("DiskLruCache " + directory + " is corrupt: "
             + journalIsCorrupt.getMessage() + ", removing");
         delete();
+        lruEntries.clear();
+        index.clear();
+        size = 0;
         closed = false;
       }
     }
@@ -255,54 +414,128 @@ public final class DiskLruCache implements Closeable {
     Executor executor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
         new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp DiskLruCache", true));
 
-    return new DiskLruCache(fileSystem, directory, appVersion, valueCount, maxSize, executor);
+    // Use another to write the journal, so that edits don't wait for evictions.
+    Executor journalExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        Util.threadFactory("OkHttp DiskLruCache Journal", true));
+
+    return new DiskLruCache(fileSystem, directory, appVersion, valueCount, maxSize, executor,
+        journalExecutor);
   }
 
   private void readJournal() throws IOException {
     BufferedSource source = Okio.buffer(fileSystem.source(journalFile));
     try {
-      String magic = source.readUtf8LineStrict();
-      String version = source.readUtf8LineStrict();
-      String appVersionString = source.readUtf8LineStrict();
-      String valueCountString = source.readUtf8LineStrict();
-      String blank = source.readUtf8LineStrict();
-      if (!MAGIC.equals(magic)
-          || !VERSION_1.equals(version)
-          || !Integer.toString(appVersion).equals(appVersionString)
-          || !Integer.toString(valueCount).equals(valueCountString)
-          || !"".equals(blank)) {
-        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
-            + valueCountString + ", " + blank + "]");
+      if (isBinaryJournal(source)) {
+        readBinaryJournal(source);
+      } else {
+        readTextJournal(source);
       }
+    } finally {
+      Util.closeQuietly(source);
+    }
+  }
 
-      int lineCount = 0;
-      while (true) {
-        try {
-          readJournalLine(source.readUtf8LineStrict());
-          lineCount++;
-        } catch (EOFException endOfJournal) {
-          break;
+  private static boolean isBinaryJournal(BufferedSource source) throws IOException {
+    if (!source.request(4)) return false;
+    Buffer buffer = source.buffer();
+    int magic = (buffer.getByte(0) & 0xff) << 24
+        | (buffer.getByte(1) & 0xff) << 16
+        | (buffer.getByte(2) & 0xff) << 8
+        | (buffer.getByte(3) & 0xff);
+    return magic == BINARY_MAGIC;
+  }
+
+  private void readBinaryJournal(BufferedSource source) throws IOException {
+    int magic = source.readInt();
+    int version = source.readInt();
+    int appVersion = source.readInt();
+    int valueCount = source.readInt();
+    int checkpointRecordCount = source.readInt();
+    if (magic != BINARY_MAGIC
+        || version != VERSION_2
+        || !isReadableAppVersion(appVersion)
+        || valueCount != this.valueCount
+        || checkpointRecordCount < 0) {
+      throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+          + valueCount + ", " + checkpointRecordCount + "]");
+    }
+    migrating = appVersion != this.appVersion;
+
+    for (int i = 0; i < checkpointRecordCount; i++) {
+      readJournalRecord(source);
+    }
+
+    // Let reads proceed against the checkpoint while the tail is replayed. The keys of a journal
+    // that will be migrated are not the keys that readers will ask for.
+    if (!migrating) {
+      Map<String, long[]> checkpoint = new HashMap<>();
+      for (Entry entry : lruEntries.values()) {
+        if (entry.readable && entry.currentEditor == null) {
+          checkpoint.put(entry.key, entry.lengths.clone());
         }
       }
-      redundantOpCount = lineCount - lruEntries.size();
+      this.checkpoint = checkpoint;
+      checkpointLoaded.countDown();
+    }
 
-      // If we ended on a truncated line, rebuild the journal before appending to it.
-      if (!source.exhausted()) {
-        rebuildJournal();
-      } else {
-        journalWriter = newJournalWriter();
+    int recordCount = checkpointRecordCount;
+    boolean truncated = false;
+    while (!source.exhausted()) {
+      try {
+        readJournalRecord(source);
+        recordCount++;
+      } catch (EOFException e) {
+        truncated = true;
+        break;
       }
-    } finally {
-      Util.closeQuietly(source);
+    }
+    redundantOpCount = recordCount - lruEntries.size();
+
+    // If we ended on a truncated record, rebuild the journal before appending to it.
+    if (truncated) {
+      rebuildJournal();
+    } else {
+      journalWriter = newJournalWriter();
     }
   }
 
+  /** Reads a text journal, then replaces it with a binary journal. */
+  private void readTextJournal(BufferedSource source) throws IOException {
+    String magic = source.readUtf8LineStrict();
+    String version = source.readUtf8LineStrict();
+    String appVersionString = source.readUtf8LineStrict();
+    String valueCountString = source.readUtf8LineStrict();
+    String blank = source.readUtf8LineStrict();
+    if (!MAGIC.equals(magic)
+        || !VERSION_1.equals(version)
+        || !isReadableAppVersion(appVersionString)
+        || !Integer.toString(valueCount).equals(valueCountString)
+        || !"".equals(blank)) {
+      throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+          + valueCountString + ", " + blank + "]");
+    }
+    migrating = !Integer.toString(appVersion).equals(appVersionString);
+
+    while (true) {
+      try {
+        readJournalLine(source.readUtf8LineStrict());
+      } catch (EOFException endOfJournal) {
+        break;
+      }
+    }
+
+    // Migrate to the binary format. This also drops a truncated line, if we ended on one.
+    rebuildJournal();
+  }
+
   private BufferedSink newJournalWriter() throws FileNotFoundException {
     Sink fileSink = fileSystem.appendingSink(journalFile);
     Sink faultHidingSink = new FaultHidingSink(fileSink) {
       @Override protected void onException(IOException e) {
-        assert (Thread.holdsLock(DiskLruCache.this));
-        hasJournalErrors = true;
+        synchronized (DiskLruCache.this) {
+          hasJournalErrors = true;
+        }
       }
     };
     return Okio.buffer(faultHidingSink);
@@ -321,6 +554,7 @@ public final class DiskLruCache implements Closeable {
       key = line.substring(keyBegin);
       if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
         lruEntries.remove(key);
+        index.remove(key);
         return;
       }
     } else {
@@ -331,6 +565,7 @@ public final class DiskLruCache implements Closeable {
     if (entry == null) {
       entry = new Entry(key);
       lruEntries.put(key, entry);
+      index.put(key, entry);
     }
 
     if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
@@ -347,6 +582,40 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  private void readJournalRecord(BufferedSource source) throws IOException {
+    byte op = source.readByte();
+    int keyLength = source.readByte() & 0xff;
+    String key = source.readUtf8(keyLength);
+    if (op == OP_REMOVE) {
+      lruEntries.remove(key);
+      index.remove(key);
+      return;
+    }
+    if (op != OP_CLEAN && op != OP_DIRTY && op != OP_READ) {
+      throw new IOException("unexpected journal record: " + op + " " + key);
+    }
+
+    Entry entry = lruEntries.get(key);
+    if (entry == null) {
+      entry = new Entry(key);
+      lruEntries.put(key, entry);
+      index.put(key, entry);
+    }
+
+    if (op == OP_CLEAN) {
+      for (int i = 0; i < valueCount; i++) {
+        long length = source.readLong();
+        if (length < 0) throw new IOException("unexpected journal record: " + key + " " + length);
+        entry.lengths[i] = length;
+      }
+      entry.readable = true;
+      entry.currentEditor = null;
+    } else if (op == OP_DIRTY) {
+      entry.currentEditor = new Editor(entry);
+    }
+    // This work was already done for OP_READ by calling lruEntries.get().
+  }
+
   /**
    * Computes the initial size and collects garbage as a part of opening the
    * cache. Dirty entries are assumed to be inconsistent and will be deleted.
@@ -366,51 +635,350 @@ public final class DiskLruCache implements Closeable {
           fileSystem.delete(entry.dirtyFiles[t]);
         }
         i.remove();
+        index.remove(entry.key);
       }
     }
   }
 
+  private boolean isReadableAppVersion(int appVersion) {
+    return appVersion == this.appVersion
+        || (migration != null && appVersion == migrateFromAppVersion);
+  }
+
+  private boolean isReadableAppVersion(String appVersionString) {
+    try {
+      return isReadableAppVersion(Integer.parseInt(appVersionString));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Renames the entries of a journal written by an earlier application version, keeping their LRU
+   * order. Entries that the migration rejects or can't read are deleted.
+   */
+  private void migrateEntries() throws IOException {
+    assert Thread.holdsLock(this);
+    List<Entry> entries = new ArrayList<>(lruEntries.values());
+    Set<String> unmigratedKeys = new HashSet<>(lruEntries.keySet());
+    lruEntries.clear();
+    index.clear();
+
+    for (Entry entry : entries) {
+      unmigratedKeys.remove(entry.key);
+      String key = null;
+      Snapshot snapshot;
+      synchronized (entry.lock) { // Other threads don't lock entries until initialization is done.
+        snapshot = entry.snapshot();
+      }
+      if (snapshot != null) {
+        try {
+          key = migration.migrate(entry.key, snapshot);
+        } catch (IOException e) {
+          key = null; // Drop entries that can't be read.
+        } finally {
+          snapshot.close();
+        }
+      }
+
+      // Don't let the new key overwrite an entry that is yet to be migrated.
+      if (key == null || !isValidKey(key) || lruEntries.containsKey(key)
+          || (!key.equals(entry.key) && unmigratedKeys.contains(key))) {
+        for (int i = 0; i < valueCount; i++) {
+          fileSystem.delete(entry.cleanFiles[i]);
+        }
+        size -= entry.size();
+        continue;
+      }
+
+      Entry migrated = entry;
+      if (!key.equals(entry.key)) {
+        migrated = new Entry(key);
+        for (int i = 0; i < valueCount; i++) {
+          fileSystem.rename(entry.cleanFiles[i], migrated.cleanFiles[i]);
+          migrated.lengths[i] = entry.lengths[i];
+        }
+        migrated.readable = true;
+      }
+      lruEntries.put(key, migrated);
+      index.put(key, migrated);
+    }
+
+    migrating = false;
+    rebuildJournal();
+  }
+
   /**
    * Creates a new journal that omits redundant information. This replaces the
-   * current journal if it exists.
+   * current journal if it exists. This is only called while the journal thread is idle.
    */
-  private synchronized void rebuildJournal() throws IOException {
+  private void rebuildJournal() throws IOException {
+    assert Thread.holdsLock(this);
+    long startNanos = System.nanoTime();
+    replaceJournal(compactJournal());
+    redundantOpCount = 0;
+    journalRebuilt(System.nanoTime() - startNanos);
+  }
+
+  private void journalRebuilt(long nanos) {
+    Listener listener = this.listener;
+    if (listener != null) listener.journalRebuilt(nanos);
+  }
+
+  /** Replaces the journal with a compacted one on the journal thread. */
+  private void rebuildJournalLater() throws IOException {
+    assert Thread.holdsLock(this);
+    if (journalWriter == null) return; // The journal is closed.
+
+    // The compacted journal reflects every record that is still pending.
+    journalRebuild = compactJournal();
+    journalBuffer.clear();
+    redundantOpCount = 0;
+    journalPosition++;
+    startJournalWriter();
+  }
+
+  /** Returns the contents of a journal that is a checkpoint of every entry. */
+  private Buffer compactJournal() throws IOException {
+    assert Thread.holdsLock(this);
+    Buffer result = new Buffer();
+    result.writeInt(BINARY_MAGIC);
+    result.writeInt(VERSION_2);
+    result.writeInt(appVersion);
+    result.writeInt(valueCount);
+    result.writeInt(lruEntries.size());
+
+    for (Entry entry : lruEntries.values()) {
+      writeJournalRecord(result, entry.currentEditor != null ? OP_DIRTY : OP_CLEAN, entry);
+    }
+    return result;
+  }
+
+  private void writeJournalRecord(Buffer sink, byte op, Entry entry) {
+    sink.writeByte(op);
+    sink.writeByte(entry.key.length());
+    sink.writeUtf8(entry.key);
+    if (op == OP_CLEAN) {
+      for (long length : entry.lengths) {
+        sink.writeLong(length);
+      }
+    }
+  }
+
+  private void replaceJournal(Buffer contents) throws IOException {
     if (journalWriter != null) {
       journalWriter.close();
     }
 
-    BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp));
+    BufferedSink newJournalWriter;
     try {
-      writer.writeUtf8(MAGIC).writeByte('\n');
-      writer.writeUtf8(VERSION_1).writeByte('\n');
-      writer.writeDecimalLong(appVersion).writeByte('\n');
-      writer.writeDecimalLong(valueCount).writeByte('\n');
-      writer.writeByte('\n');
+      BufferedSink writer = Okio.buffer(fileSystem.sink(journalFileTmp));
+      try {
+        writer.write(contents, contents.size());
+      } finally {
+        writer.close();
+      }
 
-      for (Entry entry : lruEntries.values()) {
-        if (entry.currentEditor != null) {
-          writer.writeUtf8(DIRTY).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          writer.writeByte('\n');
-        } else {
-          writer.writeUtf8(CLEAN).writeByte(' ');
-          writer.writeUtf8(entry.key);
-          entry.writeLengths(writer);
-          writer.writeByte('\n');
+      if (fileSystem.exists(journalFile)) {
+        fileSystem.rename(journalFile, journalFileBackup);
+      }
+      fileSystem.rename(journalFileTmp, journalFile);
+      fileSystem.delete(journalFileBackup);
+
+      newJournalWriter = newJournalWriter();
+    } catch (IOException e) {
+      // Drop records until the journal can be rebuilt. Edits are refused meanwhile.
+      synchronized (this) {
+        journalWriter = Okio.buffer(NULL_SINK);
+        hasJournalErrors = true;
+      }
+      throw e;
+    }
+
+    synchronized (this) {
+      journalWriter = newJournalWriter;
+      hasJournalErrors = false;
+    }
+  }
+
+  /** Appends a record for {@code entry} to the journal, to be written by the journal thread. */
+  private void appendJournal(byte op, Entry entry) {
+    appendJournalRecord(op, entry);
+    startJournalWriter();
+  }
+
+  /**
+   * Appends a record for {@code entry} to the journal without starting the journal thread. Once
+   * it has released the lock the caller must write the record with {@link #awaitJournal} or
+   * {@link #writeJournalIfIdle}. Returns the position to pass to {@link #awaitJournal}.
+   */
+  private long appendJournalRecord(byte op, Entry entry) {
+    assert Thread.holdsLock(this);
+    if (journalWriter == null) return journalPosition; // The journal is closed.
+
+    writeJournalRecord(journalBuffer, op, entry);
+    journalPosition++;
+    return journalPosition;
+  }
+
+  /**
+   * Writes and flushes the pending journal records, and replaces the journal if a rebuild is
+   * pending. The caller must have set {@code journalWriterRunning} and must not hold the lock.
+   */
+  private void writeJournalBatch() {
+    Buffer records;
+    Buffer rebuild;
+    long position;
+    synchronized (this) {
+      records = journalBuffer;
+      journalBuffer = new Buffer();
+      rebuild = journalRebuild;
+      journalRebuild = null;
+      position = journalPosition;
+    }
+
+    try {
+      if (rebuild != null) {
+        long startNanos = System.nanoTime();
+        replaceJournal(rebuild);
+        journalRebuilt(System.nanoTime() - startNanos);
+      }
+      journalWriter.write(records, records.size());
+      journalWriter.flush();
+    } catch (IOException e) {
+      synchronized (this) {
+        hasJournalErrors = true;
+      }
+    }
+
+    synchronized (this) {
+      journalFlushedPosition = position;
+      notifyAll();
+    }
+  }
+
+  /** Called by the thread that wrote a batch of journal records on behalf of awaiting threads. */
+  private synchronized void finishJournalBatch() {
+    journalWriterRunning = false;
+    notifyAll();
+    // Records appended meanwhile by threads that won't write them go to the journal thread.
+    if (journalFlushedPosition < journalPosition || journalRebuild != null) {
+      startJournalWriter();
+    }
+  }
+
+  /**
+   * Writes the pending journal records on the calling thread if no other thread is writing the
+   * journal. Otherwise the thread that is writing it writes these records too.
+   */
+  private void writeJournalIfIdle() {
+    synchronized (this) {
+      if (journalWriterRunning || journalWriter == null) return;
+      if (journalFlushedPosition == journalPosition && journalRebuild == null) return;
+      journalWriterRunning = true;
+    }
+    writeJournalBatch();
+    finishJournalBatch();
+  }
+
+  private void startJournalWriter() {
+    if (!journalWriterRunning) {
+      journalWriterRunning = true;
+      journalExecutor.execute(journalRunnable);
+    }
+  }
+
+  /**
+   * Waits until the journal has been written through {@code position}. Returns false if the
+   * journal can't be written.
+   *
+   * <p>If no other thread is writing the journal, the calling thread writes it itself rather than
+   * handing off to the journal thread and waiting to be woken. Threads that wait meanwhile share
+   * that write and flush.
+   */
+  private boolean awaitJournal(long position) throws InterruptedIOException {
+    while (true) {
+      synchronized (this) {
+        try {
+          while (journalWriterRunning
+              && journalFlushedPosition < position && journalWriter != null) {
+            wait();
+          }
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        if (journalFlushedPosition >= position || journalWriter == null) {
+          return !hasJournalErrors;
         }
+        journalWriterRunning = true;
       }
-    } finally {
-      writer.close();
+
+      writeJournalBatch();
+      finishJournalBatch();
     }
+  }
 
-    if (fileSystem.exists(journalFile)) {
-      fileSystem.rename(journalFile, journalFileBackup);
+  /** Waits for pending journal records to be written, then closes the journal. */
+  private void closeJournal() throws IOException {
+    assert Thread.holdsLock(this);
+    try {
+      while (journalWriterRunning) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
     }
-    fileSystem.rename(journalFileTmp, journalFile);
-    fileSystem.delete(journalFileBackup);
+    if (journalWriter != null) {
+      journalWriter.close();
+      journalWriter = null;
+    }
+    notifyAll(); // Release threads waiting for the journal.
+  }
+
+  private Object lockFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return entryLocks[h & (ENTRY_LOCK_COUNT - 1)];
+  }
 
-    journalWriter = newJournalWriter();
-    hasJournalErrors = false;
+  /** Records that {@code entry} was read. Applies buffered reads if there are many of them. */
+  private void recordRead(Entry entry) throws IOException {
+    recentReads.add(entry);
+    if (recentReadCount.incrementAndGet() >= MAX_RECENT_READS) {
+      synchronized (this) {
+        drainReads();
+      }
+    }
+  }
+
+  /** Records that {@code key} wasn't found. Applies buffered reads if there are many of them. */
+  private void recordMiss(String key) throws IOException {
+    recentMisses.add(key);
+    if (recentReadCount.incrementAndGet() >= MAX_RECENT_READS) {
+      synchronized (this) {
+        drainReads();
+      }
+    }
+  }
+
+  /** Moves recently read entries to the head of the LRU queue and journals their reads. */
+  private void drainReads() throws IOException {
+    assert Thread.holdsLock(this);
+    for (Entry entry; (entry = recentReads.poll()) != null; ) {
+      recentReadCount.decrementAndGet();
+      if (index.get(entry.key) != entry) continue; // Removed since it was read.
+      lruEntries.get(entry.key);
+      evictionPolicy.onRead(entry.key);
+      redundantOpCount++;
+      appendJournal(OP_READ, entry);
+    }
+    for (String key; (key = recentMisses.poll()) != null; ) {
+      recentReadCount.decrementAndGet();
+      evictionPolicy.onMiss(key);
+    }
+    if (journalRebuildRequired()) {
+      executor.execute(cleanupRunnable);
+    }
   }
 
   /**
@@ -418,24 +986,80 @@ public final class DiskLruCache implements Closeable {
    * exist is not currently readable. If a value is returned, it is moved to
    * the head of the LRU queue.
    */
-  public synchronized Snapshot get(String key) throws IOException {
+  public Snapshot get(String key) throws IOException {
+    Map<String, long[]> checkpoint = awaitCheckpoint();
+    if (checkpoint != null) {
+      return checkpointSnapshot(checkpoint, key);
+    }
+
     initialize();
 
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || !entry.readable) return null;
+    EvictionPolicy evictionPolicy = this.evictionPolicy;
+    Entry entry = index.get(key);
+    Snapshot snapshot = null;
+    if (entry != null) {
+      synchronized (entry.lock) {
+        if (entry.readable && index.get(key) == entry) snapshot = entry.snapshot();
+      }
+    }
+    evictionPolicy.recordLookup(snapshot != null);
+    if (snapshot == null) {
+      recordMiss(key);
+      return null;
+    }
 
-    Snapshot snapshot = entry.snapshot();
-    if (snapshot == null) return null;
+    recordRead(entry);
+    return snapshot;
+  }
 
-    redundantOpCount++;
-    journalWriter.writeUtf8(READ).writeByte(' ').writeUtf8(key).writeByte('\n');
-    if (journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
+  /**
+   * Records a read of the entry named {@code key} that was served without calling {@link #get},
+   * such as from a copy held in memory. This keeps the entry from looking unused to the LRU queue
+   * and the eviction policy. Does nothing if the entry doesn't exist.
+   */
+  public void recordAccess(String key) throws IOException {
+    if (!initialized || closed) return;
+    Entry entry = index.get(key);
+    if (entry != null) recordRead(entry);
+  }
+
+  /**
+   * Starts initializing this cache in the background if necessary, then waits for the journal's
+   * checkpoint to load. Returns the checkpoint if the journal's tail is still being replayed, or
+   * null if reads should wait for initialization to complete.
+   */
+  private Map<String, long[]> awaitCheckpoint() throws IOException {
+    if (initialized) return null;
+
+    if (initializationStarted.compareAndSet(false, true)) {
+      executor.execute(initializeRunnable);
+    }
+    try {
+      checkpointLoaded.await();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
     }
+    return checkpoint;
+  }
 
-    return snapshot;
+  /**
+   * Returns a snapshot of the checkpointed entry named {@code key}. The entry may since have been
+   * updated by a record in the journal's tail, in which case the snapshot's lengths may be stale.
+   */
+  private Snapshot checkpointSnapshot(Map<String, long[]> checkpoint, String key) {
+    checkNotClosed();
+    validateKey(key);
+    long[] lengths = checkpoint.get(key);
+    evictionPolicy.recordLookup(lengths != null);
+    if (lengths == null) return null;
+
+    Entry entry = new Entry(key);
+    synchronized (entry.lock) {
+      System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+      return entry.snapshot();
+    }
   }
 
   /**
@@ -446,37 +1070,65 @@ public final class DiskLruCache implements Closeable {
     return edit(key, ANY_SEQUENCE_NUMBER);
   }
 
-  private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+  private Editor edit(String key, long expectedSequenceNumber) throws IOException {
     initialize();
 
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-        || entry.sequenceNumber != expectedSequenceNumber)) {
-      return null; // Snapshot is stale.
-    }
-    if (entry != null && entry.currentEditor != null) {
-      return null; // Another edit is in progress.
-    }
-
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.writeUtf8(DIRTY).writeByte(' ').writeUtf8(key).writeByte('\n');
-    journalWriter.flush();
+    Editor editor;
+    long journalPosition;
+    synchronized (lockFor(key)) {
+      synchronized (this) {
+        checkNotClosed();
+        Entry entry = lruEntries.get(key);
+        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+            || entry.sequenceNumber != expectedSequenceNumber)) {
+          return null; // Snapshot is stale.
+        }
+        if (entry != null && entry.currentEditor != null) {
+          return null; // Another edit is in progress.
+        }
+        if (hasJournalErrors) {
+          return null; // Don't edit; the journal can't be written.
+        }
 
-    if (hasJournalErrors) {
-      return null; // Don't edit; the journal can't be written.
+        if (entry == null) {
+          entry = new Entry(key);
+          lruEntries.put(key, entry);
+          index.put(key, entry);
+        }
+        editor = new Editor(entry);
+        entry.currentEditor = editor;
+        journalPosition = appendJournalRecord(OP_DIRTY, entry);
+      }
     }
 
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
+    // Flush the journal before creating files to prevent file leaks. Concurrent edits share a
+    // single flush.
+    if (!awaitJournal(journalPosition)) {
+      editor.abortUnlessCommitted();
+      return null; // Don't edit; the journal can't be written.
     }
-    Editor editor = new Editor(entry);
-    entry.currentEditor = editor;
     return editor;
   }
 
+  /**
+   * Configures this cache to keep the entries of a cache written with {@code fromAppVersion},
+   * renaming them as {@code migration} directs. Without a migration, such a cache is deleted. This
+   * must be called before the cache is initialized.
+   */
+  public synchronized void setMigration(int fromAppVersion, Migration migration) {
+    if (migration == null) throw new NullPointerException("migration == null");
+    if (initialized) throw new IllegalStateException("cache is already initialized");
+    this.migrateFromAppVersion = fromAppVersion;
+    this.migration = migration;
+  }
+
+  /** Sets the listener to notify of commits, evictions and journal rebuilds, or null for none. */
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
   /** Returns the directory where this cache stores its data. */
   public File getDirectory() {
     return directory;
@@ -496,9 +1148,38 @@ public final class DiskLruCache implements Closeable {
    */
   public synchronized void setMaxSize(long maxSize) {
     this.maxSize = maxSize;
+    evictionPolicy.setMaxSize(maxSize);
+    if (initialized) {
+      executor.execute(cleanupRunnable);
+    }
+  }
+
+  /** Returns the policy that chooses which entries to evict. */
+  public synchronized EvictionPolicy getEvictionPolicy() {
+    return evictionPolicy;
+  }
+
+  /**
+   * Changes the policy that chooses which entries to evict. The policy is told about the cache's
+   * current entries, least recently used first, and starts with no statistics.
+   */
+  public synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) throws IOException {
+    if (evictionPolicy == null) throw new NullPointerException("evictionPolicy == null");
+    evictionPolicy.setMaxSize(maxSize);
     if (initialized) {
+      drainReads();
+      replayEntries(evictionPolicy);
       executor.execute(cleanupRunnable);
     }
+    this.evictionPolicy = evictionPolicy;
+  }
+
+  /** Notifies {@code evictionPolicy} of the readable entries, least recently used first. */
+  private void replayEntries(EvictionPolicy evictionPolicy) {
+    assert Thread.holdsLock(this);
+    for (Entry entry : lruEntries.values()) {
+      if (entry.readable) evictionPolicy.onWrite(entry.key, entry.size());
+    }
   }
 
   /**
@@ -511,11 +1192,13 @@ public final class DiskLruCache implements Closeable {
     return size;
   }
 
-  private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+  private void completeEdit(Editor editor, boolean success) throws IOException {
     Entry entry = editor.entry;
+    assert Thread.holdsLock(entry.lock);
     if (entry.currentEditor != editor) {
       throw new IllegalStateException();
     }
+    long startNanos = System.nanoTime();
 
     // If this edit is creating the entry for the first time, every index must have a value.
     if (success && !entry.readable) {
@@ -531,43 +1214,51 @@ public final class DiskLruCache implements Closeable {
       }
     }
 
+    long[] newLengths = entry.lengths.clone();
     for (int i = 0; i < valueCount; i++) {
       File dirty = entry.dirtyFiles[i];
       if (success) {
         if (fileSystem.exists(dirty)) {
           File clean = entry.cleanFiles[i];
           fileSystem.rename(dirty, clean);
-          long oldLength = entry.lengths[i];
-          long newLength = fileSystem.size(clean);
-          entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
+          newLengths[i] = fileSystem.size(clean);
         }
       } else {
         fileSystem.delete(dirty);
       }
     }
 
-    redundantOpCount++;
-    entry.currentEditor = null;
-    if (entry.readable | success) {
-      entry.readable = true;
-      journalWriter.writeUtf8(CLEAN).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      entry.writeLengths(journalWriter);
-      journalWriter.writeByte('\n');
-      if (success) {
-        entry.sequenceNumber = nextSequenceNumber++;
+    synchronized (this) {
+      for (int i = 0; i < valueCount; i++) {
+        size = size - entry.lengths[i] + newLengths[i];
+        entry.lengths[i] = newLengths[i];
+      }
+
+      redundantOpCount++;
+      entry.currentEditor = null;
+      if (entry.readable | success) {
+        entry.readable = true;
+        appendJournalRecord(OP_CLEAN, entry);
+        if (success) {
+          entry.sequenceNumber = nextSequenceNumber++;
+          evictionPolicy.onWrite(entry.key, entry.size());
+        }
+      } else {
+        lruEntries.remove(entry.key);
+        index.remove(entry.key);
+        evictionPolicy.onRemove(entry.key);
+        appendJournalRecord(OP_REMOVE, entry);
+      }
+
+      if (size > maxSize || journalRebuildRequired()) {
+        executor.execute(cleanupRunnable);
       }
-    } else {
-      lruEntries.remove(entry.key);
-      journalWriter.writeUtf8(REMOVE).writeByte(' ');
-      journalWriter.writeUtf8(entry.key);
-      journalWriter.writeByte('\n');
     }
-    journalWriter.flush();
+    writeJournalIfIdle();
 
-    if (size > maxSize || journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
+    Listener listener = this.listener;
+    if (listener != null) {
+      listener.editCompleted(entry.key, success, System.nanoTime() - startNanos);
     }
   }
 
@@ -576,6 +1267,7 @@ public final class DiskLruCache implements Closeable {
    * and eliminate at least 2000 ops.
    */
   private boolean journalRebuildRequired() {
+    assert Thread.holdsLock(this);
     final int redundantOpCompactThreshold = 2000;
     return redundantOpCount >= redundantOpCompactThreshold
         && redundantOpCount >= lruEntries.size();
@@ -588,80 +1280,128 @@ public final class DiskLruCache implements Closeable {
    *
    * @return true if an entry was removed.
    */
-  public synchronized boolean remove(String key) throws IOException {
+  public boolean remove(String key) throws IOException {
     initialize();
 
     checkNotClosed();
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null) return false;
-    return removeEntry(entry);
+    synchronized (lockFor(key)) {
+      Entry entry = index.get(key);
+      if (entry == null) return false;
+      return removeEntry(entry);
+    }
   }
 
   private boolean removeEntry(Entry entry) throws IOException {
+    assert Thread.holdsLock(entry.lock);
     if (entry.currentEditor != null) {
       entry.currentEditor.detach(); // Prevent the edit from completing normally.
     }
 
     for (int i = 0; i < valueCount; i++) {
       fileSystem.delete(entry.cleanFiles[i]);
-      size -= entry.lengths[i];
-      entry.lengths[i] = 0;
     }
 
-    redundantOpCount++;
-    journalWriter.writeUtf8(REMOVE).writeByte(' ').writeUtf8(entry.key).writeByte('\n');
-    lruEntries.remove(entry.key);
+    synchronized (this) {
+      for (int i = 0; i < valueCount; i++) {
+        size -= entry.lengths[i];
+        entry.lengths[i] = 0;
+      }
 
-    if (journalRebuildRequired()) {
-      executor.execute(cleanupRunnable);
+      redundantOpCount++;
+      appendJournalRecord(OP_REMOVE, entry);
+      lruEntries.remove(entry.key);
+      index.remove(entry.key);
+      evictionPolicy.onRemove(entry.key);
+
+      if (journalRebuildRequired()) {
+        executor.execute(cleanupRunnable);
+      }
     }
+    writeJournalIfIdle();
 
     return true;
   }
 
   /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
+  public boolean isClosed() {
     return closed;
   }
 
-  private synchronized void checkNotClosed() {
+  private void checkNotClosed() {
     if (isClosed()) {
       throw new IllegalStateException("cache is closed");
     }
   }
 
   /** Force buffered operations to the filesystem. */
-  public synchronized void flush() throws IOException {
+  public void flush() throws IOException {
     if (!initialized) return;
 
     checkNotClosed();
     trimToSize();
-    journalWriter.flush();
+    long position;
+    synchronized (this) {
+      position = journalPosition;
+    }
+    awaitJournal(position);
   }
 
   /** Closes this cache. Stored values will remain on the filesystem. */
-  public synchronized void close() throws IOException {
-    if (!initialized || closed) {
-      closed = true;
-      return;
+  public void close() throws IOException {
+    Entry[] entries;
+    synchronized (this) {
+      if (!initialized || closed) {
+        closed = true;
+        return;
+      }
+      closed = true; // Refuse new edits while the current ones are aborted.
+      entries = lruEntries.values().toArray(new Entry[lruEntries.size()]);
     }
-    // Copying for safe iteration.
-    for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+    for (Entry entry : entries) {
+      synchronized (entry.lock) {
+        if (entry.currentEditor != null) {
+          entry.currentEditor.abort();
+        }
       }
     }
     trimToSize();
-    journalWriter.close();
-    journalWriter = null;
-    closed = true;
+    synchronized (this) {
+      closeJournal();
+    }
   }
 
   private void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Entry toEvict = lruEntries.values().iterator().next();
-      removeEntry(toEvict);
+    while (true) {
+      Entry toEvict;
+      EvictionPolicy evictionPolicy;
+      synchronized (this) {
+        drainReads();
+        if (size <= maxSize) return;
+        toEvict = victim();
+        evictionPolicy = this.evictionPolicy;
+      }
+      synchronized (toEvict.lock) {
+        if (index.get(toEvict.key) == toEvict) {
+          long evictedSize = toEvict.size();
+          removeEntry(toEvict);
+          evictionPolicy.recordEviction();
+          Listener listener = this.listener;
+          if (listener != null) listener.evicted(toEvict.key, evictedSize);
+        }
+      }
+    }
+  }
+
+  /** Returns the entry that the eviction policy chooses, or the least recently used entry. */
+  private Entry victim() {
+    assert Thread.holdsLock(this);
+    while (true) {
+      String key = evictionPolicy.victim(lruEntries.keySet());
+      if (key == null) return lruEntries.values().iterator().next();
+      Entry entry = index.get(key); // Don't use lruEntries.get(), which counts as a read.
+      if (entry != null) return entry;
+      evictionPolicy.onRemove(key); // The policy is out of date.
     }
   }
 
@@ -679,22 +1419,40 @@ public final class DiskLruCache implements Closeable {
    * Deletes all stored values from the cache. In-flight edits will complete
    * normally but their values will not be stored.
    */
-  public synchronized void evictAll() throws IOException {
+  public void evictAll() throws IOException {
     initialize();
     // Copying for safe iteration.
-    for (Entry entry : lruEntries.values().toArray(new Entry[lruEntries.size()])) {
-      removeEntry(entry);
+    Entry[] entries;
+    synchronized (this) {
+      entries = lruEntries.values().toArray(new Entry[lruEntries.size()]);
+    }
+    for (Entry entry : entries) {
+      synchronized (entry.lock) {
+        if (index.get(entry.key) == entry) {
+          removeEntry(entry);
+        }
+      }
     }
   }
 
   private void validateKey(String key) {
-    Matcher matcher = LEGAL_KEY_PATTERN.matcher(key);
-    if (!matcher.matches()) {
+    if (!isValidKey(key)) {
       throw new IllegalArgumentException(
           "keys must match regex [a-z0-9_-]{1,120}: \"" + key + "\"");
     }
   }
 
+  /** Returns true if {@code key} matches {@code [a-z0-9_-]{1,120}}. */
+  private static boolean isValidKey(String key) {
+    int length = key.length();
+    if (length == 0 || length > MAX_KEY_LENGTH) return false;
+    for (int i = 0; i < length; i++) {
+      char c = key.charAt(i);
+      if ((c < 'a' || c > 'z') && (c < '0' || c > '9') && c != '_' && c != '-') return false;
+    }
+    return true;
+  }
+
   /**
    * Returns an iterator over the cache's current entries. This iterator doesn't throw {@code
    * ConcurrentModificationException}, but if new entries are added while iterating, those new
@@ -725,14 +1483,15 @@ public final class DiskLruCache implements Closeable {
       @Override public boolean hasNext() {
         if (nextSnapshot != null) return true;
 
-        synchronized (DiskLruCache.this) {
-          // If the cache is closed, truncate the iterator.
-          if (closed) return false;
+        while (delegate.hasNext()) {
+          Entry entry = delegate.next();
+          synchronized (entry.lock) {
+            // If the cache is closed, truncate the iterator.
+            if (closed) return false;
 
-          while (delegate.hasNext()) {
-            Entry entry = delegate.next();
+            if (!entry.readable || index.get(entry.key) != entry) continue; // Evicted since copied.
             Snapshot snapshot = entry.snapshot();
-            if (snapshot == null) continue; // Evicted since we copied the entries.
+            if (snapshot == null) continue; // A file is missing.
             nextSnapshot = snapshot;
             return true;
           }
@@ -822,6 +1581,30 @@ public final class DiskLruCache implements Closeable {
     }
   };
 
+  /**
+   * Receives notifications of a cache's commits, evictions and journal rebuilds. These may be
+   * called while the cache holds locks, so implementations must not call back into the cache.
+   */
+  public interface Listener {
+    /** Called when an edit of {@code key} is committed or aborted, which took {@code nanos}. */
+    void editCompleted(String key, boolean success, long nanos);
+
+    /** Called when {@code key} is evicted because the cache is over its maximum size. */
+    void evicted(String key, long size);
+
+    /** Called when the journal has been compacted, which took {@code nanos}. */
+    void journalRebuilt(long nanos);
+  }
+
+  /** Renames the entries of a cache that was written by an earlier version of an application. */
+  public interface Migration {
+    /**
+     * Returns the new key for the entry stored as {@code key}, or null to delete it. The returned
+     * key must not be the key of another entry.
+     */
+    String migrate(String key, Snapshot snapshot) throws IOException;
+  }
+
   /** Edits the values for an entry. */
   public final class Editor {
     private final Entry entry;
@@ -840,6 +1623,7 @@ public final class DiskLruCache implements Closeable {
      * an editor has been detached it is possible for another editor to edit the entry.
      */
     void detach() {
+      assert Thread.holdsLock(entry.lock);
       if (entry.currentEditor == this) {
         for (int i = 0; i < valueCount; i++) {
           try {
@@ -848,7 +1632,9 @@ public final class DiskLruCache implements Closeable {
             // This file is potentially leaked. Not much we can do about that.
           }
         }
-        entry.currentEditor = null;
+        synchronized (DiskLruCache.this) {
+          entry.currentEditor = null;
+        }
       }
     }
 
@@ -857,7 +1643,7 @@ public final class DiskLruCache implements Closeable {
      * or null if no value has been committed.
      */
     public Source newSource(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.lock) {
         if (done) {
           throw new IllegalStateException();
         }
@@ -880,7 +1666,7 @@ public final class DiskLruCache implements Closeable {
      * IOExceptions.
      */
     public Sink newSink(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.lock) {
         if (done) {
           throw new IllegalStateException();
         }
@@ -899,7 +1685,7 @@ public final class DiskLruCache implements Closeable {
         }
         return new FaultHidingSink(sink) {
           @Override protected void onException(IOException e) {
-            synchronized (DiskLruCache.this) {
+            synchronized (entry.lock) {
               detach();
             }
           }
@@ -912,7 +1698,7 @@ public final class DiskLruCache implements Closeable {
      * edit lock so another edit may be started on the same key.
      */
     public void commit() throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.lock) {
         if (done) {
           throw new IllegalStateException();
         }
@@ -928,7 +1714,7 @@ public final class DiskLruCache implements Closeable {
      * started on the same key.
      */
     public void abort() throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.lock) {
         if (done) {
           throw new IllegalStateException();
         }
@@ -940,7 +1726,7 @@ public final class DiskLruCache implements Closeable {
     }
 
     public void abortUnlessCommitted() {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.lock) {
         if (!done && entry.currentEditor == this) {
           try {
             completeEdit(this, false);
@@ -954,6 +1740,9 @@ public final class DiskLruCache implements Closeable {
   private final class Entry {
     private final String key;
 
+    /** Guards this entry's files. */
+    private final Object lock;
+
     /** Lengths of this entry's files. */
     private final long[] lengths;
     private final File[] cleanFiles;
@@ -970,6 +1759,7 @@ public final class DiskLruCache implements Closeable {
 
     private Entry(String key) {
       this.key = key;
+      this.lock = lockFor(key);
 
       lengths = new long[valueCount];
       cleanFiles = new File[valueCount];
@@ -1002,24 +1792,26 @@ public final class DiskLruCache implements Closeable {
       }
     }
 
-    /** Append space-prefixed lengths to {@code writer}. */
-    void writeLengths(BufferedSink writer) throws IOException {
-      for (long length : lengths) {
-        writer.writeByte(' ').writeDecimalLong(length);
-      }
-    }
-
     private IOException invalidLengths(String[] strings) throws IOException {
       throw new IOException("unexpected journal line: " + Arrays.toString(strings));
     }
 
+    /** Returns the total length of this entry's files. */
+    private long size() {
+      long result = 0;
+      for (long length : lengths) {
+        result += length;
+      }
+      return result;
+    }
+
     /**
      * Returns a snapshot of this entry. This opens all streams eagerly to guarantee that we see a
      * single published snapshot. If we opened streams lazily then the streams could come from
      * different edits.
      */
     Snapshot snapshot() {
-      if (!Thread.holdsLock(DiskLruCache.this)) throw new AssertionError();
+      if (!Thread.holdsLock(lock)) throw new AssertionError();
 
       Source[] sources = new Source[valueCount];
       long[] lengths = this.lengths.clone(); // Defensive copy since these can be zeroed out.
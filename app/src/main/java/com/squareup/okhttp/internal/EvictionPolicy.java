@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chooses which entries a {@link DiskLruCache} evicts when it exceeds its maximum size, and counts
+ * the lookups and evictions made while it is in use.
+ *
+ * <p>The cache notifies its policy of writes, reads and removals while holding its own lock, so
+ * policies need not be thread safe. A policy must not be shared by multiple caches.
+ */
+public abstract class EvictionPolicy {
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /** Evicts the least recently used entry. This is the default policy. */
+  public static EvictionPolicy lru() {
+    return new Lru();
+  }
+
+  /**
+   * Evicts entries that have been read at most once before entries that have been read again.
+   * Entries that are read again move to a protected segment, which holds up to {@code
+   * protectedRatio} of the cache's maximum size.
+   */
+  public static EvictionPolicy segmentedLru(float protectedRatio) {
+    return new SegmentedLru(protectedRatio);
+  }
+
+  /**
+   * Admits a new entry only if it has been used more often per byte than the entry it would
+   * displace, as estimated by a frequency sketch of recent writes and reads. Admitted entries are
+   * evicted with a segmented LRU policy. This keeps small, popular entries when large entries are
+   * written once and never read.
+   */
+  public static EvictionPolicy tinyLfu() {
+    return new TinyLfu();
+  }
+
+  public final long hitCount() {
+    return hitCount.get();
+  }
+
+  public final long missCount() {
+    return missCount.get();
+  }
+
+  public final long evictionCount() {
+    return evictionCount.get();
+  }
+
+  final void recordLookup(boolean hit) {
+    (hit ? hitCount : missCount).incrementAndGet();
+  }
+
+  final void recordEviction() {
+    evictionCount.incrementAndGet();
+  }
+
+  /** Called when the cache's maximum size is set. */
+  void setMaxSize(long maxSize) {
+  }
+
+  /** Called when {@code key} is written, either as a new entry or to replace an entry. */
+  abstract void onWrite(String key, long size);
+
+  /** Called when {@code key} is read. */
+  abstract void onRead(String key);
+
+  /** Called when {@code key} is looked up but not found. */
+  void onMiss(String key) {
+  }
+
+  /** Called when {@code key} is removed, whether or not this policy chose it. */
+  abstract void onRemove(String key);
+
+  /**
+   * Returns the key of the entry to evict next. {@code keys} are the cache's keys, least recently
+   * used first; policies that track their own order may ignore it. Returns null to evict the least
+   * recently used entry.
+   */
+  abstract String victim(Set<String> keys);
+
+  static final class Lru extends EvictionPolicy {
+    @Override void onWrite(String key, long size) {
+    }
+
+    @Override void onRead(String key) {
+    }
+
+    @Override void onRemove(String key) {
+    }
+
+    @Override String victim(Set<String> keys) {
+      return null; // The cache's own access order is least recently used first.
+    }
+  }
+
+  static final class SegmentedLru extends EvictionPolicy {
+    private final float protectedRatio;
+    private long maxProtectedSize = Long.MAX_VALUE;
+
+    /** Sizes of entries that haven't been read since they were written, eldest first. */
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>();
+
+    /** Sizes of entries that have been read, least recently used first. */
+    private final LinkedHashMap<String, Long> protectedEntries = new LinkedHashMap<>();
+    private long protectedSize;
+
+    /** The total size of all entries. */
+    private long size;
+
+    SegmentedLru(float protectedRatio) {
+      if (protectedRatio < 0f || protectedRatio > 1f) {
+        throw new IllegalArgumentException("protectedRatio < 0 || protectedRatio > 1: "
+            + protectedRatio);
+      }
+      this.protectedRatio = protectedRatio;
+    }
+
+    @Override void setMaxSize(long maxSize) {
+      this.maxProtectedSize = (long) (maxSize * protectedRatio);
+      demote();
+    }
+
+    long size() {
+      return size;
+    }
+
+    boolean contains(String key) {
+      return probation.containsKey(key) || protectedEntries.containsKey(key);
+    }
+
+    /** Returns the size of {@code key}, or 0 if it isn't tracked. */
+    long sizeOf(String key) {
+      Long result = probation.get(key);
+      if (result == null) result = protectedEntries.get(key);
+      return result != null ? result : 0L;
+    }
+
+    @Override void onWrite(String key, long size) {
+      onRemove(key);
+      this.size += size;
+      probation.put(key, size);
+    }
+
+    @Override void onRead(String key) {
+      Long size = probation.remove(key);
+      if (size == null) {
+        size = protectedEntries.remove(key);
+        if (size == null) return;
+        protectedSize -= size;
+      }
+      protectedEntries.put(key, size);
+      protectedSize += size;
+      demote();
+    }
+
+    /** Moves the least recently used protected entries to probation until protected fits. */
+    private void demote() {
+      for (Iterator<Map.Entry<String, Long>> i = protectedEntries.entrySet().iterator();
+          protectedSize > maxProtectedSize && protectedEntries.size() > 1; ) {
+        Map.Entry<String, Long> eldest = i.next();
+        i.remove();
+        protectedSize -= eldest.getValue();
+        probation.put(eldest.getKey(), eldest.getValue());
+      }
+    }
+
+    @Override void onRemove(String key) {
+      Long size = probation.remove(key);
+      if (size == null) {
+        size = protectedEntries.remove(key);
+        if (size == null) return;
+        protectedSize -= size;
+      }
+      this.size -= size;
+    }
+
+    @Override String victim(Set<String> keys) {
+      if (!probation.isEmpty()) return probation.keySet().iterator().next();
+      if (!protectedEntries.isEmpty()) return protectedEntries.keySet().iterator().next();
+      return null;
+    }
+  }
+
+  /**
+   * A window TinyLFU policy. New entries enter a small LRU window. Entries that leave the window
+   * are admitted to the main segmented LRU if it has room, and otherwise become candidates that
+   * must beat the main segment's victim to be admitted.
+   */
+  static final class TinyLfu extends EvictionPolicy {
+    private static final float WINDOW_RATIO = 0.01f;
+
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    /** Sizes of recently written entries, least recently used first. */
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>();
+    private long windowSize;
+    private long maxWindowSize;
+
+    /** Sizes of entries that left the window while the main segment was full, eldest first. */
+    private final LinkedHashMap<String, Long> candidates = new LinkedHashMap<>();
+
+    /** Entries that were admitted. */
+    private final SegmentedLru main = new SegmentedLru(0.8f);
+    private long maxMainSize = Long.MAX_VALUE;
+
+    @Override void setMaxSize(long maxSize) {
+      maxWindowSize = (long) (maxSize * WINDOW_RATIO);
+      maxMainSize = maxSize - maxWindowSize;
+      main.setMaxSize(maxMainSize);
+      trimWindow();
+    }
+
+    @Override void onWrite(String key, long size) {
+      sketch.increment(key);
+      if (main.contains(key)) {
+        main.onWrite(key, size);
+      } else if (candidates.remove(key) != null) {
+        candidates.put(key, size);
+      } else {
+        Long previous = window.remove(key);
+        if (previous != null) windowSize -= previous;
+        window.put(key, size);
+        windowSize += size;
+        trimWindow();
+      }
+    }
+
+    @Override void onRead(String key) {
+      sketch.increment(key);
+      Long size = window.remove(key);
+      if (size != null) {
+        window.put(key, size);
+      } else {
+        main.onRead(key);
+      }
+    }
+
+    @Override void onMiss(String key) {
+      sketch.increment(key); // A key that is missed is likely to be written soon.
+    }
+
+    @Override void onRemove(String key) {
+      Long size = window.remove(key);
+      if (size != null) {
+        windowSize -= size;
+      } else if (candidates.remove(key) == null) {
+        main.onRemove(key);
+      }
+    }
+
+    /** Moves the least recently used entries out of the window until it fits. */
+    private void trimWindow() {
+      for (Iterator<Map.Entry<String, Long>> i = window.entrySet().iterator();
+          windowSize > maxWindowSize && i.hasNext(); ) {
+        Map.Entry<String, Long> eldest = i.next();
+        i.remove();
+        windowSize -= eldest.getValue();
+        if (main.size() + eldest.getValue() <= maxMainSize) {
+          main.onWrite(eldest.getKey(), eldest.getValue());
+        } else {
+          candidates.put(eldest.getKey(), eldest.getValue());
+        }
+      }
+    }
+
+    @Override String victim(Set<String> keys) {
+      while (!candidates.isEmpty()) {
+        Map.Entry<String, Long> candidate = candidates.entrySet().iterator().next();
+        String candidateKey = candidate.getKey();
+        long candidateSize = candidate.getValue();
+        String victim = main.victim(keys);
+        if (victim != null) {
+          // Keep whichever entry is used more often per byte. Compare without dividing.
+          long victimWeight = Math.max(1L, main.sizeOf(victim));
+          long candidateWeight = Math.max(1L, candidateSize);
+          if ((long) sketch.frequency(candidateKey) * victimWeight
+              <= (long) sketch.frequency(victim) * candidateWeight) {
+            return candidateKey;
+          }
+        }
+        candidates.remove(candidateKey);
+        main.onWrite(candidateKey, candidateSize);
+        if (victim != null) return victim;
+      }
+
+      String victim = main.victim(keys);
+      if (victim != null) return victim;
+      return window.isEmpty() ? null : window.keySet().iterator().next();
+    }
+  }
+
+  /**
+   * A count-min sketch of 4-bit counters that estimates how often each key was used. All counters
+   * are halved periodically so that the estimates favor recent use. Two counters are packed in
+   * each byte, the even-numbered one in the low nibble.
+   */
+  static final class FrequencySketch {
+    private static final int WIDTH = 4096; // Must be a power of two.
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0xb3b8a5e1, 0x6f1d5a03, 0x2d39e1b7 };
+
+    private final byte[] counters = new byte[WIDTH * DEPTH / 2];
+    private int additions;
+
+    void increment(String key) {
+      int hash = spread(key.hashCode());
+      boolean added = false;
+      for (int i = 0; i < DEPTH; i++) {
+        int index = i * WIDTH + indexOf(hash, i);
+        if (count(index) < MAX_COUNT) {
+          counters[index >>> 1] += 1 << shift(index);
+          added = true;
+        }
+      }
+      if (added && ++additions >= WIDTH * 10) reset();
+    }
+
+    int frequency(String key) {
+      int hash = spread(key.hashCode());
+      int result = MAX_COUNT;
+      for (int i = 0; i < DEPTH; i++) {
+        result = Math.min(result, count(i * WIDTH + indexOf(hash, i)));
+      }
+      return result;
+    }
+
+    private int count(int index) {
+      return (counters[index >>> 1] >>> shift(index)) & 0xf;
+    }
+
+    private static int shift(int index) {
+      return (index & 1) << 2;
+    }
+
+    private void reset() {
+      for (int i = 0; i < counters.length; i++) {
+        counters[i] = (byte) ((counters[i] & 0xff) >>> 1 & 0x77); // Halve both counters.
+      }
+      additions /= 2;
+    }
+
+    private static int indexOf(int hash, int row) {
+      int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+      return (h ^ (h >>> 17)) & (WIDTH - 1);
+    }
+
+    private static int spread(int h) {
+      h ^= (h >>> 16);
+      h *= 0x45d9f3b;
+      return h ^ (h >>> 16);
+    }
+  }
+}
@@ -23,6 +23,8 @@ import com.squareup.okhttp.ConnectionSpec;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.internal.http.RequestCoalescer;
 import com.squareup.okhttp.internal.http.StreamAllocation;
 import com.squareup.okhttp.internal.io.RealConnection;
 import java.net.MalformedURLException;
@@ -53,6 +55,8 @@ public abstract class Internal {
 
   public abstract InternalCache internalCache(OkHttpClient client);
 
+  public abstract RequestCoalescer requestCoalescer(OkHttpClient client);
+
   public abstract RealConnection get(
       ConnectionPool pool, Address address, StreamAllocation streamAllocation);
 
@@ -70,5 +74,7 @@ public abstract class Internal {
 
   // TODO delete the following when web sockets move into the main package.
   public abstract void callEnqueue(Call call, Callback responseCallback, boolean forWebSocket);
+
+  public abstract void revalidate(OkHttpClient client, Request request);
   public abstract StreamAllocation callEngineGetStreamAllocation(Call call);
 }
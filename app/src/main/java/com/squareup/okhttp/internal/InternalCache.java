@@ -44,8 +44,8 @@ public interface InternalCache {
    */
   void update(Response cached, Response network) throws IOException;
 
-  /** Track an conditional GET that was satisfied by this cache. */
-  void trackConditionalCacheHit();
+  /** Track an conditional GET that was satisfied by this cache with {@code cacheResponse}. */
+  void trackConditionalCacheHit(Response cacheResponse);
 
   /** Track an HTTP response being satisfied with {@code cacheStrategy}. */
   void trackResponse(CacheStrategy cacheStrategy);
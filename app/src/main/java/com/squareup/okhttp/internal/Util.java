@@ -47,6 +47,9 @@ public final class Util {
   /** A cheap and type-safe constant for the UTF-8 Charset. */
   public static final Charset UTF_8 = Charset.forName("UTF-8");
 
+  private static final char[] HEX_DIGITS =
+      { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
   private Util() {
   }
 
@@ -182,6 +185,71 @@ public final class Util {
     }
   }
 
+  /**
+   * Returns a 32 character string containing a 128-bit hash of {@code s}. This is MurmurHash3's
+   * x64 128-bit variant applied to the string's UTF-16 code units. It is much faster than {@link
+   * #md5Hex} but offers no protection against deliberate collisions.
+   */
+  public static String hashHex(String s) {
+    long h1 = 0L;
+    long h2 = 0L;
+    int length = s.length();
+    int i = 0;
+    for (; length - i >= 8; i += 8) {
+      h1 ^= mixK1(packChars(s, i, 4));
+      h1 = Long.rotateLeft(h1, 27) + h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(packChars(s, i + 4, 4));
+      h2 = Long.rotateLeft(h2, 31) + h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+    int remaining = length - i;
+    if (remaining > 4) h2 ^= mixK2(packChars(s, i + 4, remaining - 4));
+    if (remaining > 0) h1 ^= mixK1(packChars(s, i, Math.min(remaining, 4)));
+
+    h1 ^= length * 2L;
+    h2 ^= length * 2L;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    char[] result = new char[32];
+    for (int j = 0; j < 16; j++) {
+      result[j] = HEX_DIGITS[(int) (h1 >>> (60 - j * 4)) & 0xf];
+      result[j + 16] = HEX_DIGITS[(int) (h2 >>> (60 - j * 4)) & 0xf];
+    }
+    return new String(result);
+  }
+
+  /** Returns {@code count} chars of {@code s} packed little-endian into a long. */
+  private static long packChars(String s, int offset, int count) {
+    long result = 0L;
+    for (int i = 0; i < count; i++) {
+      result |= (long) s.charAt(offset + i) << (i * 16);
+    }
+    return result;
+  }
+
+  private static long mixK1(long k1) {
+    return Long.rotateLeft(k1 * 0x87c37b91114253d5L, 31) * 0x4cf5ad432745937fL;
+  }
+
+  private static long mixK2(long k2) {
+    return Long.rotateLeft(k2 * 0x4cf5ad432745937fL, 33) * 0x87c37b91114253d5L;
+  }
+
+  private static long fmix64(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
   /** Returns a Base 64-encoded string containing a SHA-1 hash of {@code s}. */
   public static String shaBase64(String s) {
     try {
@@ -53,6 +53,16 @@ public interface FrameWriter extends Closeable {
   void synReply(boolean outFinished, int streamId, List<Header> headerBlock)
       throws IOException;
   void headers(int streamId, List<Header> headerBlock) throws IOException;
+
+  /**
+   * HTTP/2 only. Changes the priority of {@code streamId}.
+   *
+   * @param streamDependency the stream ID this stream depends on, or 0 for no dependency.
+   * @param weight relative proportion of priority in [1..256].
+   * @param exclusive inserts this stream ID as the sole child of {@code streamDependency}.
+   */
+  void priority(int streamId, int streamDependency, int weight, boolean exclusive)
+      throws IOException;
   void rstStream(int streamId, ErrorCode errorCode) throws IOException;
 
   /** The maximum size of bytes that may be sent in a single call to {@link #data}. */
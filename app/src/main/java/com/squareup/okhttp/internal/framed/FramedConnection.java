@@ -30,6 +30,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -70,6 +72,17 @@ public final class FramedConnection implements Closeable {
       Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
       Util.threadFactory("OkHttp FramedConnection", true));
 
+  /**
+   * Triggers keepalive pings. The pings themselves are written on {@link #executor} so that a slow
+   * socket doesn't delay the keepalives of other connections.
+   */
+  private static final ScheduledThreadPoolExecutor keepaliveScheduler =
+      new ScheduledThreadPoolExecutor(1, Util.threadFactory("OkHttp Keepalive", true));
+
+  static {
+    keepaliveScheduler.setRemoveOnCancelPolicy(true);
+  }
+
   /** The protocol variant, like {@link Spdy3}. */
   final Protocol protocol;
 
@@ -97,6 +110,24 @@ public final class FramedConnection implements Closeable {
   private final PushObserver pushObserver;
   private int nextPingId;
 
+  /** Milliseconds between keepalive pings on a quiet connection, or 0 for no keepalive pings. */
+  private final int pingIntervalMillis;
+
+  /** The most recent keepalive ping, or null if none is awaiting its response. Guarded by this. */
+  private Ping keepalivePing;
+
+  /** Non-null once keepalive pings have been scheduled. Guarded by this. */
+  private ScheduledFuture<?> keepaliveFuture;
+
+  /** False once a keepalive ping wasn't acknowledged in time. Guarded by this. */
+  private boolean healthy = true;
+
+  /** True once the peer sent a {@code GOAWAY} frame. Guarded by this. */
+  private boolean receivedGoAway;
+
+  /** The time the most recent frame was read. Written only by the reader thread. */
+  private volatile long lastReadNanos = System.nanoTime();
+
   /**
    * The total number of bytes consumed by the application, but not yet
    * acknowledged by sending a {@code WINDOW_UPDATE} frame on this connection.
@@ -111,11 +142,23 @@ public final class FramedConnection implements Closeable {
   // Visible for testing
   long bytesLeftInWriteWindow;
 
+  /** Schedules outbound data frames according to stream priorities. Guarded by this. */
+  private final PriorityTree priorityTree = new PriorityTree();
+
+  /** True while a prioritized data frame is being written. Guarded by this. */
+  private boolean writingData;
+
   /** Settings we communicate to the peer. */
   Settings okHttpSettings = new Settings();
 
   private static final int OKHTTP_CLIENT_WINDOW_SIZE = 16 * 1024 * 1024;
 
+  /**
+   * The maximum number of pushed data bytes read from the socket but not yet consumed by the push
+   * observer. Pushes that would exceed this are reset so a peer can't exhaust the heap.
+   */
+  private static final long MAX_PUSH_BYTES_QUEUED = 1024 * 1024;
+
   /** Settings we receive from the peer. */
   // TODO: MWS will need to guard on this setting before attempting to push.
   final Settings peerSettings = new Settings();
@@ -133,6 +176,7 @@ public final class FramedConnection implements Closeable {
     pushObserver = builder.pushObserver;
     client = builder.client;
     listener = builder.listener;
+    pingIntervalMillis = builder.pingIntervalMillis;
     // http://tools.ietf.org/html/draft-ietf-httpbis-http2-17#section-5.1.1
     nextStreamId = builder.client ? 1 : 2;
     if (builder.client && protocol == Protocol.HTTP_2) {
@@ -193,8 +237,10 @@ public final class FramedConnection implements Closeable {
 
   synchronized FramedStream removeStream(int streamId) {
     FramedStream stream = streams.remove(streamId);
+    priorityTree.remove(streamId);
     if (stream != null && streams.isEmpty()) {
       setIdle(true);
+      if (receivedGoAway) closeLater(); // The peer is going away and we've drained our streams.
     }
     notifyAll(); // The removed stream may be blocked on a connection-wide window update.
     return stream;
@@ -209,6 +255,14 @@ public final class FramedConnection implements Closeable {
     return idleStartTimeNs != Long.MAX_VALUE;
   }
 
+  /**
+   * Returns true if this connection may carry new streams. That is false once either peer has shut
+   * the connection down, or if a keepalive ping wasn't acknowledged in time.
+   */
+  public synchronized boolean isHealthy() {
+    return !shutdown && healthy;
+  }
+
   public synchronized int maxConcurrentStreams() {
     return peerSettings.getMaxConcurrentStreams(Integer.MAX_VALUE);
   }
@@ -249,8 +303,32 @@ public final class FramedConnection implements Closeable {
     return newStream(0, requestHeaders, out, in);
   }
 
+  /**
+   * Returns a new locally-initiated stream with the given priority. HTTP/2 only; other protocols
+   * ignore the priority.
+   *
+   * @param streamDependency the stream this stream depends on, or 0 to depend on no stream.
+   * @param weight relative share of the parent's resources, in [1..256].
+   * @param exclusive true to make this stream the sole dependency of {@code streamDependency}.
+   */
+  public FramedStream newStream(List<Header> requestHeaders, boolean out, boolean in,
+      int streamDependency, int weight, boolean exclusive) throws IOException {
+    return newStream(0, requestHeaders, out, in, streamDependency, weight, exclusive);
+  }
+
   private FramedStream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
       boolean in) throws IOException {
+    return newStream(associatedStreamId, requestHeaders, out, in, 0, PriorityTree.DEFAULT_WEIGHT,
+        false);
+  }
+
+  private FramedStream newStream(int associatedStreamId, List<Header> requestHeaders, boolean out,
+      boolean in, int streamDependency, int weight, boolean exclusive) throws IOException {
+    if (weight < PriorityTree.MIN_WEIGHT || weight > PriorityTree.MAX_WEIGHT) {
+      throw new IllegalArgumentException("weight < 1 || weight > 256: " + weight);
+    }
+    boolean defaultPriority = streamDependency == 0 && weight == PriorityTree.DEFAULT_WEIGHT
+        && !exclusive;
     boolean outFinished = !out;
     boolean inFinished = !in;
     FramedStream stream;
@@ -266,12 +344,16 @@ public final class FramedConnection implements Closeable {
         stream = new FramedStream(streamId, this, outFinished, inFinished, requestHeaders);
         if (stream.isOpen()) {
           streams.put(streamId, stream);
+          priorityTree.add(streamId, streamDependency, weight, exclusive);
           setIdle(false);
         }
       }
       if (associatedStreamId == 0) {
         frameWriter.synStream(outFinished, inFinished, streamId, associatedStreamId,
             requestHeaders);
+        if (!defaultPriority && protocol == Protocol.HTTP_2) {
+          frameWriter.priority(streamId, streamDependency, weight, exclusive);
+        }
       } else if (client) {
         throw new IllegalArgumentException("client streams shouldn't have associated stream IDs");
       } else { // HTTP/2 has a PUSH_PROMISE frame.
@@ -302,6 +384,10 @@ public final class FramedConnection implements Closeable {
    *
    * <p>Zero {@code byteCount} writes are not subject to flow control and will not block. The only
    * use case for zero {@code byteCount} is closing a flushed output stream.
+   *
+   * <p>When several streams are writing concurrently, data frames are written one at a time in the
+   * order chosen by the {@linkplain PriorityTree priority tree}. A large upload yields to other
+   * streams after each frame.
    */
   public void writeData(int streamId, boolean outFinished, Buffer buffer, long byteCount)
       throws IOException {
@@ -312,27 +398,65 @@ public final class FramedConnection implements Closeable {
 
     while (byteCount > 0) {
       int toWrite;
+      boolean prioritized;
       synchronized (FramedConnection.this) {
+        prioritized = priorityTree.setWritePending(streamId, true);
         try {
-          while (bytesLeftInWriteWindow <= 0) {
+          while (bytesLeftInWriteWindow <= 0
+              || (prioritized && (writingData || priorityTree.nextWriter() != streamId))) {
             // Before blocking, confirm that the stream we're writing is still open. It's possible
             // that the stream has since been closed (such as if this write timed out.)
             if (!streams.containsKey(streamId)) {
               throw new IOException("stream closed");
             }
-            FramedConnection.this.wait(); // Wait until we receive a WINDOW_UPDATE.
+            FramedConnection.this.wait(); // Wait until we receive a WINDOW_UPDATE or our turn.
           }
         } catch (InterruptedException e) {
           throw new InterruptedIOException();
+        } finally {
+          if (prioritized) {
+            priorityTree.setWritePending(streamId, false);
+            FramedConnection.this.notifyAll(); // The next writer may have changed.
+          }
         }
 
         toWrite = (int) Math.min(byteCount, bytesLeftInWriteWindow);
         toWrite = Math.min(toWrite, frameWriter.maxDataLength());
         bytesLeftInWriteWindow -= toWrite;
+        if (prioritized) {
+          priorityTree.charge(streamId, toWrite);
+          writingData = true;
+        }
       }
 
       byteCount -= toWrite;
-      frameWriter.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
+      try {
+        frameWriter.data(outFinished && byteCount == 0, streamId, buffer, toWrite);
+      } finally {
+        if (prioritized) {
+          synchronized (FramedConnection.this) {
+            writingData = false;
+            FramedConnection.this.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Changes the priority of {@code streamId} and informs the peer with a {@code PRIORITY} frame.
+   * HTTP/2 only; other protocols only update the local schedule.
+   */
+  void writePriority(int streamId, int streamDependency, int weight, boolean exclusive)
+      throws IOException {
+    synchronized (frameWriter) {
+      synchronized (this) {
+        if (!priorityTree.reprioritize(streamId, streamDependency, weight, exclusive)) return;
+        notifyAll(); // The next writer may have changed.
+      }
+      if (protocol == Protocol.HTTP_2) {
+        frameWriter.priority(streamId, streamDependency, weight, exclusive);
+      }
     }
   }
 
@@ -360,6 +484,20 @@ public final class FramedConnection implements Closeable {
     frameWriter.rstStream(streamId, statusCode);
   }
 
+  /**
+   * Acknowledges {@code byteCount} bytes of DATA that were consumed, whether by the application or
+   * by discarding them, and returns them to the connection's receive window once half of it has
+   * been consumed.
+   */
+  synchronized void connectionBytesConsumed(long byteCount) {
+    unacknowledgedBytesRead += byteCount;
+    if (unacknowledgedBytesRead
+        >= okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2) {
+      writeWindowUpdateLater(0, unacknowledgedBytesRead);
+      unacknowledgedBytesRead = 0;
+    }
+  }
+
   void writeWindowUpdateLater(final int streamId, final long unacknowledgedBytesRead) {
     executor.execute(new NamedRunnable("OkHttp Window Update %s stream %d", hostName, streamId) {
       @Override public void execute() {
@@ -416,6 +554,68 @@ public final class FramedConnection implements Closeable {
     return pings != null ? pings.remove(id) : null;
   }
 
+  private void scheduleKeepalive() {
+    if (pingIntervalMillis == 0) return;
+    synchronized (this) {
+      if (keepaliveFuture != null || shutdown) return;
+      keepaliveFuture = keepaliveScheduler.scheduleAtFixedRate(new Runnable() {
+        @Override public void run() {
+          executor.execute(new NamedRunnable("OkHttp %s keepalive", hostName) {
+            @Override public void execute() {
+              keepalive();
+            }
+          });
+        }
+      }, pingIntervalMillis, pingIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Fails this connection if the previous keepalive ping is still unacknowledged, otherwise pings
+   * the peer if nothing has been read for a full ping interval.
+   */
+  private void keepalive() {
+    Ping previous;
+    synchronized (this) {
+      if (!healthy) return;
+      previous = keepalivePing;
+      keepalivePing = null;
+    }
+
+    if (previous != null && !previous.isDone()) {
+      synchronized (this) {
+        healthy = false;
+      }
+      logger.log(Level.INFO, "FramedConnection keepalive ping to " + hostName + " timed out");
+      // Closing the socket breaks out the reader thread, which fails the streams and cleans up.
+      Util.closeQuietly(socket);
+      return;
+    }
+
+    long quietNanos = System.nanoTime() - lastReadNanos;
+    if (quietNanos < TimeUnit.MILLISECONDS.toNanos(pingIntervalMillis)) return;
+
+    try {
+      Ping ping = ping();
+      synchronized (this) {
+        keepalivePing = ping;
+      }
+    } catch (IOException ignored) {
+      // The connection is shut down or broken; the reader thread will clean up.
+    }
+  }
+
+  private void closeLater() {
+    executor.execute(new NamedRunnable("OkHttp %s close", hostName) {
+      @Override public void execute() {
+        try {
+          close();
+        } catch (IOException ignored) {
+        }
+      }
+    });
+  }
+
   public void flush() throws IOException {
     frameWriter.flush();
   }
@@ -462,9 +662,13 @@ public final class FramedConnection implements Closeable {
     FramedStream[] streamsToClose = null;
     Ping[] pingsToCancel = null;
     synchronized (this) {
+      if (keepaliveFuture != null) {
+        keepaliveFuture.cancel(false);
+      }
       if (!streams.isEmpty()) {
         streamsToClose = streams.values().toArray(new FramedStream[streams.size()]);
         streams.clear();
+        priorityTree.clear();
         setIdle(false);
       }
       if (pings != null) {
@@ -517,6 +721,7 @@ public final class FramedConnection implements Closeable {
     if (windowSize != Settings.DEFAULT_INITIAL_WINDOW_SIZE) {
       frameWriter.windowUpdate(0, windowSize - Settings.DEFAULT_INITIAL_WINDOW_SIZE);
     }
+    scheduleKeepalive();
   }
 
   /** Merges {@code settings} into this peer's settings and sends them to the remote peer. */
@@ -541,6 +746,7 @@ public final class FramedConnection implements Closeable {
     private Protocol protocol = Protocol.SPDY_3;
     private PushObserver pushObserver = PushObserver.CANCEL;
     private boolean client;
+    private int pingIntervalMillis;
 
     /**
      * @param client true if this peer initiated the connection; false if this
@@ -579,6 +785,19 @@ public final class FramedConnection implements Closeable {
       return this;
     }
 
+    /**
+     * Sets the interval between keepalive pings. A ping is only sent if nothing was read from the
+     * peer during the previous interval. If a ping isn't acknowledged before the next interval
+     * elapses the connection is marked unhealthy and closed. Zero disables keepalive pings.
+     */
+    public Builder pingIntervalMillis(int pingIntervalMillis) {
+      if (pingIntervalMillis < 0) {
+        throw new IllegalArgumentException("pingIntervalMillis < 0: " + pingIntervalMillis);
+      }
+      this.pingIntervalMillis = pingIntervalMillis;
+      return this;
+    }
+
     public FramedConnection build() throws IOException {
       return new FramedConnection(this);
     }
@@ -604,6 +823,7 @@ public final class FramedConnection implements Closeable {
           frameReader.readConnectionPreface();
         }
         while (frameReader.nextFrame(this)) {
+          lastReadNanos = System.nanoTime();
         }
         connectionErrorCode = ErrorCode.NO_ERROR;
         streamErrorCode = ErrorCode.CANCEL;
@@ -629,6 +849,7 @@ public final class FramedConnection implements Closeable {
       if (dataStream == null) {
         writeSynResetLater(streamId, ErrorCode.INVALID_STREAM);
         source.skip(length);
+        connectionBytesConsumed(length);
         return;
       }
       dataStream.receiveData(source, length);
@@ -669,6 +890,7 @@ public final class FramedConnection implements Closeable {
               inFinished, headerBlock);
           lastGoodStreamId = streamId;
           streams.put(streamId, newStream);
+          priorityTree.add(streamId, 0, PriorityTree.DEFAULT_WEIGHT, false);
           executor.execute(new NamedRunnable("OkHttp %s stream %d", hostName, streamId) {
             @Override public void execute() {
               try {
@@ -777,10 +999,13 @@ public final class FramedConnection implements Closeable {
       }
 
       // Copy the streams first. We don't want to hold a lock when we call receiveRstStream().
+      // Streams up to lastGoodStreamId are left to drain; the connection is closed once they have.
       FramedStream[] streamsCopy;
       synchronized (FramedConnection.this) {
         streamsCopy = streams.values().toArray(new FramedStream[streams.size()]);
         shutdown = true;
+        receivedGoAway = true;
+        if (streams.isEmpty()) closeLater();
       }
 
       // Fail all streams created after the last good stream ID.
@@ -810,7 +1035,13 @@ public final class FramedConnection implements Closeable {
 
     @Override public void priority(int streamId, int streamDependency, int weight,
         boolean exclusive) {
-      // TODO: honor priority.
+      synchronized (FramedConnection.this) {
+        // Priorities for streams that aren't open are ignored; those streams get the default.
+        if (weight < PriorityTree.MIN_WEIGHT || weight > PriorityTree.MAX_WEIGHT) return;
+        if (priorityTree.reprioritize(streamId, streamDependency, weight, exclusive)) {
+          FramedConnection.this.notifyAll(); // The next writer may have changed.
+        }
+      }
     }
 
     @Override
@@ -832,12 +1063,20 @@ public final class FramedConnection implements Closeable {
   // Guarded by this.
   private final Set<Integer> currentPushRequests = new LinkedHashSet<>();
 
+  /** Bytes of pushed data waiting for the push observer. Guarded by this. */
+  private long pushBytesQueued;
+
   private void pushRequestLater(final int streamId, final List<Header> requestHeaders) {
     synchronized (this) {
       if (currentPushRequests.contains(streamId)) {
         writeSynResetLater(streamId, ErrorCode.PROTOCOL_ERROR);
         return;
       }
+      if (client && isRequestInFlight(requestHeaders)) {
+        // We're already requesting the pushed resource ourselves. Don't receive it twice.
+        writeSynResetLater(streamId, ErrorCode.CANCEL);
+        return;
+      }
       currentPushRequests.add(streamId);
     }
     pushExecutor.execute(new NamedRunnable("OkHttp %s Push Request[%s]", hostName, streamId) {
@@ -856,6 +1095,37 @@ public final class FramedConnection implements Closeable {
     });
   }
 
+  /**
+   * Returns true if a locally-initiated stream is open with the same method, scheme, authority and
+   * path as {@code pushedRequestHeaders}.
+   */
+  private boolean isRequestInFlight(List<Header> pushedRequestHeaders) {
+    assert (Thread.holdsLock(this));
+    for (FramedStream stream : streams.values()) {
+      if (!stream.isLocallyInitiated()) continue;
+      List<Header> requestHeaders = stream.getRequestHeaders();
+      if (sameValue(Header.TARGET_METHOD, requestHeaders, pushedRequestHeaders)
+          && sameValue(Header.TARGET_SCHEME, requestHeaders, pushedRequestHeaders)
+          && sameValue(Header.TARGET_AUTHORITY, requestHeaders, pushedRequestHeaders)
+          && sameValue(Header.TARGET_PATH, requestHeaders, pushedRequestHeaders)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean sameValue(ByteString name, List<Header> a, List<Header> b) {
+    ByteString value = value(name, a);
+    return value != null && value.equals(value(name, b));
+  }
+
+  private static ByteString value(ByteString name, List<Header> headers) {
+    for (int i = 0, size = headers.size(); i < size; i++) {
+      if (headers.get(i).name.equals(name)) return headers.get(i).value;
+    }
+    return null;
+  }
+
   private void pushHeadersLater(final int streamId, final List<Header> requestHeaders,
       final boolean inFinished) {
     pushExecutor.execute(new NamedRunnable("OkHttp %s Push Headers[%s]", hostName, streamId) {
@@ -880,6 +1150,28 @@ public final class FramedConnection implements Closeable {
    */
   private void pushDataLater(final int streamId, final BufferedSource source, final int byteCount,
       final boolean inFinished) throws IOException {
+    boolean overBudget;
+    synchronized (this) {
+      if (!currentPushRequests.contains(streamId)) {
+        source.skip(byteCount); // This push was canceled or never promised. Discard its data.
+        connectionBytesConsumed(byteCount);
+        return;
+      }
+      overBudget = pushBytesQueued + byteCount > MAX_PUSH_BYTES_QUEUED;
+      if (overBudget) {
+        currentPushRequests.remove(streamId);
+      } else {
+        pushBytesQueued += byteCount;
+      }
+    }
+    if (overBudget) {
+      source.skip(byteCount);
+      connectionBytesConsumed(byteCount);
+      writeSynResetLater(streamId, ErrorCode.CANCEL);
+      pushResetLater(streamId, ErrorCode.CANCEL);
+      return;
+    }
+
     final Buffer buffer = new Buffer();
     source.require(byteCount); // Eagerly read the frame before firing client thread.
     source.read(buffer, byteCount);
@@ -895,6 +1187,11 @@ public final class FramedConnection implements Closeable {
             }
           }
         } catch (IOException ignored) {
+        } finally {
+          synchronized (FramedConnection.this) {
+            pushBytesQueued -= byteCount;
+            connectionBytesConsumed(byteCount);
+          }
         }
       }
     });
@@ -16,7 +16,6 @@
 
 package com.squareup.okhttp.internal.framed;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.SocketTimeoutException;
@@ -183,6 +182,38 @@ public final class FramedStream {
     }
   }
 
+  /**
+   * Changes this stream's priority. Outbound data frames on this connection are scheduled so that
+   * a stream is served before the streams that depend on it, and siblings share in proportion to
+   * their weights.
+   *
+   * @param streamDependency the stream this stream depends on, or 0 to depend on no stream.
+   * @param weight relative share of the parent's resources, in [1..256].
+   * @param exclusive true to make this stream the sole dependency of {@code streamDependency}.
+   */
+  public void setPriority(int streamDependency, int weight, boolean exclusive) throws IOException {
+    if (weight < PriorityTree.MIN_WEIGHT || weight > PriorityTree.MAX_WEIGHT) {
+      throw new IllegalArgumentException("weight < 1 || weight > 256: " + weight);
+    }
+    connection.writePriority(id, streamDependency, weight, exclusive);
+  }
+
+  /**
+   * Returns the number of bytes received from the peer that haven't yet been read by the
+   * application. This never exceeds the stream's receive flow control window.
+   */
+  public synchronized long getBufferedByteCount() {
+    return source.readBuffer.size();
+  }
+
+  /**
+   * Returns the most bytes this stream has ever held waiting for the application to read them.
+   * Values near the flow control window indicate that the reader isn't keeping up with the peer.
+   */
+  public synchronized long getMaxBufferedByteCount() {
+    return source.maxBufferedByteCount;
+  }
+
   public Timeout readTimeout() {
     return readTimeout;
   }
@@ -312,15 +343,15 @@ public final class FramedStream {
    * not intended for use by multiple readers.
    */
   private final class FramedDataSource implements Source {
-    /** Buffer to receive data from the network into. Only accessed by the reader thread. */
-    private final Buffer receiveBuffer = new Buffer();
-
     /** Buffer with readable data. Guarded by FramedStream.this. */
     private final Buffer readBuffer = new Buffer();
 
     /** Maximum number of bytes to buffer before reporting a flow control error. */
     private final long maxByteCount;
 
+    /** The most bytes ever held in the read buffer. Guarded by FramedStream.this. */
+    private long maxBufferedByteCount;
+
     /** True if the caller has closed this stream. */
     private boolean closed;
 
@@ -357,14 +388,7 @@ public final class FramedStream {
       }
 
       // Update connection.unacknowledgedBytesRead outside the stream lock.
-      synchronized (connection) { // Multiple application threads may hit this section.
-        connection.unacknowledgedBytesRead += read;
-        if (connection.unacknowledgedBytesRead
-            >= connection.okHttpSettings.getInitialWindowSize(DEFAULT_INITIAL_WINDOW_SIZE) / 2) {
-          connection.writeWindowUpdateLater(0, connection.unacknowledgedBytesRead);
-          connection.unacknowledgedBytesRead = 0;
-        }
-      }
+      connection.connectionBytesConsumed(read);
 
       return read;
     }
@@ -384,39 +408,41 @@ public final class FramedStream {
     void receive(BufferedSource in, long byteCount) throws IOException {
       assert (!Thread.holdsLock(FramedStream.this));
 
-      while (byteCount > 0) {
-        boolean finished;
-        boolean flowControlError;
-        synchronized (FramedStream.this) {
-          finished = this.finished;
-          flowControlError = byteCount + readBuffer.size() > maxByteCount;
-        }
+      boolean finished;
+      boolean flowControlError;
+      synchronized (FramedStream.this) {
+        finished = this.finished;
+        flowControlError = byteCount + readBuffer.size() > maxByteCount;
+      }
 
-        // If the peer sends more data than we can handle, discard it and close the connection.
-        if (flowControlError) {
-          in.skip(byteCount);
-          closeLater(ErrorCode.FLOW_CONTROL_ERROR);
-          return;
-        }
+      // If the peer sends more data than we can handle, discard it and close the connection.
+      if (flowControlError) {
+        in.skip(byteCount);
+        closeLater(ErrorCode.FLOW_CONTROL_ERROR);
+        return;
+      }
+
+      // Discard data received after the stream is finished. It's probably a benign race.
+      if (finished) {
+        in.skip(byteCount);
+        return;
+      }
 
-        // Discard data received after the stream is finished. It's probably a benign race.
-        if (finished) {
+      // Load the whole frame without holding any locks. This is bounded by the flow control window.
+      in.require(byteCount);
+
+      // Move the frame's segments from the connection's buffer to the read buffer. Full segments
+      // change owners; their bytes aren't copied.
+      synchronized (FramedStream.this) {
+        if (closed) {
           in.skip(byteCount);
           return;
         }
-
-        // Fill the receive buffer without holding any locks.
-        long read = in.read(receiveBuffer, byteCount);
-        if (read == -1) throw new EOFException();
-        byteCount -= read;
-
-        // Move the received data to the read buffer to the reader can read it.
-        synchronized (FramedStream.this) {
-          boolean wasEmpty = readBuffer.size() == 0;
-          readBuffer.writeAll(receiveBuffer);
-          if (wasEmpty) {
-            FramedStream.this.notifyAll();
-          }
+        boolean wasEmpty = readBuffer.size() == 0;
+        readBuffer.write(in.buffer(), byteCount);
+        maxBufferedByteCount = Math.max(maxBufferedByteCount, readBuffer.size());
+        if (wasEmpty) {
+          FramedStream.this.notifyAll();
         }
       }
     }
@@ -422,6 +422,17 @@ public final class Http2 implements Variant {
       headers(false, streamId, headerBlock);
     }
 
+    @Override public synchronized void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) throws IOException {
+      if (closed) throw new IOException("closed");
+      int length = 5;
+      byte type = TYPE_PRIORITY;
+      byte flags = FLAG_NONE;
+      frameHeader(streamId, length, type, flags);
+      sink.writeInt((exclusive ? 0x80000000 : 0) | (streamDependency & 0x7fffffff));
+      sink.writeByte((weight - 1) & 0xff);
+    }
+
     @Override public synchronized void pushPromise(int streamId, int promisedStreamId,
         List<Header> requestHeaders) throws IOException {
       if (closed) throw new IOException("closed");
@@ -46,6 +46,11 @@ public final class Ping {
     latch.countDown();
   }
 
+  /** Returns true if this ping's response has arrived or the ping was canceled. */
+  boolean isDone() {
+    return latch.getCount() == 0;
+  }
+
   /**
    * Returns the round trip time for this ping in nanoseconds, waiting for the
    * response to arrive if necessary. Returns -1 if the response was
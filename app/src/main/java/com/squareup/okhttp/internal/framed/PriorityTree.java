@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.framed;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTTP/2 stream dependency tree, used to decide which stream may write the next outbound
+ * {@code DATA} frame. http://tools.ietf.org/html/draft-ietf-httpbis-http2-17#section-5.3
+ *
+ * <p>A stream with data to write is served before any of its descendants. Siblings share their
+ * parent's resources in proportion to their weights; this uses stride scheduling where each node
+ * accumulates a virtual {@code pass} that grows by {@code bytes / weight} whenever it, or one of
+ * its descendants, writes. The sibling with the smallest pass goes next.
+ *
+ * <p>This class is not thread safe. {@link FramedConnection} guards it with its own monitor.
+ */
+final class PriorityTree {
+  static final int DEFAULT_WEIGHT = 16;
+  static final int MIN_WEIGHT = 1;
+  static final int MAX_WEIGHT = 256;
+
+  private final Node root = new Node(0, MAX_WEIGHT);
+  private final Map<Integer, Node> nodes = new HashMap<>();
+
+  /**
+   * Adds {@code streamId} to the tree. If {@code streamDependency} isn't in the tree the stream is
+   * given the default priority.
+   */
+  void add(int streamId, int streamDependency, int weight, boolean exclusive) {
+    if (streamId == 0) throw new IllegalArgumentException("streamId == 0");
+    checkWeight(weight);
+    if (nodes.containsKey(streamId)) {
+      reprioritize(streamId, streamDependency, weight, exclusive);
+      return;
+    }
+    Node node = new Node(streamId, weight);
+    nodes.put(streamId, node);
+    Node parent = nodeOrRoot(streamDependency);
+    if (parent == node) parent = root; // A stream cannot depend on itself.
+    attach(node, parent, exclusive);
+  }
+
+  /**
+   * Moves {@code streamId} beneath {@code streamDependency}. Returns false if the stream is not in
+   * the tree.
+   */
+  boolean reprioritize(int streamId, int streamDependency, int weight, boolean exclusive) {
+    checkWeight(weight);
+    Node node = nodes.get(streamId);
+    if (node == null) return false;
+
+    Node newParent = nodeOrRoot(streamDependency);
+    if (newParent == node) {
+      // A stream cannot depend on itself; treat it as a weight change only.
+      node.weight = weight;
+      return true;
+    }
+
+    // If the new parent is a descendant of this node, first move it to take this node's place.
+    if (isAncestor(node, newParent)) {
+      Node formerParent = node.parent;
+      detach(newParent);
+      attach(newParent, formerParent, false);
+    }
+
+    detach(node);
+    node.weight = weight;
+    attach(node, newParent, exclusive);
+    return true;
+  }
+
+  /**
+   * Removes {@code streamId} from the tree. Its children are moved to its parent, sharing the
+   * removed stream's weight in proportion to their own.
+   */
+  void remove(int streamId) {
+    Node node = nodes.remove(streamId);
+    if (node == null) return;
+
+    Node parent = node.parent;
+    List<Node> children = new ArrayList<>(node.children);
+    int childWeightSum = 0;
+    for (int i = 0, size = children.size(); i < size; i++) {
+      childWeightSum += children.get(i).weight;
+    }
+
+    for (int i = 0, size = children.size(); i < size; i++) {
+      Node child = children.get(i);
+      detach(child);
+      child.weight = Math.max(MIN_WEIGHT, node.weight * child.weight / childWeightSum);
+      attach(child, parent, false);
+    }
+    detach(node);
+  }
+
+  void clear() {
+    nodes.clear();
+    root.children.clear();
+    root.activeCount = 0;
+  }
+
+  /**
+   * Records whether {@code streamId} has a data frame waiting to be written. Returns false if the
+   * stream isn't in the tree, in which case its writes are not scheduled.
+   */
+  boolean setWritePending(int streamId, boolean writePending) {
+    Node node = nodes.get(streamId);
+    if (node == null) return false;
+    if (node.writePending == writePending) return true;
+
+    node.writePending = writePending;
+    int delta = writePending ? 1 : -1;
+    for (Node n = node; n != null; n = n.parent) {
+      if (writePending && n.activeCount == 0 && n.parent != null) {
+        // Don't let a node bank credit while it was idle: catch up with its active siblings.
+        n.pass = Math.max(n.pass, minActivePass(n.parent));
+      }
+      n.activeCount += delta;
+    }
+    return true;
+  }
+
+  /** Returns the stream that should write next, or 0 if no stream has a write pending. */
+  int nextWriter() {
+    Node node = root;
+    while (true) {
+      if (node != root && node.writePending) return node.streamId;
+
+      Node next = null;
+      for (int i = 0, size = node.children.size(); i < size; i++) {
+        Node child = node.children.get(i);
+        if (child.activeCount > 0 && (next == null || child.pass < next.pass)) next = child;
+      }
+      if (next == null) return 0;
+      node = next;
+    }
+  }
+
+  /** Charges {@code byteCount} written by {@code streamId} to it and its ancestors. */
+  void charge(int streamId, long byteCount) {
+    Node node = nodes.get(streamId);
+    if (node == null) return;
+    for (Node n = node; n != root; n = n.parent) {
+      n.pass += byteCount * MAX_WEIGHT / n.weight;
+    }
+  }
+
+  private Node nodeOrRoot(int streamId) {
+    if (streamId == 0) return root;
+    Node node = nodes.get(streamId);
+    return node != null ? node : root;
+  }
+
+  private boolean isAncestor(Node ancestor, Node node) {
+    for (Node n = node.parent; n != null; n = n.parent) {
+      if (n == ancestor) return true;
+    }
+    return false;
+  }
+
+  private long minActivePass(Node parent) {
+    long result = 0;
+    boolean found = false;
+    for (int i = 0, size = parent.children.size(); i < size; i++) {
+      Node child = parent.children.get(i);
+      if (child.activeCount > 0 && (!found || child.pass < result)) {
+        result = child.pass;
+        found = true;
+      }
+    }
+    return result;
+  }
+
+  private void attach(Node node, Node parent, boolean exclusive) {
+    if (exclusive) {
+      // The node becomes the sole child of its parent, adopting all of the parent's children.
+      List<Node> siblings = new ArrayList<>(parent.children);
+      for (int i = 0, size = siblings.size(); i < size; i++) {
+        Node sibling = siblings.get(i);
+        detach(sibling);
+        sibling.parent = node;
+        node.children.add(sibling);
+        node.activeCount += sibling.activeCount;
+      }
+    }
+    if (node.activeCount > 0) {
+      // Don't let a moved node jump ahead of its new siblings with credit from its old ones.
+      node.pass = Math.max(node.pass, minActivePass(parent));
+    }
+    node.parent = parent;
+    parent.children.add(node);
+    for (Node n = parent; n != null; n = n.parent) {
+      n.activeCount += node.activeCount;
+    }
+  }
+
+  private void detach(Node node) {
+    Node parent = node.parent;
+    if (parent == null) return;
+    parent.children.remove(node);
+    for (Node n = parent; n != null; n = n.parent) {
+      n.activeCount -= node.activeCount;
+    }
+    node.parent = null;
+  }
+
+  private static void checkWeight(int weight) {
+    if (weight < MIN_WEIGHT || weight > MAX_WEIGHT) {
+      throw new IllegalArgumentException("weight < 1 || weight > 256: " + weight);
+    }
+  }
+
+  private static final class Node {
+    final int streamId;
+    final List<Node> children = new ArrayList<>();
+    Node parent;
+    int weight;
+
+    /** True if this stream is waiting to write a data frame. */
+    boolean writePending;
+
+    /** Count of streams in this subtree, including this one, that have a write pending. */
+    int activeCount;
+
+    /** Virtual time consumed by this subtree. Lower values are scheduled first. */
+    long pass;
+
+    Node(int streamId, int weight) {
+      this.streamId = streamId;
+      this.weight = weight;
+    }
+  }
+}
@@ -311,6 +311,11 @@ public final class Spdy3 implements Variant {
       // Do nothing: no push promise for SPDY/3.
     }
 
+    @Override public void priority(int streamId, int streamDependency, int weight,
+        boolean exclusive) {
+      // Do nothing: no priority frame for SPDY/3.
+    }
+
     @Override public synchronized void connectionPreface() {
       // Do nothing: no connection preface for SPDY/3.
     }
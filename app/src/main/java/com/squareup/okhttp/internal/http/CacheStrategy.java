@@ -36,9 +36,33 @@ public final class CacheStrategy {
   /** The cached response to return or validate; or null if this call doesn't use a cache. */
   public final Response cacheResponse;
 
+  /**
+   * True if {@link #cacheResponse} is stale and is being served without the network under a
+   * "stale-while-revalidate" directive. The caller should revalidate it in the background.
+   */
+  public final boolean revalidateInBackground;
+
+  /**
+   * True if a "stale-if-error" directive permits {@link #cacheResponse} to be served if the
+   * conditional network request fails with an I/O error or a server error.
+   */
+  public final boolean staleIfError;
+
   private CacheStrategy(Request networkRequest, Response cacheResponse) {
+    this(networkRequest, cacheResponse, false, false);
+  }
+
+  private CacheStrategy(Request networkRequest, Response cacheResponse,
+      boolean revalidateInBackground, boolean staleIfError) {
     this.networkRequest = networkRequest;
     this.cacheResponse = cacheResponse;
+    this.revalidateInBackground = revalidateInBackground;
+    this.staleIfError = staleIfError;
+  }
+
+  /** Returns true if {@code code} is a server error that stale-if-error may hide. */
+  public static boolean isStaleIfErrorCode(int code) {
+    return code == 500 || code == 502 || code == 503 || code == 504;
   }
 
   /**
@@ -165,6 +189,11 @@ public final class CacheStrategy {
         return new CacheStrategy(null, null);
       }
 
+      if (candidate.revalidateInBackground && request.cacheControl().onlyIfCached()) {
+        // We're forbidden from using the network, even in the background.
+        return new CacheStrategy(null, candidate.cacheResponse);
+      }
+
       return candidate;
     }
 
@@ -193,7 +222,8 @@ public final class CacheStrategy {
       }
 
       long ageMillis = cacheResponseAge();
-      long freshMillis = computeFreshnessLifetime();
+      long lifetimeMillis = computeFreshnessLifetime();
+      long freshMillis = lifetimeMillis;
 
       if (requestCaching.maxAgeSeconds() != -1) {
         freshMillis = Math.min(freshMillis, SECONDS.toMillis(requestCaching.maxAgeSeconds()));
@@ -233,9 +263,31 @@ public final class CacheStrategy {
       }
 
       Request conditionalRequest = conditionalRequestBuilder.build();
-      return hasConditions(conditionalRequest)
-          ? new CacheStrategy(conditionalRequest, cacheResponse)
-          : new CacheStrategy(conditionalRequest, null);
+      if (!hasConditions(conditionalRequest)) {
+        return new CacheStrategy(conditionalRequest, null);
+      }
+
+      // Extensions that permit serving stale responses. http://tools.ietf.org/html/rfc5861
+      if (responseCaching.noCache() || responseCaching.mustRevalidate()) {
+        return new CacheStrategy(conditionalRequest, cacheResponse);
+      }
+
+      // Requests that constrain freshness must not be satisfied by a stale response.
+      int staleWhileRevalidateSeconds = responseCaching.staleWhileRevalidateSeconds();
+      if (staleWhileRevalidateSeconds != -1
+          && requestCaching.maxAgeSeconds() == -1
+          && requestCaching.minFreshSeconds() == -1
+          && ageMillis < lifetimeMillis + SECONDS.toMillis(staleWhileRevalidateSeconds)) {
+        Response staleResponse = cacheResponse.newBuilder()
+            .addHeader("Warning", "110 HttpURLConnection \"Response is stale\"")
+            .build();
+        return new CacheStrategy(null, staleResponse, true, false);
+      }
+
+      int staleIfErrorSeconds = responseCaching.staleIfErrorSeconds();
+      boolean staleIfError = staleIfErrorSeconds != -1
+          && ageMillis < lifetimeMillis + SECONDS.toMillis(staleIfErrorSeconds);
+      return new CacheStrategy(conditionalRequest, cacheResponse, false, staleIfError);
     }
 
     /**
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.internal.Util;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import okio.BufferedSink;
+
+/**
+ * A request body that transmits a range of a file. Bytes are read with positional reads so the
+ * file's channel position is never changed, bytes before the range are never read, and the body
+ * may be transmitted any number of times.
+ *
+ * <p>On plain HTTP/1.1 connections whose socket has a channel, {@link Http1xStream} sends the body
+ * with {@link FileChannel#transferTo}, which the kernel may implement without copying the bytes
+ * into user space. Elsewhere the body is copied through {@link #writeTo}.
+ */
+public final class FileRequestBody extends TransferableRequestBody {
+  private final MediaType contentType;
+  private final File file;
+  private final FileChannel channel;
+  private final long offset;
+  /** The number of bytes to transmit, or -1 to transmit through the end of the file. */
+  private final long byteCount;
+
+  public FileRequestBody(MediaType contentType, File file, long offset, long byteCount) {
+    if (file == null) throw new NullPointerException("file == null");
+    if (offset < 0) throw new IllegalArgumentException("offset < 0: " + offset);
+    if (byteCount < -1) throw new IllegalArgumentException("byteCount < -1: " + byteCount);
+    this.contentType = contentType;
+    this.file = file;
+    this.channel = null;
+    this.offset = offset;
+    this.byteCount = byteCount;
+  }
+
+  /** Creates a body backed by {@code channel}, which the caller must keep open and close. */
+  public FileRequestBody(MediaType contentType, FileChannel channel, long offset, long byteCount) {
+    if (channel == null) throw new NullPointerException("channel == null");
+    if (offset < 0) throw new IllegalArgumentException("offset < 0: " + offset);
+    if (byteCount < 0) throw new IllegalArgumentException("byteCount < 0: " + byteCount);
+    this.contentType = contentType;
+    this.file = null;
+    this.channel = channel;
+    this.offset = offset;
+    this.byteCount = byteCount;
+  }
+
+  @Override public MediaType contentType() {
+    return contentType;
+  }
+
+  @Override public long contentLength() {
+    return byteCount != -1 ? byteCount : Math.max(0L, file.length() - offset);
+  }
+
+  @Override public void writeTo(BufferedSink sink) throws IOException {
+    long byteCount = contentLength();
+    RandomAccessFile randomAccessFile = null;
+    try {
+      FileChannel channel = this.channel;
+      if (channel == null) {
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+      }
+      byte[] bytes = new byte[8192];
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      for (long position = offset, end = offset + byteCount; position < end; ) {
+        buffer.clear();
+        buffer.limit((int) Math.min(bytes.length, end - position));
+        int read = channel.read(buffer, position);
+        if (read == -1) throw eof(position);
+        sink.write(bytes, 0, read);
+        position += read;
+      }
+    } finally {
+      Util.closeQuietly(randomAccessFile);
+    }
+  }
+
+  @Override public void writeTo(BufferedSink sink, FileTransfer transfer) throws IOException {
+    transfer.transfer(this);
+  }
+
+  /**
+   * Transfers exactly {@code byteCount} bytes of this body to {@code target}, which must be a
+   * blocking channel.
+   */
+  void transferTo(WritableByteChannel target, long byteCount) throws IOException {
+    RandomAccessFile randomAccessFile = null;
+    try {
+      FileChannel channel = this.channel;
+      if (channel == null) {
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+      }
+      for (long position = offset, end = offset + byteCount; position < end; ) {
+        long transferred = channel.transferTo(position, end - position, target);
+        if (transferred == 0 && position >= channel.size()) throw eof(position);
+        position += transferred;
+      }
+    } finally {
+      Util.closeQuietly(randomAccessFile);
+    }
+  }
+
+  private EOFException eof(long position) {
+    return new EOFException("unexpected end of file at " + position + " of "
+        + (file != null ? file : channel));
+  }
+}
@@ -25,7 +25,11 @@ import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.io.RealConnection;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import okio.AsyncTimeout;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
@@ -226,6 +230,36 @@ public final class Http1xStream implements HttpStream {
     return new FixedLengthSink(contentLength);
   }
 
+  /**
+   * Writes {@code body}, sending its file content straight from the file to the socket's channel
+   * rather than through this stream's buffers. Returns the number of bytes written, or -1 if the
+   * body must be written to a sink instead because its length is unknown, the body is chunked, or
+   * the connection is encrypted or has no socket channel.
+   */
+  public long transferRequestBody(Request request, TransferableRequestBody body)
+      throws IOException {
+    if (state != STATE_OPEN_REQUEST_BODY) throw new IllegalStateException("state: " + state);
+    if ("chunked".equalsIgnoreCase(request.header("Transfer-Encoding"))) return -1;
+    RealConnection connection = streamAllocation != null ? streamAllocation.connection() : null;
+    if (connection == null || connection.getHandshake() != null) return -1;
+    Socket socket = connection.getSocket();
+    final SocketChannel channel = socket.getChannel();
+    if (channel == null || !channel.isBlocking()) return -1;
+    long contentLength = body.contentLength();
+    if (contentLength == -1) return -1;
+
+    final FixedLengthSink fixedLengthSink = (FixedLengthSink) newFixedLengthSink(contentLength);
+    final BufferedSink bodySink = Okio.buffer(fixedLengthSink);
+    body.writeTo(bodySink, new TransferableRequestBody.FileTransfer() {
+      @Override public void transfer(FileRequestBody fileBody) throws IOException {
+        bodySink.flush();
+        fixedLengthSink.transfer(fileBody, channel);
+      }
+    });
+    bodySink.close();
+    return contentLength;
+  }
+
   @Override public void writeRequestBody(RetryableSink requestBody) throws IOException {
     if (state != STATE_OPEN_REQUEST_BODY) throw new IllegalStateException("state: " + state);
     state = STATE_READ_RESPONSE_HEADERS;
@@ -289,6 +323,35 @@ public final class Http1xStream implements HttpStream {
       bytesRemaining -= byteCount;
     }
 
+    /** Sends {@code body} straight from its file to {@code channel}, bypassing {@code sink}. */
+    void transfer(FileRequestBody body, SocketChannel channel) throws IOException {
+      if (closed) throw new IllegalStateException("closed");
+      long byteCount = body.contentLength();
+      if (byteCount > bytesRemaining) {
+        throw new ProtocolException("expected " + bytesRemaining
+            + " bytes but received " + byteCount);
+      }
+      sink.flush();
+
+      // The transfer bypasses the sink, so apply its write timeout here.
+      AsyncTimeout timeout = sink.timeout() instanceof AsyncTimeout
+          ? (AsyncTimeout) sink.timeout()
+          : null;
+      if (timeout != null) timeout.enter();
+      try {
+        body.transferTo(channel, byteCount);
+      } catch (IOException e) {
+        if (timeout != null && timeout.exit()) {
+          InterruptedIOException interrupted = new InterruptedIOException("timeout");
+          interrupted.initCause(e);
+          throw interrupted;
+        }
+        throw e;
+      }
+      if (timeout != null && timeout.exit()) throw new InterruptedIOException("timeout");
+      bytesRemaining -= byteCount;
+    }
+
     @Override public void flush() throws IOException {
       if (closed) return; // Don't throw; this stream might have been closed on the caller's behalf.
       sink.flush();
@@ -25,11 +25,32 @@ import java.util.TimeZone;
 
 /**
  * Best-effort parser for HTTP dates.
+ *
+ * <p>Dates in the preferred IMF-fixdate format, like {@code Sun, 06 Nov 1994 08:49:37 GMT}, are
+ * parsed and formatted by hand. Other formats fall back to {@link SimpleDateFormat}.
  */
 public final class HttpDate {
 
   private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
 
+  private static final String[] DAY_NAMES = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+
+  private static final String[] MONTH_NAMES = {
+      "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+  /** The length of an IMF-fixdate, like {@code Sun, 06 Nov 1994 08:49:37 GMT}. */
+  private static final int IMF_FIXDATE_LENGTH = 29;
+
+  /**
+   * Years outside of this range aren't handled by hand, either because they don't have 4 digits or
+   * because {@link java.util.GregorianCalendar} uses the Julian calendar for them.
+   */
+  private static final int MIN_YEAR = 1600;
+  private static final int MAX_YEAR = 9999;
+
+  /** The most recently formatted date. Servers and caches format the same second repeatedly. */
+  private static volatile FormattedDate lastFormatted = new FormattedDate(Long.MIN_VALUE, null);
+
   /**
    * Most websites serve cookies in the blessed format. Eagerly create the parser to ensure such
    * cookies are on the fast path.
@@ -77,6 +98,11 @@ public final class HttpDate {
       return null;
     }
 
+    long millis = parseImfFixdate(value);
+    if (millis != Long.MIN_VALUE) {
+      return new Date(millis);
+    }
+
     ParsePosition position = new ParsePosition(0);
     Date result = STANDARD_DATE_FORMAT.get().parse(value, position);
     if (position.getIndex() == value.length()) {
@@ -111,7 +137,151 @@ public final class HttpDate {
 
   /** Returns the string for {@code value}. */
   public static String format(Date value) {
-    return STANDARD_DATE_FORMAT.get().format(value);
+    long millis = value.getTime();
+    long seconds = floorDiv(millis, 1000L);
+    FormattedDate last = lastFormatted;
+    if (last.seconds == seconds) {
+      return last.formatted;
+    }
+
+    String result = formatImfFixdate(seconds);
+    if (result == null) {
+      return STANDARD_DATE_FORMAT.get().format(value);
+    }
+    lastFormatted = new FormattedDate(seconds, result);
+    return result;
+  }
+
+  /**
+   * Returns the milliseconds since the epoch of {@code value} if it is an IMF-fixdate, or {@link
+   * Long#MIN_VALUE} if it isn't or if it should be parsed by the slow path. The day name isn't
+   * checked against the date; the slow path ignores a mismatch too.
+   */
+  private static long parseImfFixdate(String value) {
+    if (value.length() != IMF_FIXDATE_LENGTH
+        || value.charAt(3) != ',' || value.charAt(4) != ' ' || value.charAt(7) != ' '
+        || value.charAt(11) != ' ' || value.charAt(16) != ' ' || value.charAt(19) != ':'
+        || value.charAt(22) != ':' || value.charAt(25) != ' '
+        || !value.regionMatches(26, "GMT", 0, 3)
+        || indexOf(DAY_NAMES, value, 0) == -1) {
+      return Long.MIN_VALUE;
+    }
+
+    int day = parseDigits(value, 5, 7);
+    int month = indexOf(MONTH_NAMES, value, 8) + 1;
+    int year = parseDigits(value, 12, 16);
+    int hour = parseDigits(value, 17, 19);
+    int minute = parseDigits(value, 20, 22);
+    int second = parseDigits(value, 23, 25);
+    if (month == 0 || year < MIN_YEAR || year > MAX_YEAR || day < 1
+        || day > daysInMonth(year, month) || hour < 0 || hour > 23 || minute < 0 || minute > 59
+        || second < 0 || second > 59) {
+      return Long.MIN_VALUE;
+    }
+
+    long days = daysSinceEpoch(year, month, day);
+    return ((days * 24L + hour) * 60L + minute) * 60_000L + second * 1000L;
+  }
+
+  /** Returns the IMF-fixdate for {@code seconds} since the epoch, or null if it's out of range. */
+  private static String formatImfFixdate(long seconds) {
+    long days = floorDiv(seconds, 86400L);
+    int secondOfDay = (int) (seconds - days * 86400L);
+
+    // Convert days since the epoch to a date. http://howardhinnant.github.io/date_algorithms.html
+    long shifted = days + 719468L;
+    long era = floorDiv(shifted, 146097L);
+    int dayOfEra = (int) (shifted - era * 146097L);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400L + (month <= 2 ? 1 : 0);
+    if (year < MIN_YEAR || year > MAX_YEAR) return null;
+
+    char[] result = new char[IMF_FIXDATE_LENGTH];
+    DAY_NAMES[(int) floorMod(days + 4, 7L)].getChars(0, 3, result, 0); // 1970-01-01 was a Thu.
+    result[3] = ',';
+    result[4] = ' ';
+    writeDigits(result, 5, 7, day);
+    result[7] = ' ';
+    MONTH_NAMES[month - 1].getChars(0, 3, result, 8);
+    result[11] = ' ';
+    writeDigits(result, 12, 16, (int) year);
+    result[16] = ' ';
+    writeDigits(result, 17, 19, secondOfDay / 3600);
+    result[19] = ':';
+    writeDigits(result, 20, 22, secondOfDay / 60 % 60);
+    result[22] = ':';
+    writeDigits(result, 23, 25, secondOfDay % 60);
+    result[25] = ' ';
+    "GMT".getChars(0, 3, result, 26);
+    return new String(result);
+  }
+
+  /** Returns the number of days from 1970-01-01 to the given date in the Gregorian calendar. */
+  private static long daysSinceEpoch(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400; // Years are positive.
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468L;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    if (month == 2) {
+      boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+      return leap ? 29 : 28;
+    }
+    return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+  }
+
+  /** Returns the index of the name in {@code names} at {@code value[pos..pos+3)}, or -1. */
+  private static int indexOf(String[] names, String value, int pos) {
+    for (int i = 0; i < names.length; i++) {
+      if (value.regionMatches(pos, names[i], 0, 3)) return i;
+    }
+    return -1;
+  }
+
+  /** Returns the decimal number at {@code value[pos..limit)}, or -1 if it isn't all digits. */
+  private static int parseDigits(String value, int pos, int limit) {
+    int result = 0;
+    for (int i = pos; i < limit; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9') return -1;
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /** Writes {@code value} to {@code chars[pos..limit)} as zero-padded decimal digits. */
+  private static void writeDigits(char[] chars, int pos, int limit, int value) {
+    for (int i = limit - 1; i >= pos; i--) {
+      chars[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  private static long floorDiv(long a, long b) {
+    long result = a / b;
+    return (a % b != 0 && (a < 0) != (b < 0)) ? result - 1 : result;
+  }
+
+  private static long floorMod(long a, long b) {
+    return a - floorDiv(a, b) * b;
+  }
+
+  private static final class FormattedDate {
+    final long seconds;
+    final String formatted;
+
+    FormattedDate(long seconds, String formatted) {
+      this.seconds = seconds;
+      this.formatted = formatted;
+    }
   }
 
   private HttpDate() {
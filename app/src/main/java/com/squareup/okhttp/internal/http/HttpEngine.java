@@ -18,8 +18,10 @@
 package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Address;
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.CertificatePinner;
 import com.squareup.okhttp.Connection;
+import com.squareup.okhttp.EventListener;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Interceptor;
@@ -27,6 +29,7 @@ import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Protocol;
 import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.ResponseBody;
 import com.squareup.okhttp.Route;
@@ -46,6 +49,8 @@ import javax.net.ssl.SSLSocketFactory;
 import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
 import okio.GzipSource;
 import okio.Okio;
 import okio.Sink;
@@ -109,6 +114,15 @@ public final class HttpEngine {
   private final Response priorResponse;
   private HttpStream httpStream;
 
+  /** True if this engine has been canceled. */
+  volatile boolean canceled;
+
+  /** The coalesced network request this engine leads, or null if it isn't leading one. */
+  private RequestCoalescer.Flight flight;
+
+  /** The coalesced network request this engine is waiting for, or null if it isn't waiting. */
+  private volatile RequestCoalescer.Flight awaitedFlight;
+
   /** The time when the request headers were written, or -1 if they haven't been written yet. */
   long sentRequestMillis = -1;
 
@@ -206,9 +220,13 @@ public final class HttpEngine {
     Response cacheCandidate = responseCache != null
         ? responseCache.get(request)
         : null;
+    cacheStrategy = cacheStrategy(request, cacheCandidate);
+
+    RequestCoalescer coalescer = Internal.instance.requestCoalescer(client);
+    if (coalescer != null && responseCache != null) {
+      cacheStrategy = coalesce(coalescer, responseCache, request, cacheCandidate, cacheStrategy);
+    }
 
-    long now = System.currentTimeMillis();
-    cacheStrategy = new CacheStrategy.Factory(now, request, cacheCandidate).get();
     networkRequest = cacheStrategy.networkRequest;
     cacheResponse = cacheStrategy.cacheResponse;
 
@@ -216,10 +234,6 @@ public final class HttpEngine {
       responseCache.trackResponse(cacheStrategy);
     }
 
-    if (cacheCandidate != null && cacheResponse == null) {
-      closeQuietly(cacheCandidate.body()); // The cache candidate wasn't applicable. Close it.
-    }
-
     if (networkRequest != null) {
       httpStream = connect();
       httpStream.setHttpEngine(this);
@@ -260,6 +274,9 @@ public final class HttpEngine {
             .priorResponse(stripBody(priorResponse))
             .cacheResponse(stripBody(cacheResponse))
             .build();
+        if (cacheStrategy.revalidateInBackground) {
+          Internal.instance.revalidate(client, userRequest);
+        }
       } else {
         // We're forbidden from using the network, and the cache is insufficient.
         this.userResponse = new Response.Builder()
@@ -276,11 +293,66 @@ public final class HttpEngine {
     }
   }
 
+  private CacheStrategy cacheStrategy(InternalCache responseCache, Request request)
+      throws IOException {
+    Response cacheCandidate = responseCache != null
+        ? responseCache.get(request)
+        : null;
+    return cacheStrategy(request, cacheCandidate);
+  }
+
+  private CacheStrategy cacheStrategy(Request request, Response cacheCandidate) {
+    long now = System.currentTimeMillis();
+    CacheStrategy result = new CacheStrategy.Factory(now, request, cacheCandidate).get();
+
+    if (cacheCandidate != null && result.cacheResponse == null) {
+      closeQuietly(cacheCandidate.body()); // The cache candidate wasn't applicable. Close it.
+    }
+    return result;
+  }
+
+  /**
+   * Returns the strategy for {@code request} after coalescing it with identical requests. If the
+   * request missed the cache this either leads a network request for it, or waits for the call
+   * that is leading one and then reads the response that call cached. Requests are identical if
+   * they differ only in headers that {@code cacheCandidate} doesn't vary on.
+   */
+  private CacheStrategy coalesce(RequestCoalescer coalescer, InternalCache responseCache,
+      Request request, Response cacheCandidate, CacheStrategy strategy) throws IOException {
+    if (forWebSocket || !request.method().equals("GET")
+        || request.cacheControl().noCache() || request.cacheControl().noStore()
+        || request.header("If-None-Match") != null || request.header("If-Modified-Since") != null) {
+      return strategy;
+    }
+
+    String key = RequestCoalescer.key(
+        request, cacheCandidate != null ? cacheCandidate.headers() : null);
+    while (strategy.networkRequest != null && strategy.cacheResponse == null) {
+      flight = coalescer.lead(key);
+      if (flight != null) return strategy; // This call leads.
+
+      int outcome = RequestCoalescer.RETRY;
+      RequestCoalescer.Flight leaderFlight = coalescer.get(key);
+      if (leaderFlight != null) {
+        awaitedFlight = leaderFlight;
+        try {
+          outcome = leaderFlight.await(this, client.getCoalescingTimeout());
+        } finally {
+          awaitedFlight = null;
+        }
+      }
+      strategy = cacheStrategy(responseCache, request);
+      if (outcome != RequestCoalescer.RETRY) break;
+    }
+    return strategy;
+  }
+
   private HttpStream connect() throws RouteException, RequestException, IOException {
     boolean doExtensiveHealthChecks = !networkRequest.method().equals("GET");
     return streamAllocation.newStream(client.getConnectTimeout(),
-        client.getReadTimeout(), client.getWriteTimeout(),
-        client.getRetryOnConnectionFailure(), doExtensiveHealthChecks);
+        client.getReadTimeout(), client.getWriteTimeout(), client.getPingInterval(),
+        Internal.instance.internalCache(client), client.getRetryOnConnectionFailure(),
+        doExtensiveHealthChecks);
   }
 
   private static Response stripBody(Response response) {
@@ -384,6 +456,21 @@ public final class HttpEngine {
     return recover(e, requestBodyOut);
   }
 
+  /**
+   * Returns the stale cached response to serve because the network failed, or null if no cached
+   * response may be served in its place. Call this after recovery has been abandoned.
+   */
+  public Response staleIfErrorResponse() throws IOException {
+    if (cacheStrategy == null || !cacheStrategy.staleIfError) return null;
+    Response staleResponse = cacheResponse.newBuilder()
+        .request(userRequest)
+        .priorResponse(stripBody(priorResponse))
+        .addHeader("Warning", "111 HttpURLConnection \"Revalidation failed\"")
+        .cacheResponse(stripBody(cacheResponse))
+        .build();
+    return unzip(staleResponse);
+  }
+
   private void maybeCache() throws IOException {
     InternalCache responseCache = Internal.instance.internalCache(client);
     if (responseCache == null) return;
@@ -423,6 +510,9 @@ public final class HttpEngine {
    * Otherwise if a socket connection is being established, that is terminated.
    */
   public void cancel() {
+    canceled = true;
+    RequestCoalescer.Flight awaitedFlight = this.awaitedFlight;
+    if (awaitedFlight != null) awaitedFlight.wakeUp();
     streamAllocation.cancel();
   }
 
@@ -431,6 +521,11 @@ public final class HttpEngine {
    * which itself must be used or released.
    */
   public StreamAllocation close() {
+    if (flight != null) {
+      flight.land(RequestCoalescer.RETRY); // This engine failed. Let a follower lead.
+      flight = null;
+    }
+
     if (bufferedRequestBody != null) {
       // This also closes the wrapped requestBodyOut.
       closeQuietly(bufferedRequestBody);
@@ -627,10 +722,16 @@ public final class HttpEngine {
         // Update the cache after combining headers but before stripping the
         // Content-Encoding header (as performed by initContentStream()).
         InternalCache responseCache = Internal.instance.internalCache(client);
-        responseCache.trackConditionalCacheHit();
+        responseCache.trackConditionalCacheHit(cacheResponse);
         responseCache.update(cacheResponse, stripBody(userResponse));
         userResponse = unzip(userResponse);
         return;
+      } else if (cacheStrategy.staleIfError
+          && CacheStrategy.isStaleIfErrorCode(networkResponse.code())) {
+        networkResponse.body().close();
+        releaseStreamAllocation();
+        userResponse = staleIfErrorResponse();
+        return;
       } else {
         closeQuietly(cacheResponse.body());
       }
@@ -647,6 +748,11 @@ public final class HttpEngine {
       maybeCache();
       userResponse = unzip(cacheWritingResponse(storeRequest, userResponse));
     }
+
+    if (flight != null) {
+      flight.land(RequestCoalescer.NOT_CACHED);
+      flight = null;
+    }
   }
 
   class NetworkInterceptorChain implements Interceptor.Chain {
@@ -707,16 +813,33 @@ public final class HttpEngine {
         return interceptedResponse;
       }
 
+      EventListener eventListener = streamAllocation.eventListener();
+      Call call = streamAllocation.call();
+      long startNanos = 0L;
+      if (eventListener != EventListener.NONE) {
+        startNanos = System.nanoTime();
+        eventListener.requestHeadersStart(call);
+      }
+
       httpStream.writeRequestHeaders(request);
 
       //Update the networkRequest with the possibly updated interceptor request.
       networkRequest = request;
 
+      if (eventListener != EventListener.NONE) {
+        eventListener.requestHeadersEnd(call, request, System.nanoTime() - startNanos);
+      }
+
       if (permitsRequestBody(request) && request.body() != null) {
-        Sink requestBodyOut = httpStream.createRequestBody(request, request.body().contentLength());
-        BufferedSink bufferedRequestBody = Okio.buffer(requestBodyOut);
-        request.body().writeTo(bufferedRequestBody);
-        bufferedRequestBody.close();
+        if (eventListener != EventListener.NONE) {
+          startNanos = System.nanoTime();
+          eventListener.requestBodyStart(call);
+        }
+        long byteCount = writeRequestBody(request, eventListener != EventListener.NONE);
+        if (eventListener != EventListener.NONE) {
+          long bodyNanos = System.nanoTime() - startNanos;
+          eventListener.requestBodyEnd(call, byteCount, bodyNanos);
+        }
       }
 
       Response response = readNetworkResponse();
@@ -731,9 +854,38 @@ public final class HttpEngine {
     }
   }
 
+  /**
+   * Writes the body of {@code request} to the network. Returns the number of bytes written, or -1
+   * if they weren't counted because {@code countBytes} is false.
+   */
+  private long writeRequestBody(Request request, boolean countBytes) throws IOException {
+    RequestBody body = request.body();
+    if (body instanceof TransferableRequestBody && httpStream instanceof Http1xStream) {
+      long byteCount = ((Http1xStream) httpStream).transferRequestBody(
+          request, (TransferableRequestBody) body);
+      if (byteCount != -1) return byteCount;
+    }
+
+    Sink requestBodyOut = httpStream.createRequestBody(request, body.contentLength());
+    CountingSink countingSink = null;
+    if (countBytes) requestBodyOut = countingSink = new CountingSink(requestBodyOut);
+    BufferedSink bufferedRequestBody = Okio.buffer(requestBodyOut);
+    body.writeTo(bufferedRequestBody);
+    bufferedRequestBody.close();
+    return countingSink != null ? countingSink.byteCount : -1;
+  }
+
   private Response readNetworkResponse() throws IOException {
     httpStream.finishRequest();
 
+    EventListener eventListener = streamAllocation.eventListener();
+    Call call = streamAllocation.call();
+    long startNanos = 0L;
+    if (eventListener != EventListener.NONE) {
+      startNanos = System.nanoTime();
+      eventListener.responseHeadersStart(call);
+    }
+
     Response networkResponse = httpStream.readResponseHeaders()
         .request(networkRequest)
         .handshake(streamAllocation.connection().getHandshake())
@@ -741,9 +893,18 @@ public final class HttpEngine {
         .header(OkHeaders.RECEIVED_MILLIS, Long.toString(System.currentTimeMillis()))
         .build();
 
+    if (eventListener != EventListener.NONE) {
+      eventListener.responseHeadersEnd(call, networkResponse, System.nanoTime() - startNanos);
+    }
+
     if (!forWebSocket) {
+      ResponseBody body = httpStream.openResponseBody(networkResponse);
+      if (eventListener != EventListener.NONE) {
+        body = new RealResponseBody(networkResponse.headers(), Okio.buffer(
+            new ResponseBodyEventSource(body.source(), call, eventListener)));
+      }
       networkResponse = networkResponse.newBuilder()
-          .body(httpStream.openResponseBody(networkResponse))
+          .body(body)
           .build();
     }
 
@@ -770,6 +931,10 @@ public final class HttpEngine {
     final BufferedSource source = response.body().source();
     final BufferedSink cacheBody = Okio.buffer(cacheBodyUnbuffered);
 
+    // Followers of a coalesced request wait until the cache entry is complete.
+    final RequestCoalescer.Flight flight = this.flight;
+    this.flight = null;
+
     Source cacheWritingSource = new Source() {
       boolean cacheRequestClosed;
 
@@ -781,6 +946,7 @@ public final class HttpEngine {
           if (!cacheRequestClosed) {
             cacheRequestClosed = true;
             cacheRequest.abort(); // Failed to write a complete cache response.
+            if (flight != null) flight.land(RequestCoalescer.RETRY);
           }
           throw e;
         }
@@ -788,7 +954,11 @@ public final class HttpEngine {
         if (bytesRead == -1) {
           if (!cacheRequestClosed) {
             cacheRequestClosed = true;
-            cacheBody.close(); // The cache response is complete!
+            try {
+              cacheBody.close(); // The cache response is complete!
+            } finally {
+              if (flight != null) flight.land(RequestCoalescer.CACHED);
+            }
           }
           return -1;
         }
@@ -807,6 +977,7 @@ public final class HttpEngine {
             && !Util.discard(this, HttpStream.DISCARD_STREAM_TIMEOUT_MILLIS, MILLISECONDS)) {
           cacheRequestClosed = true;
           cacheRequest.abort();
+          if (flight != null) flight.land(RequestCoalescer.RETRY);
         }
         source.close();
       }
@@ -969,7 +1140,8 @@ public final class HttpEngine {
         && url.scheme().equals(followUp.scheme());
   }
 
-  private static Address createAddress(OkHttpClient client, Request request) {
+  /** Returns the address that {@code client} connects to to execute {@code request}. */
+  public static Address createAddress(OkHttpClient client, Request request) {
     SSLSocketFactory sslSocketFactory = null;
     HostnameVerifier hostnameVerifier = null;
     CertificatePinner certificatePinner = null;
@@ -984,4 +1156,54 @@ public final class HttpEngine {
         client.getAuthenticator(), client.getProxy(), client.getProtocols(),
         client.getConnectionSpecs(), client.getProxySelector());
   }
+
+  /** Counts the bytes written to a request body. */
+  private static final class CountingSink extends ForwardingSink {
+    long byteCount;
+
+    CountingSink(Sink delegate) {
+      super(delegate);
+    }
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      super.write(source, byteCount);
+      this.byteCount += byteCount;
+    }
+  }
+
+  /** Reports a response body's size and read time once it is exhausted or closed. */
+  private static final class ResponseBodyEventSource extends ForwardingSource {
+    private final Call call;
+    private final EventListener eventListener;
+    private final long startNanos = System.nanoTime();
+    private long byteCount;
+    private boolean done;
+
+    ResponseBodyEventSource(Source delegate, Call call, EventListener eventListener) {
+      super(delegate);
+      this.call = call;
+      this.eventListener = eventListener;
+    }
+
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      long read = super.read(sink, byteCount);
+      if (read == -1L) {
+        done();
+      } else {
+        this.byteCount += read;
+      }
+      return read;
+    }
+
+    @Override public void close() throws IOException {
+      done();
+      super.close();
+    }
+
+    private void done() {
+      if (done) return;
+      done = true;
+      eventListener.responseBodyEnd(call, byteCount, System.nanoTime() - startNanos);
+    }
+  }
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Handshake;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.InternalCache;
+import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.internal.framed.ErrorCode;
+import com.squareup.okhttp.internal.framed.Header;
+import com.squareup.okhttp.internal.framed.PushObserver;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+import static com.squareup.okhttp.internal.framed.Header.TARGET_AUTHORITY;
+import static com.squareup.okhttp.internal.framed.Header.TARGET_METHOD;
+import static com.squareup.okhttp.internal.framed.Header.TARGET_PATH;
+import static com.squareup.okhttp.internal.framed.Header.TARGET_SCHEME;
+
+/**
+ * Stores HTTP/2 server pushes in the client's cache so that a later request for the pushed
+ * resource is a cache hit. Pushes are canceled unless they are cacheable {@code GET} requests for
+ * the connection's own origin.
+ *
+ * <p>A push budget bounds the bytes of pushed responses that are being received at once. Pushes
+ * that would exceed it are canceled, as are pushes for a URL that is already being pushed.
+ *
+ * <p>Each instance serves a single connection. Its callbacks are invoked serially by that
+ * connection's push executor.
+ */
+public final class PushCacheObserver implements PushObserver {
+  /** The default limit on pushed response bytes received concurrently on a connection. */
+  public static final long DEFAULT_MAX_PUSH_BYTES = 4 * 1024 * 1024;
+
+  /** Pushes beyond this many concurrent pushes on a connection are canceled. */
+  private static final int MAX_CONCURRENT_PUSHES = 16;
+
+  private final InternalCache cache;
+  private final HttpUrl origin;
+  private final Handshake handshake;
+  private final long maxPushBytes;
+
+  /** Pushes that haven't completed, keyed by stream ID. */
+  private final Map<Integer, Push> pushes = new HashMap<>();
+
+  /** Bytes of incomplete pushed responses. */
+  private long pushBytes;
+
+  public PushCacheObserver(InternalCache cache, HttpUrl origin, Handshake handshake,
+      long maxPushBytes) {
+    if (cache == null) throw new NullPointerException("cache == null");
+    if (origin == null) throw new NullPointerException("origin == null");
+    if (maxPushBytes <= 0) throw new IllegalArgumentException("maxPushBytes <= 0: " + maxPushBytes);
+    this.cache = cache;
+    this.origin = origin;
+    this.handshake = handshake;
+    this.maxPushBytes = maxPushBytes;
+  }
+
+  @Override public boolean onRequest(int streamId, List<Header> requestHeaders) {
+    if (pushes.size() >= MAX_CONCURRENT_PUSHES) return true;
+
+    Request request = pushedRequest(requestHeaders);
+    if (request == null) return true;
+
+    // Don't receive the same resource twice.
+    for (Push push : pushes.values()) {
+      if (push.request.urlString().equals(request.urlString())) return true;
+    }
+
+    pushes.put(streamId, new Push(request, System.currentTimeMillis()));
+    return false;
+  }
+
+  @Override public boolean onHeaders(int streamId, List<Header> responseHeaders, boolean last) {
+    Push push = pushes.get(streamId);
+    if (push == null) return true;
+
+    try {
+      Response response = Http2xStream.readHttp2HeadersList(responseHeaders)
+          .request(push.request)
+          .handshake(handshake)
+          .header(OkHeaders.SENT_MILLIS, Long.toString(push.sentRequestMillis))
+          .header(OkHeaders.RECEIVED_MILLIS, Long.toString(System.currentTimeMillis()))
+          .build();
+
+      long contentLength = OkHeaders.contentLength(response);
+      if (!CacheStrategy.isCacheable(response, push.request)
+          || contentLength > maxPushBytes - pushBytes) {
+        cancel(streamId);
+        return true;
+      }
+
+      CacheRequest cacheRequest = cache.put(response);
+      if (cacheRequest == null) {
+        cancel(streamId);
+        return true;
+      }
+      push.cacheRequest = cacheRequest;
+      push.body = Okio.buffer(cacheRequest.body());
+
+      if (last) complete(streamId);
+      return false;
+    } catch (IOException e) {
+      cancel(streamId);
+      return true;
+    }
+  }
+
+  @Override public boolean onData(int streamId, BufferedSource source, int byteCount, boolean last)
+      throws IOException {
+    Push push = pushes.get(streamId);
+    if (push == null || push.body == null) {
+      source.skip(byteCount);
+      return true;
+    }
+
+    if (byteCount > maxPushBytes - pushBytes) {
+      source.skip(byteCount);
+      cancel(streamId);
+      return true;
+    }
+
+    try {
+      pushBytes += byteCount;
+      push.byteCount += byteCount;
+      push.body.write(source, byteCount);
+    } catch (IOException e) {
+      cancel(streamId);
+      return true;
+    }
+
+    if (last) complete(streamId);
+    return false;
+  }
+
+  @Override public void onReset(int streamId, ErrorCode errorCode) {
+    cancel(streamId);
+  }
+
+  /**
+   * Returns the request described by a push promise, or null if it isn't a {@code GET} for this
+   * connection's origin.
+   */
+  private Request pushedRequest(List<Header> requestHeaders) {
+    String method = null;
+    String scheme = null;
+    String authority = null;
+    String path = null;
+    Headers.Builder headers = new Headers.Builder();
+    for (int i = 0, size = requestHeaders.size(); i < size; i++) {
+      ByteString name = requestHeaders.get(i).name;
+      String value = requestHeaders.get(i).value.utf8();
+      if (name.equals(TARGET_METHOD)) {
+        method = value;
+      } else if (name.equals(TARGET_SCHEME)) {
+        scheme = value;
+      } else if (name.equals(TARGET_AUTHORITY)) {
+        authority = value;
+      } else if (name.equals(TARGET_PATH)) {
+        path = value;
+      } else if (name.size() > 0 && name.getByte(0) == ':') {
+        return null; // Unexpected pseudo header.
+      } else {
+        try {
+          headers.add(name.utf8(), value);
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      }
+    }
+
+    // Only safe, cacheable requests may be pushed. http://tools.ietf.org/html/rfc7540#section-8.2
+    if (!"GET".equals(method) || path == null || !path.startsWith("/")) return null;
+
+    // The server must be authoritative for the pushed resource: only accept our own origin.
+    if (!origin.scheme().equals(scheme)
+        || !Util.hostHeader(origin, false).equalsIgnoreCase(authority)) {
+      return null;
+    }
+
+    HttpUrl url = HttpUrl.parse(scheme + "://" + authority + path);
+    if (url == null) return null;
+
+    return new Request.Builder()
+        .url(url)
+        .headers(headers.build())
+        .build();
+  }
+
+  private void complete(int streamId) {
+    Push push = pushes.remove(streamId);
+    if (push == null) return;
+    pushBytes -= push.byteCount;
+    try {
+      push.body.close(); // Commits the cache entry.
+    } catch (IOException e) {
+      push.cacheRequest.abort();
+    }
+  }
+
+  private void cancel(int streamId) {
+    Push push = pushes.remove(streamId);
+    if (push == null) return;
+    pushBytes -= push.byteCount;
+    if (push.cacheRequest != null) push.cacheRequest.abort();
+  }
+
+  private static final class Push {
+    final Request request;
+    final long sentRequestMillis;
+    CacheRequest cacheRequest;
+    BufferedSink body;
+    long byteCount;
+
+    Push(Request request, long sentRequestMillis) {
+      this.request = request;
+      this.sentRequestMillis = sentRequestMillis;
+    }
+  }
+}
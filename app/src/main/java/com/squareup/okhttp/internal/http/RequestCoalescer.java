@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Request;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Coalesces concurrent cache misses for identical requests: requests for the same URL with the same
+ * headers. If the cache holds a response for the URL, only the request headers named by its {@code
+ * Vary} header need to be the same, so a per-request header like a trace ID doesn't prevent
+ * coalescing. The first call to miss leads a flight to the network; calls that miss while it is in
+ * the air wait for it to land and then read the response it wrote to the cache. This prevents a
+ * burst of identical requests from all reaching the origin server and racing to write the same
+ * cache entry.
+ *
+ * <p>Followers wait at most the {@linkplain com.squareup.okhttp.OkHttpClient#setCoalescingTimeout
+ * client's coalescing timeout} for the flight to land, and then make their own network request. A
+ * flight lands only once its response has been completely read and cached, so this bounds how long
+ * a slow or abandoned leader can delay its followers. If the leader fails or is canceled the
+ * followers elect a new leader rather than sharing its failure, which may be specific to the
+ * leader's call.
+ */
+public final class RequestCoalescer {
+  /** The flight wrote its response to the cache. */
+  static final int CACHED = 1;
+
+  /** The flight's response couldn't be cached. Followers should use the network concurrently. */
+  static final int NOT_CACHED = 2;
+
+  /** The flight failed or was abandoned. Followers should try again. */
+  static final int RETRY = 3;
+
+  /** Flights in the air, keyed by URL and request headers. */
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  /**
+   * Returns the key of the flights that {@code request} may lead or follow. If {@code
+   * cachedResponseHeaders} is non-null, only the request headers it varies on are part of the key.
+   * Otherwise which headers the response varies on is unknown, and all of them are.
+   */
+  static String key(Request request, Headers cachedResponseHeaders) {
+    Headers headers = cachedResponseHeaders != null && !OkHeaders.hasVaryAll(cachedResponseHeaders)
+        ? OkHeaders.varyHeaders(request.headers(), cachedResponseHeaders)
+        : request.headers();
+    return request.urlString() + "\n" + headers;
+  }
+
+  /**
+   * Returns a new flight for {@code key} that the caller leads, or null if another call is already
+   * leading one. The leader must {@linkplain Flight#land land} the returned flight.
+   */
+  synchronized Flight lead(String key) {
+    if (flights.containsKey(key)) return null;
+    Flight flight = new Flight(key);
+    flights.put(key, flight);
+    return flight;
+  }
+
+  /** Returns the flight for {@code key} that is in the air, or null if there is none. */
+  synchronized Flight get(String key) {
+    return flights.get(key);
+  }
+
+  final class Flight {
+    final String key;
+
+    /** Guarded by this. */
+    private int outcome;
+
+    Flight(String key) {
+      this.key = key;
+    }
+
+    /**
+     * Waits for this flight to land and returns its outcome, or {@link #NOT_CACHED} if it doesn't
+     * land within {@code maxWaitMillis}. Call {@link #wakeUp} after canceling {@code engine} so
+     * that it stops waiting.
+     */
+    synchronized int await(HttpEngine engine, long maxWaitMillis) throws IOException {
+      long deadline = System.nanoTime() / 1000000 + maxWaitMillis;
+      try {
+        while (outcome == 0) {
+          if (engine.canceled) throw new IOException("Canceled");
+          long waitMillis = deadline - System.nanoTime() / 1000000;
+          if (waitMillis <= 0) return NOT_CACHED;
+          wait(waitMillis);
+        }
+        return outcome;
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    /** Wakes the followers of this flight so that canceled calls stop waiting. */
+    synchronized void wakeUp() {
+      notifyAll();
+    }
+
+    /** Completes this flight with {@code outcome}. Subsequent calls have no effect. */
+    void land(int outcome) {
+      synchronized (this) {
+        if (this.outcome != 0) return;
+        this.outcome = outcome;
+        notifyAll();
+      }
+      synchronized (RequestCoalescer.this) {
+        if (flights.get(key) == this) flights.remove(key);
+      }
+    }
+  }
+}
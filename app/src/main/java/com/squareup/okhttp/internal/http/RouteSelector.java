@@ -16,6 +16,8 @@
 package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Address;
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.EventListener;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Route;
 import com.squareup.okhttp.internal.RouteDatabase;
@@ -38,6 +40,8 @@ import java.util.NoSuchElementException;
 public final class RouteSelector {
   private final Address address;
   private final RouteDatabase routeDatabase;
+  private final Call call;
+  private final EventListener eventListener;
 
   /* The most recently attempted route. */
   private Proxy lastProxy;
@@ -55,8 +59,15 @@ public final class RouteSelector {
   private final List<Route> postponedRoutes = new ArrayList<>();
 
   public RouteSelector(Address address, RouteDatabase routeDatabase) {
+    this(address, routeDatabase, null, EventListener.NONE);
+  }
+
+  public RouteSelector(Address address, RouteDatabase routeDatabase, Call call,
+      EventListener eventListener) {
     this.address = address;
     this.routeDatabase = routeDatabase;
+    this.call = call;
+    this.eventListener = eventListener;
 
     resetNextProxy(address.url(), address.getProxy());
   }
@@ -172,7 +183,15 @@ public final class RouteSelector {
       inetSocketAddresses.add(InetSocketAddress.createUnresolved(socketHost, socketPort));
     } else {
       // Try each address for best behavior in mixed IPv4/IPv6 environments.
+      long startNanos = 0L;
+      if (eventListener != EventListener.NONE) {
+        startNanos = System.nanoTime();
+        eventListener.dnsStart(call, socketHost);
+      }
       List<InetAddress> addresses = address.getDns().lookup(socketHost);
+      if (eventListener != EventListener.NONE) {
+        eventListener.dnsEnd(call, socketHost, addresses, System.nanoTime() - startNanos);
+      }
       for (int i = 0, size = addresses.size(); i < size; i++) {
         InetAddress inetAddress = addresses.get(i);
         inetSocketAddresses.add(new InetSocketAddress(inetAddress, socketPort));
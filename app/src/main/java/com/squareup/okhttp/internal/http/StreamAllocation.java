@@ -16,9 +16,12 @@
 package com.squareup.okhttp.internal.http;
 
 import com.squareup.okhttp.Address;
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.EventListener;
 import com.squareup.okhttp.Route;
 import com.squareup.okhttp.internal.Internal;
+import com.squareup.okhttp.internal.InternalCache;
 import com.squareup.okhttp.internal.RouteDatabase;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.io.RealConnection;
@@ -82,18 +85,37 @@ public final class StreamAllocation {
   private boolean released;
   private boolean canceled;
   private HttpStream stream;
+  /** True if the event listener has been told that {@link #connection} was acquired. */
+  private boolean connectionAcquiredEvent;
+
+  private Call call;
+  private EventListener eventListener = EventListener.NONE;
 
   public StreamAllocation(ConnectionPool connectionPool, Address address) {
     this.connectionPool = connectionPool;
     this.address = address;
   }
 
+  /** Reports this allocation's events for {@code call} to {@code eventListener}. */
+  public void setEventListener(Call call, EventListener eventListener) {
+    this.call = call;
+    this.eventListener = eventListener;
+  }
+
+  public Call call() {
+    return call;
+  }
+
+  public EventListener eventListener() {
+    return eventListener;
+  }
+
   public HttpStream newStream(int connectTimeout, int readTimeout, int writeTimeout,
-      boolean connectionRetryEnabled, boolean doExtensiveHealthChecks)
-      throws RouteException, IOException {
+      int pingInterval, InternalCache pushCache, boolean connectionRetryEnabled,
+      boolean doExtensiveHealthChecks) throws RouteException, IOException {
     try {
       RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
-          writeTimeout, connectionRetryEnabled, doExtensiveHealthChecks);
+          writeTimeout, pingInterval, pushCache, connectionRetryEnabled, doExtensiveHealthChecks);
 
       HttpStream resultStream;
       if (resultConnection.framedConnection != null) {
@@ -120,11 +142,11 @@ public final class StreamAllocation {
    * until a healthy connection is found.
    */
   private RealConnection findHealthyConnection(int connectTimeout, int readTimeout,
-      int writeTimeout, boolean connectionRetryEnabled, boolean doExtensiveHealthChecks)
-      throws IOException, RouteException {
+      int writeTimeout, int pingInterval, InternalCache pushCache, boolean connectionRetryEnabled,
+      boolean doExtensiveHealthChecks) throws IOException, RouteException {
     while (true) {
       RealConnection candidate = findConnection(connectTimeout, readTimeout, writeTimeout,
-          connectionRetryEnabled);
+          pingInterval, pushCache, connectionRetryEnabled);
 
       // If this is a brand new connection, we can skip the extensive health checks.
       synchronized (connectionPool) {
@@ -147,7 +169,9 @@ public final class StreamAllocation {
    * then the pool, finally building a new connection.
    */
   private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
-      boolean connectionRetryEnabled) throws IOException, RouteException {
+      int pingInterval, InternalCache pushCache, boolean connectionRetryEnabled)
+      throws IOException, RouteException {
+    RealConnection pooledConnection;
     synchronized (connectionPool) {
       if (released) throw new IllegalStateException("released");
       if (stream != null) throw new IllegalStateException("stream != null");
@@ -159,16 +183,19 @@ public final class StreamAllocation {
       }
 
       // Attempt to get a connection from the pool.
-      RealConnection pooledConnection = Internal.instance.get(connectionPool, address, this);
+      pooledConnection = Internal.instance.get(connectionPool, address, this);
       if (pooledConnection != null) {
         this.connection = pooledConnection;
-        return pooledConnection;
+        this.connectionAcquiredEvent = eventListener != EventListener.NONE;
+      } else if (routeSelector == null) {
+        // Attempt to create a connection.
+        routeSelector = new RouteSelector(address, routeDatabase(), call, eventListener);
       }
+    }
 
-      // Attempt to create a connection.
-      if (routeSelector == null) {
-        routeSelector = new RouteSelector(address, routeDatabase());
-      }
+    if (pooledConnection != null) {
+      eventListener.connectionAcquired(call, pooledConnection, true);
+      return pooledConnection;
     }
 
     Route route = routeSelector.next();
@@ -181,10 +208,17 @@ public final class StreamAllocation {
       if (canceled) throw new IOException("Canceled");
     }
 
-    newConnection.connect(connectTimeout, readTimeout, writeTimeout, address.getConnectionSpecs(),
-        connectionRetryEnabled);
+    newConnection.connect(connectTimeout, readTimeout, writeTimeout, pingInterval, pushCache,
+        address.getConnectionSpecs(), connectionRetryEnabled, call, eventListener);
     routeDatabase().connected(newConnection.getRoute());
 
+    if (eventListener != EventListener.NONE) {
+      synchronized (connectionPool) {
+        connectionAcquiredEvent = connection == newConnection;
+      }
+      eventListener.connectionAcquired(call, newConnection, false);
+    }
+
     return newConnection;
   }
 
@@ -226,6 +260,7 @@ public final class StreamAllocation {
    */
   private void deallocate(boolean noNewStreams, boolean released, boolean streamFinished) {
     RealConnection connectionToClose = null;
+    RealConnection releasedConnection = null;
     synchronized (connectionPool) {
       if (streamFinished) {
         this.stream = null;
@@ -239,6 +274,10 @@ public final class StreamAllocation {
         }
         if (this.stream == null && (this.released || connection.noNewStreams)) {
           release(connection);
+          if (connectionAcquiredEvent) {
+            releasedConnection = connection;
+            connectionAcquiredEvent = false;
+          }
           if (connection.streamCount > 0) {
             routeSelector = null;
           }
@@ -255,6 +294,9 @@ public final class StreamAllocation {
     if (connectionToClose != null) {
       Util.closeQuietly(connectionToClose.getSocket());
     }
+    if (releasedConnection != null) {
+      eventListener.connectionReleased(call, releasedConnection);
+    }
   }
 
   public void cancel() {
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal.http;
+
+import com.squareup.okhttp.RequestBody;
+import java.io.IOException;
+import okio.BufferedSink;
+
+/**
+ * A request body whose file content may be sent to the network without being copied through
+ * {@code sink}. {@link Http1xStream} uses this to send file content with {@link
+ * java.nio.channels.FileChannel#transferTo} on connections that support it.
+ */
+public abstract class TransferableRequestBody extends RequestBody {
+  /**
+   * Writes this body to {@code sink} like {@link #writeTo(BufferedSink)}, except that file content
+   * is passed to {@code transfer} rather than written to {@code sink}.
+   */
+  public abstract void writeTo(BufferedSink sink, FileTransfer transfer) throws IOException;
+
+  /** Sends file content straight to the network. */
+  public interface FileTransfer {
+    /**
+     * Flushes the bytes written to the body's sink so far and then sends the content of {@code
+     * body}.
+     */
+    void transfer(FileRequestBody body) throws IOException;
+  }
+}
@@ -86,7 +86,7 @@ public final class CacheAdapter implements InternalCache {
     // with the original cached response.
   }
 
-  @Override public void trackConditionalCacheHit() {
+  @Override public void trackConditionalCacheHit(Response cacheResponse) {
     // This method is optional.
   }
 
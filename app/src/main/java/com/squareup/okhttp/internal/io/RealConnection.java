@@ -17,9 +17,11 @@
 package com.squareup.okhttp.internal.io;
 
 import com.squareup.okhttp.Address;
+import com.squareup.okhttp.Call;
 import com.squareup.okhttp.CertificatePinner;
 import com.squareup.okhttp.Connection;
 import com.squareup.okhttp.ConnectionSpec;
+import com.squareup.okhttp.EventListener;
 import com.squareup.okhttp.Handshake;
 import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Protocol;
@@ -27,12 +29,15 @@ import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.Route;
 import com.squareup.okhttp.internal.ConnectionSpecSelector;
+import com.squareup.okhttp.internal.InternalCache;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.Util;
 import com.squareup.okhttp.internal.Version;
 import com.squareup.okhttp.internal.framed.FramedConnection;
+import com.squareup.okhttp.internal.framed.PushObserver;
 import com.squareup.okhttp.internal.http.Http1xStream;
 import com.squareup.okhttp.internal.http.OkHeaders;
+import com.squareup.okhttp.internal.http.PushCacheObserver;
 import com.squareup.okhttp.internal.http.RouteException;
 import com.squareup.okhttp.internal.http.StreamAllocation;
 import com.squareup.okhttp.internal.tls.CertificateChainCleaner;
@@ -89,8 +94,14 @@ public final class RealConnection implements Connection {
     this.route = route;
   }
 
-  public void connect(int connectTimeout, int readTimeout, int writeTimeout,
-      List<ConnectionSpec> connectionSpecs, boolean connectionRetryEnabled) throws RouteException {
+  /**
+   * @param pushCache the cache to store HTTP/2 server pushes in, or null to cancel server pushes.
+   * @param eventListener receives the phases of each attempt to connect on behalf of {@code call}.
+   */
+  public void connect(int connectTimeout, int readTimeout, int writeTimeout, int pingInterval,
+      InternalCache pushCache, List<ConnectionSpec> connectionSpecs,
+      boolean connectionRetryEnabled, Call call, EventListener eventListener)
+      throws RouteException {
     if (protocol != null) throw new IllegalStateException("already connected");
 
     RouteException routeException = null;
@@ -105,12 +116,24 @@ public final class RealConnection implements Connection {
     }
 
     while (protocol == null) {
+      long startNanos = 0L;
+      if (eventListener != EventListener.NONE) {
+        startNanos = System.nanoTime();
+        eventListener.connectStart(call, route);
+      }
       try {
         rawSocket = proxy.type() == Proxy.Type.DIRECT || proxy.type() == Proxy.Type.HTTP
             ? address.getSocketFactory().createSocket()
             : new Socket(proxy);
-        connectSocket(connectTimeout, readTimeout, writeTimeout, connectionSpecSelector);
+        connectSocket(connectTimeout, readTimeout, writeTimeout, pingInterval, pushCache,
+            connectionSpecSelector, call, eventListener);
+        if (eventListener != EventListener.NONE) {
+          eventListener.connectEnd(call, route, protocol, System.nanoTime() - startNanos);
+        }
       } catch (IOException e) {
+        if (eventListener != EventListener.NONE) {
+          eventListener.connectFailed(call, route, e, System.nanoTime() - startNanos);
+        }
         Util.closeQuietly(socket);
         Util.closeQuietly(rawSocket);
         socket = null;
@@ -135,7 +158,8 @@ public final class RealConnection implements Connection {
 
   /** Does all the work necessary to build a full HTTP or HTTPS connection on a raw socket. */
   private void connectSocket(int connectTimeout, int readTimeout, int writeTimeout,
-      ConnectionSpecSelector connectionSpecSelector) throws IOException {
+      int pingInterval, InternalCache pushCache, ConnectionSpecSelector connectionSpecSelector,
+      Call call, EventListener eventListener) throws IOException {
     rawSocket.setSoTimeout(readTimeout);
     try {
       Platform.get().connectSocket(rawSocket, route.getSocketAddress(), connectTimeout);
@@ -146,7 +170,15 @@ public final class RealConnection implements Connection {
     sink = Okio.buffer(Okio.sink(rawSocket));
 
     if (route.getAddress().getSslSocketFactory() != null) {
+      long startNanos = 0L;
+      if (eventListener != EventListener.NONE) {
+        startNanos = System.nanoTime();
+        eventListener.secureConnectStart(call, route);
+      }
       connectTls(readTimeout, writeTimeout, connectionSpecSelector);
+      if (eventListener != EventListener.NONE) {
+        eventListener.secureConnectEnd(call, route, handshake, System.nanoTime() - startNanos);
+      }
     } else {
       protocol = Protocol.HTTP_1_1;
       socket = rawSocket;
@@ -155,9 +187,15 @@ public final class RealConnection implements Connection {
     if (protocol == Protocol.SPDY_3 || protocol == Protocol.HTTP_2) {
       socket.setSoTimeout(0); // Framed connection timeouts are set per-stream.
 
+      PushObserver pushObserver = pushCache != null
+          ? new PushCacheObserver(pushCache, route.getAddress().url(), handshake,
+              PushCacheObserver.DEFAULT_MAX_PUSH_BYTES)
+          : PushObserver.CANCEL;
       FramedConnection framedConnection = new FramedConnection.Builder(true)
           .socket(socket, route.getAddress().url().host(), source, sink)
           .protocol(protocol)
+          .pingIntervalMillis(pingInterval)
+          .pushObserver(pushObserver)
           .build();
       framedConnection.sendConnectionPreface();
 
@@ -350,7 +388,7 @@ public final class RealConnection implements Connection {
     }
 
     if (framedConnection != null) {
-      return true; // TODO: check framedConnection.shutdown.
+      return framedConnection.isHealthy();
     }
 
     if (doExtensiveChecks) {
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.logging;
+
+import com.squareup.okhttp.internal.Util;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A logger that enqueues messages in a bounded ring buffer and delivers them to another logger on
+ * a background thread. Enqueueing never blocks: when the buffer is full, messages are dropped and
+ * counted.
+ *
+ * <p>Any number of threads may log concurrently. They claim slots by incrementing {@code tail};
+ * the single delivery thread consumes slots by incrementing {@code head}. A claimed slot is null
+ * until its message is written, so the consumer waits for it rather than skipping it.
+ *
+ * <p>The delivery thread is started by the first message and stops once it has been idle for a
+ * second, so an idle or discarded logger doesn't keep a thread. The next message starts another.
+ */
+final class AsyncLogger implements HttpLoggingInterceptor.Logger, Runnable {
+  /** How long the delivery thread sleeps when it might have missed a wakeup. */
+  private static final long MAX_PARK_NANOS = 100_000_000L;
+
+  /** How long the delivery thread waits for messages before it stops. */
+  private static final long KEEP_ALIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final HttpLoggingInterceptor.Logger delegate;
+  private final AtomicLong droppedCount;
+  private final AtomicReferenceArray<String> slots;
+  private final int mask;
+
+  /** The sequence number of the next message to deliver. Only the delivery thread writes this. */
+  private final AtomicLong head = new AtomicLong();
+
+  /** The sequence number of the next slot to claim. */
+  private final AtomicLong tail = new AtomicLong();
+
+  private final ThreadFactory threadFactory =
+      Util.threadFactory("OkHttp HttpLoggingInterceptor", true);
+
+  /** True while a delivery thread is running. Whoever sets this starts or continues the thread. */
+  private final AtomicBoolean running = new AtomicBoolean();
+  private volatile Thread thread;
+  private volatile boolean sleeping;
+  private volatile boolean shutdown;
+
+  AsyncLogger(HttpLoggingInterceptor.Logger delegate, int capacity, AtomicLong droppedCount) {
+    this.delegate = delegate;
+    this.droppedCount = droppedCount;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /** Delivers the messages already enqueued, then stops the delivery thread without waiting. */
+  void shutdown() {
+    shutdown = true;
+    Thread thread = this.thread;
+    if (thread != null) LockSupport.unpark(thread);
+  }
+
+  @Override public void log(String message) {
+    while (true) {
+      long t = tail.get();
+      if (t - head.get() >= slots.length()) {
+        droppedCount.incrementAndGet();
+        return;
+      }
+      if (tail.compareAndSet(t, t + 1)) {
+        slots.lazySet((int) t & mask, message);
+        break;
+      }
+    }
+    if (!running.get() && running.compareAndSet(false, true)) {
+      Thread thread = threadFactory.newThread(this);
+      this.thread = thread;
+      thread.start();
+    } else if (sleeping) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  @Override public void run() {
+    long idleDeadline = System.nanoTime() + KEEP_ALIVE_NANOS;
+    while (true) {
+      if (drain()) {
+        idleDeadline = System.nanoTime() + KEEP_ALIVE_NANOS;
+        continue;
+      }
+
+      if (head.get() != tail.get()) {
+        Thread.yield(); // A producer has claimed a slot but not yet written it.
+        continue;
+      }
+      if (shutdown || System.nanoTime() - idleDeadline >= 0) {
+        running.set(false);
+        // A producer that enqueued before we cleared 'running' didn't start a thread. Deliver its
+        // message unless a producer that enqueued after has started one.
+        if (head.get() == tail.get() || !running.compareAndSet(false, true)) return;
+        continue;
+      }
+
+      // Publish that we're sleeping before the final check, so producers that enqueue after the
+      // check will see it and wake us.
+      sleeping = true;
+      if (head.get() == tail.get() && !shutdown) {
+        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+      }
+      sleeping = false;
+    }
+  }
+
+  /** Delivers the messages that are ready. Returns true if any were. */
+  private boolean drain() {
+    boolean delivered = false;
+    for (long h = head.get(); ; h++) {
+      int index = (int) h & mask;
+      String message = slots.get(index);
+      if (message == null) return delivered;
+
+      slots.lazySet(index, null);
+      head.lazySet(h + 1);
+      delivered = true;
+      try {
+        delegate.log(message);
+      } catch (RuntimeException e) {
+        droppedCount.incrementAndGet(); // Don't let a broken logger stop delivery.
+      }
+    }
+  }
+}
@@ -28,10 +28,24 @@ import com.squareup.okhttp.ResponseBody;
 import com.squareup.okhttp.internal.Platform;
 import com.squareup.okhttp.internal.http.HttpEngine;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import okio.Buffer;
+import okio.BufferedSink;
 import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
 
 /**
  * An OkHttp interceptor which logs request and response information. Can be applied as an
@@ -40,6 +54,19 @@ import okio.BufferedSource;
  * <p>
  * The format of the logs created by this class should not be considered stable and may change
  * slightly between releases. If you need a stable logging format, use your own interceptor.
+ *
+ * <h3>Logging in production</h3>
+ * By default this interceptor buffers entire bodies to log them and calls its logger on the
+ * call's thread. Three options make it safe to leave on under load:
+ * <ul>
+ *   <li>{@link #setStreamingBodyLimit} logs only a prefix of each body, captured as the body is
+ *       transmitted, instead of buffering it.
+ *   <li>{@link #setAsync} delivers messages on a background thread through a bounded buffer. Calls
+ *       never wait for the logger; messages that don't fit are dropped and counted by {@link
+ *       #droppedMessageCount}.
+ *   <li>{@link #setSampleRate(double)} and {@link #setSampleRate(String, double)} log only a
+ *       fraction of calls.
+ * </ul>
  */
 public final class HttpLoggingInterceptor implements Interceptor {
   private static final Charset UTF8 = Charset.forName("UTF-8");
@@ -122,6 +149,12 @@ public final class HttpLoggingInterceptor implements Interceptor {
   private final Logger logger;
 
   private volatile Level level = Level.NONE;
+  private volatile long streamingBodyLimit = -1L;
+  private volatile double sampleRate = 1.0;
+  private final ConcurrentMap<String, Double> hostSampleRates = new ConcurrentHashMap<>();
+  private volatile AsyncLogger asyncLogger;
+  private final AtomicLong droppedMessageCount = new AtomicLong();
+  private final AtomicLong unsampledCallCount = new AtomicLong();
 
   /** Change the level at which this interceptor logs. */
   public HttpLoggingInterceptor setLevel(Level level) {
@@ -134,14 +167,107 @@ public final class HttpLoggingInterceptor implements Interceptor {
     return level;
   }
 
+  /**
+   * Log at most {@code byteCount} bytes of each body at {@link Level#BODY}, captured as the body
+   * is written to or read from the network. The rest of the body is counted but not retained, so
+   * the body is never buffered in memory. Request bodies are logged once they have been written,
+   * and response bodies once they have been read or closed by the application.
+   *
+   * <p>Set to -1 to buffer and log entire bodies before they are transmitted. This is the
+   * default.
+   */
+  public HttpLoggingInterceptor setStreamingBodyLimit(long byteCount) {
+    if (byteCount < -1L) throw new IllegalArgumentException("byteCount < -1: " + byteCount);
+    this.streamingBodyLimit = byteCount;
+    return this;
+  }
+
+  public long getStreamingBodyLimit() {
+    return streamingBodyLimit;
+  }
+
+  /**
+   * Deliver messages to the logger on a background thread, through a buffer that holds up to
+   * {@code capacity} messages. When the buffer is full, messages are dropped. Set to 0 to call the
+   * logger on the call's thread, which is the default; messages already buffered are still
+   * delivered.
+   *
+   * <p>The background thread is started when a message is logged and stops after a second without
+   * messages, so an interceptor that is no longer used doesn't need to be shut down.
+   */
+  public HttpLoggingInterceptor setAsync(int capacity) {
+    if (capacity < 0) throw new IllegalArgumentException("capacity < 0: " + capacity);
+    AsyncLogger replacement = capacity > 0
+        ? new AsyncLogger(logger, capacity, droppedMessageCount)
+        : null;
+    AsyncLogger previous;
+    synchronized (this) {
+      previous = asyncLogger;
+      asyncLogger = replacement;
+    }
+    if (previous != null) previous.shutdown();
+    return this;
+  }
+
+  /** Returns the number of messages that were dropped because the async buffer was full. */
+  public long droppedMessageCount() {
+    return droppedMessageCount.get();
+  }
+
+  /**
+   * Log only a fraction of calls, chosen at random. {@code rate} is between 0.0 to log no calls
+   * and 1.0 to log every call, which is the default.
+   */
+  public HttpLoggingInterceptor setSampleRate(double rate) {
+    this.sampleRate = checkRate(rate);
+    return this;
+  }
+
+  /**
+   * Log only a fraction of calls to {@code host}, overriding the {@linkplain #setSampleRate(double)
+   * default rate} for that host.
+   */
+  public HttpLoggingInterceptor setSampleRate(String host, double rate) {
+    if (host == null) throw new NullPointerException("host == null");
+    hostSampleRates.put(host, checkRate(rate));
+    return this;
+  }
+
+  /** Returns the number of calls that weren't logged because they weren't sampled. */
+  public long unsampledCallCount() {
+    return unsampledCallCount.get();
+  }
+
+  private static double checkRate(double rate) {
+    if (!(rate >= 0.0 && rate <= 1.0)) {
+      throw new IllegalArgumentException("rate < 0.0 || rate > 1.0: " + rate);
+    }
+    return rate;
+  }
+
+  private boolean sampled(Request request) {
+    Double hostRate = hostSampleRates.isEmpty()
+        ? null
+        : hostSampleRates.get(request.httpUrl().host());
+    double rate = hostRate != null ? hostRate : sampleRate;
+    if (rate >= 1.0) return true;
+    if (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate) return true;
+    unsampledCallCount.incrementAndGet();
+    return false;
+  }
+
   @Override public Response intercept(Chain chain) throws IOException {
     Level level = this.level;
 
     Request request = chain.request();
-    if (level == Level.NONE) {
+    if (level == Level.NONE || !sampled(request)) {
       return chain.proceed(request);
     }
 
+    AsyncLogger asyncLogger = this.asyncLogger;
+    Logger logger = asyncLogger != null ? asyncLogger : this.logger;
+    long streamingBodyLimit = this.streamingBodyLimit;
+
     boolean logBody = level == Level.BODY;
     boolean logHeaders = logBody || level == Level.HEADERS;
 
@@ -182,6 +308,12 @@ public final class HttpLoggingInterceptor implements Interceptor {
         logger.log("--> END " + request.method());
       } else if (bodyEncoded(request.headers())) {
         logger.log("--> END " + request.method() + " (encoded body omitted)");
+      } else if (streamingBodyLimit != -1L) {
+        // The body and its END line are logged once the body has been written.
+        request = request.newBuilder()
+            .method(request.method(), new LoggingRequestBody(
+                requestBody, request.method(), logger, streamingBodyLimit))
+            .build();
       } else {
         Buffer buffer = new Buffer();
         requestBody.writeTo(buffer);
@@ -189,7 +321,7 @@ public final class HttpLoggingInterceptor implements Interceptor {
         Charset charset = UTF8;
         MediaType contentType = requestBody.contentType();
         if (contentType != null) {
-          contentType.charset(UTF8);
+          charset = contentType.charset(UTF8);
         }
 
         logger.log("");
@@ -219,6 +351,11 @@ public final class HttpLoggingInterceptor implements Interceptor {
         logger.log("<-- END HTTP");
       } else if (bodyEncoded(response.headers())) {
         logger.log("<-- END HTTP (encoded body omitted)");
+      } else if (streamingBodyLimit != -1L) {
+        // The body and its END line are logged once the body has been read.
+        response = response.newBuilder()
+            .body(new LoggingResponseBody(responseBody, logger, streamingBodyLimit))
+            .build();
       } else {
         BufferedSource source = responseBody.source();
         source.request(Long.MAX_VALUE); // Buffer the entire body.
@@ -250,4 +387,147 @@ public final class HttpLoggingInterceptor implements Interceptor {
   private static String protocol(Protocol protocol) {
     return protocol == Protocol.HTTP_1_0 ? "HTTP/1.0" : "HTTP/1.1";
   }
+
+  /** Logs a body's captured prefix followed by an END line. */
+  private static void logBody(Logger logger, Buffer captured, long byteCount, MediaType contentType,
+      String endLine) {
+    Charset charset = contentType != null ? contentType.charset(UTF8) : UTF8;
+    long capturedCount = captured.size();
+    if (capturedCount > 0) {
+      logger.log("");
+      logger.log(decodePrefix(captured, charset));
+    }
+    logger.log(byteCount > capturedCount
+        ? endLine + ", " + capturedCount + " bytes logged)"
+        : endLine + ")");
+  }
+
+  /**
+   * Decodes {@code prefix}, which may end partway through a character because it was captured up
+   * to a byte limit. The bytes of such a character are dropped rather than decoded as malformed.
+   */
+  private static String decodePrefix(Buffer prefix, Charset charset) {
+    ByteBuffer in = ByteBuffer.wrap(prefix.readByteArray());
+    CharsetDecoder decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    CharBuffer out = CharBuffer.allocate((int) (in.remaining() * decoder.maxCharsPerByte()) + 1);
+    decoder.decode(in, out, false); // Not the end of input: leaves an incomplete character in 'in'.
+    out.flip();
+    return out.toString();
+  }
+
+  /** A request body that logs up to {@code limit} bytes of its content as it is written. */
+  private static final class LoggingRequestBody extends RequestBody {
+    private final RequestBody delegate;
+    private final String method;
+    private final Logger logger;
+    private final long limit;
+
+    LoggingRequestBody(RequestBody delegate, String method, Logger logger, long limit) {
+      this.delegate = delegate;
+      this.method = method;
+      this.logger = logger;
+      this.limit = limit;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() throws IOException {
+      return delegate.contentLength();
+    }
+
+    @Override public void writeTo(BufferedSink sink) throws IOException {
+      final Buffer captured = new Buffer();
+      final long[] byteCount = new long[1];
+      Sink teeSink = new ForwardingSink(sink) {
+        @Override public void write(Buffer source, long count) throws IOException {
+          long toCapture = Math.min(count, limit - captured.size());
+          if (toCapture > 0) source.copyTo(captured, 0, toCapture);
+          byteCount[0] += count;
+          super.write(source, count);
+        }
+      };
+      BufferedSink bufferedTeeSink = Okio.buffer(teeSink);
+      delegate.writeTo(bufferedTeeSink);
+      bufferedTeeSink.emit();
+
+      logBody(logger, captured, byteCount[0], delegate.contentType(),
+          "--> END " + method + " (" + byteCount[0] + "-byte body");
+    }
+  }
+
+  /** A response body that logs up to {@code limit} bytes of its content as it is read. */
+  private static final class LoggingResponseBody extends ResponseBody {
+    private final ResponseBody delegate;
+    private final Logger logger;
+    private final long limit;
+    private BufferedSource source;
+
+    LoggingResponseBody(ResponseBody delegate, Logger logger, long limit) {
+      this.delegate = delegate;
+      this.logger = logger;
+      this.limit = limit;
+    }
+
+    @Override public MediaType contentType() {
+      return delegate.contentType();
+    }
+
+    @Override public long contentLength() throws IOException {
+      return delegate.contentLength();
+    }
+
+    @Override public BufferedSource source() throws IOException {
+      if (source == null) {
+        source = Okio.buffer(new TeeSource(delegate.source()));
+      }
+      return source;
+    }
+
+    @Override public void close() throws IOException {
+      if (source != null) {
+        source.close();
+      } else {
+        delegate.close();
+      }
+    }
+
+    private final class TeeSource extends ForwardingSource {
+      private final Buffer captured = new Buffer();
+      private long byteCount;
+      private boolean logged;
+
+      TeeSource(Source delegate) {
+        super(delegate);
+      }
+
+      @Override public long read(Buffer sink, long count) throws IOException {
+        long read = super.read(sink, count);
+        if (read == -1L) {
+          log(true);
+          return read;
+        }
+        long toCapture = Math.min(read, limit - captured.size());
+        if (toCapture > 0) sink.copyTo(captured, sink.size() - read, toCapture);
+        byteCount += read;
+        return read;
+      }
+
+      @Override public void close() throws IOException {
+        log(false);
+        super.close();
+      }
+
+      private void log(boolean exhausted) {
+        if (logged) return;
+        logged = true;
+        logBody(logger, captured, byteCount, contentType(), exhausted
+            ? "<-- END HTTP (" + byteCount + "-byte body"
+            : "<-- END HTTP (closed after " + byteCount + " bytes");
+      }
+    }
+  }
 }
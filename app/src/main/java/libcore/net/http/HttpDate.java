@@ -16,76 +16,27 @@
 
 package libcore.net.http;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Locale;
-import java.util.TimeZone;
 
 /**
- * Best-effort parser for HTTP dates.
+ * Best-effort parser for HTTP dates. This delegates to OkHttp's parser, which handles the standard
+ * format without {@link java.text.DateFormat} and falls back to the same browser-compatible
+ * formats as this class once did.
  */
 public final class HttpDate {
 
-    /**
-     * Most websites serve cookies in the blessed format. Eagerly create the parser to ensure such
-     * cookies are on the fast path.
-     */
-    private static final ThreadLocal<DateFormat> STANDARD_DATE_FORMAT
-            = new ThreadLocal<DateFormat>() {
-        @Override protected DateFormat initialValue() {
-            DateFormat rfc1123 = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
-            rfc1123.setTimeZone(TimeZone.getTimeZone("UTC"));
-            return rfc1123;
-        }
-    };
-
-    /**
-     * If we fail to parse a date in a non-standard format, try each of these formats in sequence.
-     */
-    private static final String[] BROWSER_COMPATIBLE_DATE_FORMATS = new String[] {
-            /* This list comes from  {@code org.apache.http.impl.cookie.BrowserCompatSpec}. */
-            "EEEE, dd-MMM-yy HH:mm:ss zzz", // RFC 1036
-            "EEE MMM d HH:mm:ss yyyy", // ANSI C asctime()
-            "EEE, dd-MMM-yyyy HH:mm:ss z",
-            "EEE, dd-MMM-yyyy HH-mm-ss z",
-            "EEE, dd MMM yy HH:mm:ss z",
-            "EEE dd-MMM-yyyy HH:mm:ss z",
-            "EEE dd MMM yyyy HH:mm:ss z",
-            "EEE dd-MMM-yyyy HH-mm-ss z",
-            "EEE dd-MMM-yy HH:mm:ss z",
-            "EEE dd MMM yy HH:mm:ss z",
-            "EEE,dd-MMM-yy HH:mm:ss z",
-            "EEE,dd-MMM-yyyy HH:mm:ss z",
-            "EEE, dd-MM-yyyy HH:mm:ss z",
-
-            /* RI bug 6641315 claims a cookie of this format was once served by www.yahoo.com */
-            "EEE MMM d yyyy HH:mm:ss z",
-    };
-
     /**
      * Returns the date for {@code value}. Returns null if the value couldn't be
      * parsed.
      */
     public static Date parse(String value) {
-        try {
-            return STANDARD_DATE_FORMAT.get().parse(value);
-        } catch (ParseException ignore) {
-        }
-        for (String formatString : BROWSER_COMPATIBLE_DATE_FORMATS) {
-            try {
-                return new SimpleDateFormat(formatString, Locale.US).parse(value);
-            } catch (ParseException ignore) {
-            }
-        }
-        return null;
+        return com.squareup.okhttp.internal.http.HttpDate.parse(value);
     }
 
     /**
      * Returns the string for {@code value}.
      */
     public static String format(Date value) {
-        return STANDARD_DATE_FORMAT.get().format(value);
+        return com.squareup.okhttp.internal.http.HttpDate.format(value);
     }
 }
@@ -48,14 +48,32 @@ public final class GzipSink implements Sink {
    */
   private final DeflaterSink deflaterSink;
 
+  /** True if this sink created the deflater and must release its resources. */
+  private final boolean ownsDeflater;
+
   private boolean closed;
 
   /** Checksum calculated for the compressed body. */
   private final CRC32 crc = new CRC32();
 
   public GzipSink(Sink sink) {
+    this(sink, new Deflater(DEFAULT_COMPRESSION, true /* No wrap */), true);
+  }
+
+  /**
+   * Creates a sink that compresses with {@code deflater}, which must be new or {@linkplain
+   * Deflater#reset reset} and created with {@code nowrap} set to true. The caller retains
+   * ownership of {@code deflater}: closing this sink doesn't end it, so it may be reset and reused.
+   */
+  public GzipSink(Sink sink, Deflater deflater) {
+    this(sink, deflater, false);
+  }
+
+  private GzipSink(Sink sink, Deflater deflater, boolean ownsDeflater) {
     if (sink == null) throw new IllegalArgumentException("sink == null");
-    this.deflater = new Deflater(DEFAULT_COMPRESSION, true /* No wrap */);
+    if (deflater == null) throw new IllegalArgumentException("deflater == null");
+    this.deflater = deflater;
+    this.ownsDeflater = ownsDeflater;
     this.sink = Okio.buffer(sink);
     this.deflaterSink = new DeflaterSink(this.sink, deflater);
 
@@ -94,10 +112,12 @@ public final class GzipSink implements Sink {
       thrown = e;
     }
 
-    try {
-      deflater.end();
-    } catch (Throwable e) {
-      if (thrown == null) thrown = e;
+    if (ownsDeflater) {
+      try {
+        deflater.end();
+      } catch (Throwable e) {
+        if (thrown == null) thrown = e;
+      }
     }
 
     try {
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.squareup.okhttp.internal;
+
+import com.squareup.okhttp.internal.io.FileSystem;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+/**
+ * Measures the throughput of {@link DiskLruCache} under a mix of concurrent reads and writes. This
+ * isn't run as a test; call {@link #run} from a test or a scratch program, once per thread count,
+ * and compare the results.
+ *
+ * <p>Filesystem latency is what makes lock scope matter: a cache that holds a shared lock while it
+ * opens, renames or deletes files serializes every thread behind that I/O. {@link #withLatency}
+ * wraps a file system to add a fixed delay to each such operation, which models slow flash storage
+ * even on a machine with a fast disk or a single CPU.
+ */
+final class DiskLruCacheBenchmark {
+  private DiskLruCacheBenchmark() {
+  }
+
+  /**
+   * Returns the operations per second that {@code threadCount} threads complete in {@code
+   * durationMillis} against a new cache in {@code directory}. Each operation reads or replaces one
+   * of {@code keyCount} entries of {@code valueSize} bytes, and is a read with probability {@code
+   * readFraction}.
+   */
+  static double run(FileSystem fileSystem, File directory, int threadCount, int keyCount,
+      int valueSize, double readFraction, long durationMillis) throws Exception {
+    fileSystem.deleteContents(directory);
+    final DiskLruCache cache = DiskLruCache.create(fileSystem, directory, 1, 1, Long.MAX_VALUE);
+    try {
+      final String[] keys = new String[keyCount];
+      final byte[] value = new byte[valueSize];
+      for (int i = 0; i < keyCount; i++) {
+        keys[i] = "k" + i;
+        write(cache, keys[i], value);
+      }
+
+      final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+      final double readFractionFinal = readFraction;
+      final AtomicLong operationCount = new AtomicLong();
+      final AtomicLong failureCount = new AtomicLong();
+      final CountDownLatch done = new CountDownLatch(threadCount);
+      long start = System.nanoTime();
+      for (int t = 0; t < threadCount; t++) {
+        final Random random = new Random(t);
+        new Thread("DiskLruCacheBenchmark " + t) {
+          @Override public void run() {
+            try {
+              long count = 0L;
+              while (System.nanoTime() < deadline) {
+                String key = keys[random.nextInt(keys.length)];
+                try {
+                  if (random.nextDouble() < readFractionFinal) {
+                    read(cache, key);
+                  } else {
+                    write(cache, key, value);
+                  }
+                  count++;
+                } catch (IOException e) {
+                  failureCount.incrementAndGet();
+                }
+              }
+              operationCount.addAndGet(count);
+            } finally {
+              done.countDown();
+            }
+          }
+        }.start();
+      }
+      done.await();
+      long nanos = System.nanoTime() - start;
+      if (failureCount.get() > 0) {
+        throw new IOException(failureCount.get() + " operations failed");
+      }
+      return operationCount.get() * 1e9 / nanos;
+    } finally {
+      cache.delete();
+    }
+  }
+
+  /** Returns a file system that waits {@code latencyNanos} before each operation that does I/O. */
+  static FileSystem withLatency(final FileSystem delegate, final long latencyNanos) {
+    return new FileSystem() {
+      @Override public Source source(File file) throws FileNotFoundException {
+        LockSupport.parkNanos(latencyNanos);
+        return delegate.source(file);
+      }
+
+      @Override public Sink sink(File file) throws FileNotFoundException {
+        LockSupport.parkNanos(latencyNanos);
+        return slowFlush(delegate.sink(file));
+      }
+
+      @Override public Sink appendingSink(File file) throws FileNotFoundException {
+        LockSupport.parkNanos(latencyNanos);
+        return slowFlush(delegate.appendingSink(file));
+      }
+
+      @Override public void delete(File file) throws IOException {
+        LockSupport.parkNanos(latencyNanos);
+        delegate.delete(file);
+      }
+
+      @Override public boolean exists(File file) throws IOException {
+        return delegate.exists(file);
+      }
+
+      @Override public long size(File file) {
+        return delegate.size(file);
+      }
+
+      @Override public void rename(File from, File to) throws IOException {
+        LockSupport.parkNanos(latencyNanos);
+        delegate.rename(from, to);
+      }
+
+      @Override public void deleteContents(File directory) throws IOException {
+        delegate.deleteContents(directory);
+      }
+
+      private Sink slowFlush(Sink sink) {
+        return new ForwardingSink(sink) {
+          @Override public void flush() throws IOException {
+            LockSupport.parkNanos(latencyNanos);
+            super.flush();
+          }
+        };
+      }
+    };
+  }
+
+  private static void read(DiskLruCache cache, String key) throws IOException {
+    DiskLruCache.Snapshot snapshot = cache.get(key);
+    if (snapshot == null) return; // Being replaced.
+    try {
+      BufferedSource source = Okio.buffer(snapshot.getSource(0));
+      source.readAll(new Buffer());
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private static void write(DiskLruCache cache, String key, byte[] value) throws IOException {
+    DiskLruCache.Editor editor = cache.edit(key);
+    if (editor == null) return; // Another thread is writing this key.
+    BufferedSink sink = Okio.buffer(editor.newSink(0));
+    sink.write(value);
+    sink.close();
+    editor.commit();
+  }
+}